@@ -32,7 +32,7 @@ public class DateValue
     extends Value
 {
     private static final int RECORD_DATE_LENGTH = 8;
-    private static final Format dateFormat = new SimpleDateFormat("yyyyMMdd");
+    private static final String DATE_FORMAT = "yyyyMMdd";
 
     /**
      * Creates a new DateValue object.
@@ -87,6 +87,10 @@ public class DateValue
 
         try
         {
+            /*
+             * SimpleDateFormat is not thread-safe, so a new one is created every time.
+             */
+            final Format dateFormat = new SimpleDateFormat(DATE_FORMAT);
             byteArrayOutputStream.write(dateFormat.format(typed).getBytes());
         }
         catch (final IOException ioException)
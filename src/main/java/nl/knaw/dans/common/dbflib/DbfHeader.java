@@ -101,7 +101,7 @@ class DbfHeader
      */
     private Version version;
     private int versionByte;
-    private int recordCount;
+    private long recordCount;
     private List<Field> fields = new ArrayList<Field>();
     private short headerLength;
     private short recordLength;
@@ -124,10 +124,15 @@ class DbfHeader
          * and the final terminator byte(s). To find out how many terminator bytes there are we
          * simply find the remainder after division by 32.
          */
-        version = Version.getVersion(versionByte, headerLength % 32);
+        version = Version.getVersion(versionByte, getLength() % 32);
 
         readRecordLength(dataInput);
         dataInput.skipBytes(LENGTH_TABLE_HEADER_AFTER_RECORD_COUNT);
+
+        /*
+         * The fields in the file replace any fields specified for a new table.
+         */
+        fields = new ArrayList<Field>();
         readFieldDescriptors(dataInput,
                              getFieldCount());
     }
@@ -139,12 +144,32 @@ class DbfHeader
 
     int getLength()
     {
-        return headerLength;
+        return headerLength & 0xffff;
     }
 
     int getRecordLength()
     {
-        return recordLength;
+        return recordLength & 0xffff;
+    }
+
+    /**
+     * Returns the offset of each field within a record. The offsets take the leading deletion flag
+     * into account, so the first field is at offset 1.
+     *
+     * @return the field offsets, in the order of the fields
+     */
+    int[] getFieldOffsets()
+    {
+        final int[] offsets = new int[fields.size()];
+        int offset = LENGTH_DELETE_FLAG;
+
+        for (int i = 0; i < offsets.length; ++i)
+        {
+            offsets[i] = offset;
+            offset += fields.get(i).getLength();
+        }
+
+        return offsets;
     }
 
     void setHasMemo(final boolean hasMemo)
@@ -174,7 +199,7 @@ class DbfHeader
                        throws CorruptedTableException
     {
         final int nrBytesFieldDescriptorArray =
-            headerLength - LENGTH_TABLE_INFO_BLOCK - version.getLengthHeaderTerminator();
+            getLength() - LENGTH_TABLE_INFO_BLOCK - version.getLengthHeaderTerminator();
 
         if ((nrBytesFieldDescriptorArray % LENGTH_FIELD_DESCRIPTOR) != 0)
         {
@@ -275,9 +300,21 @@ class DbfHeader
     }
 
     void readRecordCount(final DataInput dataInput)
-                  throws IOException
+                  throws IOException, CorruptedTableException
     {
-        recordCount = Util.changeEndianness(dataInput.readInt());
+        /*
+         * The record count is an unsigned 32-bit number.
+         */
+        recordCount = Util.changeEndianness(dataInput.readInt()) & 0xffffffffL;
+
+        /*
+         * Records are addressed by int indexes.
+         */
+        if (recordCount > Integer.MAX_VALUE)
+        {
+            throw new CorruptedTableException("Table has " + recordCount + " records, at most " + Integer.MAX_VALUE
+                                              + " are supported");
+        }
     }
 
     void writeAll(final DataOutput dataOutput)
@@ -407,7 +444,7 @@ class DbfHeader
 
     int getRecordCount()
     {
-        return recordCount;
+        return (int) recordCount;
     }
 
     void writeEncryptionFlag(final DataOutput dataOutput)
@@ -465,6 +502,12 @@ class DbfHeader
         }
 
         dataOutput.writeByte(FIELD_DESCRIPTOR_ARRAY_TERMINATOR);
+
+        /*
+         * Clipper 5 has a second terminator byte, which is zero.
+         */
+        writeZeros(dataOutput,
+                   version.getLengthHeaderTerminator() - 1);
     }
 
     void writeFreeRecordThread(final DataOutput dataOutput)
@@ -522,7 +565,7 @@ class DbfHeader
     void writeRecordCount(final DataOutput dataOutput)
                    throws IOException
     {
-        dataOutput.writeInt(Util.changeEndianness(recordCount));
+        dataOutput.writeInt(Util.changeEndianness((int) recordCount));
     }
 
     void writeRecordLength(final DataOutput dataOutput)
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+/**
+ * Enumerates the policies for forcing the writes to a table to the storage device. Until a write
+ * is forced, it may be lost if the operating system crashes or the power fails.
+ *
+ * @see Table#setDurability(Durability)
+ */
+public enum Durability
+{
+    /**
+     * Writes are never forced. Leaves it to the operating system when to store them, which gives
+     * the highest throughput.
+     */
+    NONE,
+    /**
+     * Writes are forced when {@link Table#commit()} is called.
+     */
+    COMMIT,
+    /**
+     * Writes are forced after a number of records have been written or a period of time has
+     * passed since the previous commit, whichever comes first, as well as when
+     * {@link Table#commit()} is called and when the table is closed. See
+     * {@link Table#setGroupCommitInterval(int, long)}.
+     */
+    GROUP_COMMIT;
+}
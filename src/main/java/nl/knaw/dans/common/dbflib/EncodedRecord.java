@@ -0,0 +1,96 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A record encoded for writing. Holds the bytes of the record as they are stored in the table file
+ * and the memos that still have to be written to the memo file. The pointers to these memos are
+ * filled in once the memos have been written. Encoding does not touch the table or memo file, so
+ * it can be done on any thread.
+ */
+class EncodedRecord
+{
+    private final byte[] bytes;
+    private final List<Field> memoFields = new ArrayList<Field>();
+    private final List<Integer> memoOffsets = new ArrayList<Integer>();
+    private final List<byte[]> memos = new ArrayList<byte[]>();
+
+    EncodedRecord(final int recordLength)
+    {
+        this(new byte[recordLength]);
+    }
+
+    EncodedRecord(final byte[] bytes)
+    {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Returns the bytes of the record as stored in the table file, including the deletion flag.
+     *
+     * @return the record bytes
+     */
+    byte[] getBytes()
+    {
+        return bytes;
+    }
+
+    void addMemo(final Field field, final int offset, final byte[] memo)
+    {
+        memoFields.add(field);
+        memoOffsets.add(offset);
+        memos.add(memo);
+    }
+
+    int getMemoCount()
+    {
+        return memos.size();
+    }
+
+    Field getMemoField(final int i)
+    {
+        return memoFields.get(i);
+    }
+
+    int getMemoOffset(final int i)
+    {
+        return memoOffsets.get(i);
+    }
+
+    byte[] getMemo(final int i)
+    {
+        return memos.get(i);
+    }
+
+    /**
+     * Fills in the pointer to the <code>i</code>-th memo.
+     *
+     * @param i the index of the memo
+     * @param pointer the memo pointer, formatted to the length of the memo field
+     */
+    void setMemoPointer(final int i, final byte[] pointer)
+    {
+        System.arraycopy(pointer,
+                         0,
+                         bytes,
+                         memoOffsets.get(i),
+                         memoFields.get(i).getLength());
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+/**
+ * Computes the new value of a field from a record, for {@link Table#updateColumns(java.util.Map,
+ * RecordFilter)}.
+ */
+public interface FieldFunction
+{
+    /**
+     * Returns the new value of the field.
+     *
+     * @param record the record as it was before the update
+     * @return a {@link Value}, a Java object as accepted by {@link Table#addRecord(Object...)}, or
+     *         <code>null</code> to empty the field
+     */
+    Object apply(Record record);
+}
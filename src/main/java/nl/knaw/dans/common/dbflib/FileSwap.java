@@ -0,0 +1,127 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/*
+ * Moves a set of files of a table into place as one step. The moves are listed in the swap file of
+ * the table first, so that a swap that is interrupted can be completed when the table is opened.
+ */
+class FileSwap
+{
+    private final Table table;
+
+    FileSwap(final Table table)
+    {
+        this.table = table;
+    }
+
+    /*
+     * Moves each of sources over the corresponding target, as one step that open completes if it is
+     * interrupted. The sources must be complete, and in the directory of the table. The moves are
+     * first written to the swap file. If the process stops before the swap file is complete, the
+     * targets are left untouched; once it is, open moves the remaining sources into place.
+     */
+    void replaceFiles(final List<File> sources, final List<File> targets)
+               throws IOException
+    {
+        final File swapFile = table.getSwapFile();
+        final File tempSwapFile = new File(swapFile.getPath() + ".tmp");
+        final FileOutputStream fileOut = new FileOutputStream(tempSwapFile);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+
+        try
+        {
+            out.writeInt(sources.size());
+
+            for (int i = 0; i < sources.size(); ++i)
+            {
+                out.writeUTF(sources.get(i).getName());
+                out.writeUTF(targets.get(i).getName());
+            }
+
+            out.flush();
+
+            if (table.getDurability() != Durability.NONE)
+            {
+                fileOut.getChannel().force(true);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        Util.replaceFile(tempSwapFile, swapFile);
+
+        for (int i = 0; i < sources.size(); ++i)
+        {
+            table.moveFile(sources.get(i), targets.get(i));
+        }
+
+        swapFile.delete();
+    }
+
+    /*
+     * Finishes a swap of files that was interrupted, e.g. by a crash between moving the compacted
+     * memo file and the table file into place.
+     */
+    void complete()
+           throws IOException
+    {
+        final File swapFile = table.getSwapFile();
+
+        if (! swapFile.exists())
+        {
+            return;
+        }
+
+        final File directory = table.getTableFile().getAbsoluteFile().getParentFile();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(swapFile)));
+
+        try
+        {
+            final int nrOfFiles = in.readInt();
+
+            for (int i = 0; i < nrOfFiles; ++i)
+            {
+                final File source = new File(directory, in.readUTF());
+                final File target = new File(directory, in.readUTF());
+
+                if (source.exists())
+                {
+                    Util.replaceFile(source, target);
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        swapFile.delete();
+    }
+}
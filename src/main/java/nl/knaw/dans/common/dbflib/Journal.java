@@ -0,0 +1,220 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A redo journal of batches of record writes. Each batch is appended to the journal and forced to
+ * the storage device before it is applied to the table, so that a batch that has been written to
+ * the journal survives a crash. The header of the journal records up to where the batches have
+ * been applied; on opening the table the batches after that point are applied again.
+ * <p>
+ * Layout: a header consisting of a magic number and the offset of the first batch not yet
+ * applied, followed by the batches. Each batch consists of a magic number, the length of its
+ * payload, a CRC-32 checksum of the payload and the payload itself. A batch that is incomplete or
+ * does not match its checksum was not acknowledged, and ends the journal.
+ */
+class Journal
+{
+    private static final int MAGIC_JOURNAL = 0x44424a31; // "DBJ1"
+    private static final int MAGIC_BATCH = 0x42415443; // "BATC"
+    private static final int LENGTH_HEADER = 12;
+    private static final int LENGTH_BATCH_HEADER = 16;
+    private static final int OFFSET_APPLIED = 4;
+
+    private final File journalFile;
+    private RandomAccessFile raf = null;
+
+    Journal(final File journalFile)
+    {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Opens the journal, creating it if it does not exist.
+     *
+     * @throws IOException if the journal could not be opened
+     * @throws CorruptedTableException if the file is not a journal
+     */
+    synchronized void open()
+                    throws IOException, CorruptedTableException
+    {
+        final boolean exists = journalFile.exists() && journalFile.length() > 0;
+        raf = new RandomAccessFile(journalFile, "rw");
+
+        if (! exists)
+        {
+            reset();
+
+            return;
+        }
+
+        if (raf.length() < LENGTH_HEADER || raf.readInt() != MAGIC_JOURNAL)
+        {
+            raf.close();
+            raf = null;
+
+            throw new CorruptedTableException("Not a journal file: " + journalFile);
+        }
+    }
+
+    File getFile()
+    {
+        return journalFile;
+    }
+
+    /**
+     * Appends a batch to the journal and forces it to the storage device.
+     *
+     * @param payload the encoded batch
+     * @return the offset just after the batch
+     * @throws IOException if the batch could not be written
+     */
+    synchronized long append(final byte[] payload)
+                      throws IOException
+    {
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        final long offset = raf.length();
+        raf.seek(offset);
+        raf.writeInt(MAGIC_BATCH);
+        raf.writeInt(payload.length);
+        raf.writeLong(crc.getValue());
+        raf.write(payload);
+        raf.getChannel().force(false);
+
+        return raf.getFilePointer();
+    }
+
+    /**
+     * Records that the batches up to <code>offset</code> have been applied to the table. If no
+     * batches follow, the journal is emptied.
+     *
+     * @param offset the offset just after the last applied batch
+     * @throws IOException if the journal could not be written
+     */
+    synchronized void markApplied(final long offset)
+                           throws IOException
+    {
+        if (offset >= raf.length())
+        {
+            reset();
+
+            return;
+        }
+
+        raf.seek(OFFSET_APPLIED);
+        raf.writeLong(offset);
+        raf.getChannel().force(false);
+    }
+
+    /**
+     * Reads the batches that have not been applied yet, up to the first incomplete or corrupt one.
+     *
+     * @param endOffsets receives the offset just after each batch returned
+     * @return the payloads of the batches
+     * @throws IOException if the journal could not be read
+     */
+    synchronized List<byte[]> readUnapplied(final List<Long> endOffsets)
+                                     throws IOException
+    {
+        final List<byte[]> payloads = new ArrayList<byte[]>();
+        raf.seek(OFFSET_APPLIED);
+
+        long offset = Math.max(raf.readLong(), LENGTH_HEADER);
+
+        while (offset + LENGTH_BATCH_HEADER <= raf.length())
+        {
+            raf.seek(offset);
+
+            final int magic = raf.readInt();
+            final int length = raf.readInt();
+            final long checksum = raf.readLong();
+
+            if (magic != MAGIC_BATCH || length < 0 || offset + LENGTH_BATCH_HEADER + length > raf.length())
+            {
+                break;
+            }
+
+            final byte[] payload = new byte[length];
+            raf.readFully(payload);
+
+            final CRC32 crc = new CRC32();
+            crc.update(payload);
+
+            if (crc.getValue() != checksum)
+            {
+                break;
+            }
+
+            offset += LENGTH_BATCH_HEADER + length;
+            payloads.add(payload);
+            endOffsets.add(offset);
+        }
+
+        return payloads;
+    }
+
+    synchronized void close()
+                     throws IOException
+    {
+        if (raf != null)
+        {
+            try
+            {
+                raf.close();
+            }
+            finally
+            {
+                raf = null;
+            }
+        }
+    }
+
+    /**
+     * Closes and deletes the journal.
+     *
+     * @throws IOException if the journal could not be closed or deleted
+     */
+    synchronized void delete()
+                      throws IOException
+    {
+        close();
+
+        if (! journalFile.delete() && journalFile.exists())
+        {
+            throw new IOException("Could not delete journal " + journalFile);
+        }
+    }
+
+    private void reset()
+                throws IOException
+    {
+        raf.setLength(0);
+        raf.seek(0);
+        raf.writeInt(MAGIC_JOURNAL);
+        raf.writeLong(LENGTH_HEADER);
+        raf.getChannel().force(true);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * The values of a record stored in a block of records, decoded from the stored bytes only when
+ * they are asked for. Memo fields have no value, as the memo file is not read. The same map is
+ * moved from record to record, so that a bulk pass over the table does not decode the fields a
+ * filter does not look at.
+ */
+class LazyRecordValues
+    extends AbstractMap<String, Value>
+{
+    private final List<Field> fields;
+    private final int[] offsets;
+    private final String charsetName;
+    private final Map<String, Integer> fieldIndexes = new HashMap<String, Integer>();
+    private byte[] bytes = null;
+    private int offset = 0;
+
+    LazyRecordValues(final List<Field> fields, final int[] offsets, final String charsetName)
+    {
+        this.fields = fields;
+        this.offsets = offsets;
+        this.charsetName = charsetName;
+
+        for (int i = 0; i < fields.size(); ++i)
+        {
+            fieldIndexes.put(fields.get(i).getName(),
+                             i);
+        }
+    }
+
+    /*
+     * Moves the map to the record stored at offset in bytes.
+     */
+    void setRecord(final byte[] bytes, final int offset)
+    {
+        this.bytes = bytes;
+        this.offset = offset;
+    }
+
+    @Override
+    public boolean containsKey(final Object key)
+    {
+        return get(key) != null;
+    }
+
+    @Override
+    public Value get(final Object key)
+    {
+        final Integer fieldIndex = fieldIndexes.get(key);
+
+        if (fieldIndex == null)
+        {
+            return null;
+        }
+
+        final Field field = fields.get(fieldIndex);
+
+        return decodeValue(field,
+                           Util.getStringBytes(bytes,
+                                               offset + offsets[fieldIndex],
+                                               field.getLength()),
+                           charsetName);
+    }
+
+    @Override
+    public Set<Map.Entry<String, Value>> entrySet()
+    {
+        final Set<Map.Entry<String, Value>> entries = new LinkedHashSet<Map.Entry<String, Value>>();
+
+        for (final Field field : fields)
+        {
+            final Value value = get(field.getName());
+
+            if (value != null)
+            {
+                entries.add(new SimpleImmutableEntry<String, Value>(field.getName(), value));
+            }
+        }
+
+        return entries;
+    }
+
+    /*
+     * Converts the stored bytes of a field that does not keep its value in the memo file to a
+     * Value. Returns null for memo fields.
+     */
+    static Value decodeValue(final Field field, final byte[] rawData, final String charsetName)
+    {
+        switch (field.getType())
+        {
+            case NUMBER:
+            case FLOAT:
+                return new NumberValue(field, rawData);
+
+            case CHARACTER:
+                return new StringValue(field, rawData, charsetName);
+
+            case LOGICAL:
+                return new BooleanValue(field, rawData);
+
+            case DATE:
+                return new DateValue(field, rawData);
+
+            case MEMO:
+            case GENERAL:
+            case BINARY:
+            case PICTURE:
+                return null;
+
+            default:
+                throw new RuntimeException("Not all types handled");
+        }
+    }
+}
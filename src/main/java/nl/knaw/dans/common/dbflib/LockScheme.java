@@ -0,0 +1,83 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+/**
+ * Enumerates the conventions for locking records and tables in a multi-user setting. xBase
+ * programs do not lock the bytes of the records themselves, but bytes at agreed offsets far beyond
+ * the end of the file, one per record. Programs sharing a table must use the same convention.
+ */
+public enum LockScheme
+{
+    /**
+     * The convention of Clipper and dBase III PLUS. Record <i>n</i> (one-based) is locked at offset
+     * 1,000,000,000 + <i>n</i>. The table is locked at the 1,000,000,000 bytes starting at offset
+     * 1,000,000,000.
+     */
+    CLIPPER(1000000000L, 1, 1000000000L, 1000000000L),
+    /**
+     * The convention of FoxPro. Record <i>n</i> (one-based) is locked at offset 0x7FFFFFFE -
+     * <i>n</i>. The table is locked at the range that holds the lock bytes of all records.
+     */
+    FOXPRO(0x7FFFFFFEL, -1, 0x40000000L, 0x3FFFFFFFL);
+
+    private final long recordLockBase;
+    private final int recordLockDirection;
+    private final long tableLockOffset;
+    private final long tableLockLength;
+
+    LockScheme(final long recordLockBase, final int recordLockDirection, final long tableLockOffset,
+               final long tableLockLength)
+    {
+        this.recordLockBase = recordLockBase;
+        this.recordLockDirection = recordLockDirection;
+        this.tableLockOffset = tableLockOffset;
+        this.tableLockLength = tableLockLength;
+    }
+
+    /**
+     * Returns the lock scheme that the xBase program writing <code>version</code> uses.
+     *
+     * @param version the version of the table
+     * @return the corresponding lock scheme
+     */
+    public static LockScheme forVersion(final Version version)
+    {
+        return version == Version.FOXPRO_26 ? FOXPRO : CLIPPER;
+    }
+
+    /**
+     * Returns the offset of the byte to lock for the record at <code>index</code>.
+     *
+     * @param index the zero-based index of the record
+     * @return the lock offset
+     */
+    long getRecordLockOffset(final int index)
+    {
+        return recordLockBase + recordLockDirection * (index + 1L);
+    }
+
+    long getTableLockOffset()
+    {
+        return tableLockOffset;
+    }
+
+    long getTableLockLength()
+    {
+        return tableLockLength;
+    }
+}
@@ -21,6 +21,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Represents a memo (.DBT) file.
@@ -41,6 +43,7 @@ class Memo
      */
     private static final int DEFAULT_LENGTH_MEMO_BLOCK = 512;
     private static final int LENGTH_FILE_NAME = 8;
+    private static final int LENGTH_HEADER = 512;
 
     /*
      * Markers.
@@ -53,6 +56,12 @@ class Memo
     private final File memoFile;
     private RandomAccessFile raf = null;
     private int nextAvailableBlock = 0;
+
+    /*
+     * Runs of blocks released by memos that are no longer referenced, mapping the index of the first
+     * block of each run to its length in blocks. Adjacent runs are always merged.
+     */
+    private final TreeMap<Integer, Integer> freeBlockRuns = new TreeMap<Integer, Integer>();
     private int blockLength = DEFAULT_LENGTH_MEMO_BLOCK;
     private final Version version;
 
@@ -85,23 +94,16 @@ class Memo
 
             if (version == Version.FOXPRO_26)
             {
-                raf.skipBytes(4);
+                raf.seek(4);
                 blockLength = raf.readInt();
             }
+
+            readNextAvailableBlock();
         }
         else if (ifNonExistent.isCreate())
         {
             raf = new RandomAccessFile(memoFile, "rw");
-
-            if (version == Version.CLIPPER_5)
-            {
-                nextAvailableBlock = 2;
-            }
-            else
-            {
-                nextAvailableBlock = 1;
-            }
-
+            nextAvailableBlock = getFirstDataBlock();
             writeMemoHeader();
         }
         else if (ifNonExistent.isError())
@@ -110,6 +112,34 @@ class Memo
         }
     }
 
+    /**
+     * Reads the next available block from the header of the memo file, which another process may
+     * have advanced by adding memos.
+     *
+     * @throws IOException if the header could not be read
+     */
+    void readNextAvailableBlock()
+                         throws IOException
+    {
+        raf.seek(0);
+
+        if (version == Version.FOXPRO_26)
+        {
+            nextAvailableBlock = raf.readInt();
+        }
+        else
+        {
+            nextAvailableBlock = Util.changeEndianness(raf.readInt());
+        }
+
+        /*
+         * Some tools leave the next available block at zero. Never hand out blocks that overlap
+         * with the header.
+         */
+        nextAvailableBlock = Math.max(nextAvailableBlock,
+                                      getFirstDataBlock());
+    }
+
     /**
      * Closes the memo file for reading and writing.
      *
@@ -126,6 +156,17 @@ class Memo
         raf.close();
     }
 
+    /**
+     * Forces the writes to the memo file to the storage device.
+     *
+     * @throws IOException if the writes could not be forced
+     */
+    void force()
+        throws IOException
+    {
+        raf.getChannel().force(true);
+    }
+
     /**
      * Closes and deletes the underlying memo file.
      *
@@ -138,6 +179,16 @@ class Memo
         memoFile.delete();
     }
 
+    /**
+     * Returns the underlying .DBT (or .FPT) file.
+     *
+     * @return the memo file
+     */
+    File getFile()
+    {
+        return memoFile;
+    }
+
     /**
      * Reads a string of characters from memo file.
      *
@@ -151,7 +202,7 @@ class Memo
         int memoLength = 0;
         int c = 0;
 
-        raf.seek(blockIndex * blockLength);
+        raf.seek(getBlockOffset(blockIndex));
 
         switch (version)
         {
@@ -211,14 +262,15 @@ class Memo
     }
 
     /**
-     * Writes a string of characters to memo file.
+     * Writes a string of characters to memo file. If a run of released blocks is large enough to
+     * hold the memo, the first such run is reused. Otherwise the memo is appended.
      */
     int writeMemo(final byte[] memoBytes)
            throws IOException
     {
+        final int nrBlocksToWrite = getBlockCountForDataLength(memoBytes.length);
         final int nrBytesToWrite =
             memoBytes.length + version.getMemoFieldEndMarkerLength() + version.getMemoDataOffset();
-        int nrBlocksToWrite = nrBytesToWrite / blockLength + 1;
         int nrSpacesToPadLastBlock = blockLength - nrBytesToWrite % blockLength;
 
         /*
@@ -226,16 +278,15 @@ class Memo
          */
         if (nrSpacesToPadLastBlock == blockLength)
         {
-            nrSpacesToPadLastBlock = -blockLength;
-            --nrBlocksToWrite;
+            nrSpacesToPadLastBlock = 0;
         }
 
-        final int blockIndex = nextAvailableBlock;
+        final int blockIndex = allocateBlocks(nrBlocksToWrite);
 
         /*
          * Write the string and end of file markers.
          */
-        raf.seek(blockIndex * blockLength);
+        raf.seek(getBlockOffset(blockIndex));
 
         if (version == Version.DBASE_4 || version == Version.DBASE_5)
         {
@@ -265,16 +316,275 @@ class Memo
         /*
          * Pad the last block with zeros.
          */
-        for (int i = 0; i < nrSpacesToPadLastBlock; ++i)
+        raf.write(new byte[nrSpacesToPadLastBlock]);
+
+        return blockIndex;
+    }
+
+    /**
+     * Marks the blocks of the memo at <code>blockIndex</code> as free, so that they can be reused
+     * by {@link #writeMemo(byte[])}. The caller must make sure the memo is no longer referenced.
+     * Pointers that do not point to a readable memo are ignored.
+     *
+     * @param blockIndex the index of the first block of the memo
+     *
+     * @throws IOException if the memo file could not be read
+     */
+    void releaseMemo(final int blockIndex)
+              throws IOException
+    {
+        if (blockIndex < getFirstDataBlock() || blockIndex >= nextAvailableBlock || isReleased(blockIndex))
         {
-            raf.writeByte(0x00);
+            return;
         }
 
-        /*
-         * Update next available block to write.
-         */
+        final int runLength;
+
+        try
+        {
+            runLength = Math.min(getBlockCount(blockIndex),
+                                 nextAvailableBlock - blockIndex);
+        }
+        catch (final CorruptedTableException corruptedTableException)
+        {
+            return;
+        }
+
+        int start = blockIndex;
+        int length = runLength;
+        final Integer nextRunLength = freeBlockRuns.remove(blockIndex + runLength);
+
+        if (nextRunLength != null)
+        {
+            length += nextRunLength;
+        }
+
+        final Map.Entry<Integer, Integer> previousRun = freeBlockRuns.lowerEntry(blockIndex);
+
+        if (previousRun != null && previousRun.getKey() + previousRun.getValue() == blockIndex)
+        {
+            start = previousRun.getKey();
+            length += previousRun.getValue();
+        }
+
+        freeBlockRuns.put(start, length);
+    }
+
+    private boolean isReleased(final int blockIndex)
+    {
+        final Map.Entry<Integer, Integer> run = freeBlockRuns.floorEntry(blockIndex);
+
+        return run != null && run.getKey() + run.getValue() > blockIndex;
+    }
+
+    /*
+     * Returns the index of the first block of a run of nrBlocks free blocks, taken from the
+     * released runs if possible, from the end of the file otherwise.
+     */
+    private int allocateBlocks(final int nrBlocks)
+                        throws IOException
+    {
+        for (final Map.Entry<Integer, Integer> run : freeBlockRuns.entrySet())
+        {
+            final int blockIndex = run.getKey();
+            final int runLength = run.getValue();
+
+            if (runLength >= nrBlocks)
+            {
+                freeBlockRuns.remove(blockIndex);
+
+                if (runLength > nrBlocks)
+                {
+                    freeBlockRuns.put(blockIndex + nrBlocks, runLength - nrBlocks);
+                }
+
+                return blockIndex;
+            }
+        }
+
+        final int blockIndex = nextAvailableBlock;
+        nextAvailableBlock += nrBlocks;
+        writeNextAvailableBlock();
+
+        return blockIndex;
+    }
+
+    /**
+     * Returns the number of blocks occupied by the memo that starts at <code>blockIndex</code>.
+     *
+     * @param blockIndex the index of the first block of the memo
+     * @return the number of blocks
+     *
+     * @throws IOException if the memo file could not be read
+     * @throws CorruptedTableException if the memo runs past the end of the file
+     */
+    int getBlockCount(final int blockIndex)
+               throws IOException, CorruptedTableException
+    {
+        final int dataLength;
+
+        if (version == Version.DBASE_3 || version == Version.CLIPPER_5)
+        {
+            /*
+             * No length prefix, so the end marker must be looked up.
+             */
+            dataLength = readMemo(blockIndex).length;
+        }
+        else
+        {
+            raf.seek(getBlockOffset(blockIndex));
+            raf.skipBytes(4);
+
+            if (version == Version.FOXPRO_26)
+            {
+                dataLength = raf.readInt();
+            }
+            else
+            {
+                dataLength = Util.changeEndianness(raf.readInt()) - version.getMemoDataOffset();
+            }
+        }
+
+        return getBlockCountForDataLength(dataLength);
+    }
+
+    /**
+     * Creates a new memo file with the same header as this one but without any memos in it. The
+     * returned <code>Memo</code> is open for writing. Use {@link #copyBlocksTo(Memo, int)} to fill
+     * it.
+     *
+     * @param copyFile the file to create
+     * @return the new, empty memo
+     *
+     * @throws IOException if the new file could not be written
+     */
+    Memo createEmptyCopy(final File copyFile)
+                  throws IOException
+    {
+        final byte[] headerBytes = new byte[getFirstDataBlock() * blockLength];
+        readAvailable(0, headerBytes);
+
+        final Memo copy = new Memo(copyFile, version);
+        copy.raf = new RandomAccessFile(copyFile, "rw");
+        copy.raf.setLength(0);
+        copy.raf.write(headerBytes);
+        copy.blockLength = blockLength;
+        copy.nextAvailableBlock = getFirstDataBlock();
+        copy.writeNextAvailableBlock();
+
+        return copy;
+    }
+
+    /**
+     * Copies the blocks of the memo at <code>blockIndex</code> verbatim to the end of
+     * <code>target</code>. Both memo files must have the same version and block length.
+     *
+     * @param target the memo to copy to
+     * @param blockIndex the index of the first block of the memo to copy
+     * @return the block index of the copy in <code>target</code>
+     *
+     * @throws IOException if one of the memo files could not be read or written
+     * @throws CorruptedTableException if the memo to copy is corrupt
+     */
+    int copyBlocksTo(final Memo target, final int blockIndex)
+              throws IOException, CorruptedTableException
+    {
+        return target.appendBlocks(readBlocks(blockIndex));
+    }
+
+    /**
+     * Reads the blocks of the memo at <code>blockIndex</code> as they are stored, so that they can
+     * be appended to another memo file with {@link #appendBlocks(byte[])}.
+     *
+     * @param blockIndex the index of the first block of the memo
+     * @return the blocks of the memo
+     *
+     * @throws IOException if the memo file could not be read
+     * @throws CorruptedTableException if the memo is corrupt
+     */
+    byte[] readBlocks(final int blockIndex)
+               throws IOException, CorruptedTableException
+    {
+        final byte[] blocks = new byte[getBlockCount(blockIndex) * blockLength];
+        readAvailable(getBlockOffset(blockIndex), blocks);
+
+        return blocks;
+    }
+
+    /**
+     * Writes blocks read from a memo file with the same version and block length to the end of
+     * this memo file.
+     *
+     * @param blocks the blocks to write
+     * @return the index of the first block written
+     *
+     * @throws IOException if the memo file could not be written
+     */
+    int appendBlocks(final byte[] blocks)
+              throws IOException
+    {
+        final int blockIndex = nextAvailableBlock;
+        raf.seek(getBlockOffset(blockIndex));
+        raf.write(blocks);
+        nextAvailableBlock += blocks.length / blockLength;
+        writeNextAvailableBlock();
+
+        return blockIndex;
+    }
+
+    int getBlockLength()
+    {
+        return blockLength;
+    }
+
+    /*
+     * Fills buffer with the bytes starting at offset. The last block of a memo file is not always
+     * padded, so hitting the end of the file is not an error here; the rest of the buffer is left
+     * zero.
+     */
+    private void readAvailable(final long offset, final byte[] buffer)
+                        throws IOException
+    {
+        raf.seek(offset);
+
+        int n = 0;
+        int read;
+
+        while (n < buffer.length && (read = raf.read(buffer, n, buffer.length - n)) != -1)
+        {
+            n += read;
+        }
+    }
+
+    /*
+     * Computed as a long, as memo files can be larger than 2 GB.
+     */
+    private long getBlockOffset(final int blockIndex)
+    {
+        return (long) blockIndex * blockLength;
+    }
+
+    private int getBlockCountForDataLength(final int dataLength)
+    {
+        final int nrBytes = dataLength + version.getMemoFieldEndMarkerLength() + version.getMemoDataOffset();
+
+        return (nrBytes + blockLength - 1) / blockLength;
+    }
+
+    private int getFirstDataBlock()
+    {
+        if (version == Version.CLIPPER_5)
+        {
+            return 2;
+        }
+
+        return Math.max(1, (LENGTH_HEADER + blockLength - 1) / blockLength);
+    }
+
+    private void writeNextAvailableBlock()
+                                  throws IOException
+    {
         raf.seek(OFFSET_NEXT_AVAILABLE_BLOCK_INDEX);
-        nextAvailableBlock += nrBlocksToWrite;
 
         if (version == Version.FOXPRO_26)
         {
@@ -284,8 +594,6 @@ class Memo
         {
             raf.writeInt(Util.changeEndianness(nextAvailableBlock));
         }
-
-        return blockIndex;
     }
 
     /*
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Reads batches of records of a table in the order of the table file. Records that are near each
+ * other are read together, including the records between them, either synchronously or through an
+ * asynchronous channel with all reads started at once.
+ */
+class RecordBatchReader
+{
+    private static final int LENGTH_READ_GAP = 8192;
+
+    /*
+     * Reads a range of the table file asynchronously, issuing further reads until the buffer is
+     * full.
+     */
+    private abstract static class AsyncRead
+        implements CompletionHandler<Integer, Void>
+    {
+        private final AsynchronousFileChannel channel;
+        private final ByteBuffer buffer;
+        private final long position;
+
+        AsyncRead(final AsynchronousFileChannel channel, final byte[] bytes, final long position)
+        {
+            this.channel = channel;
+            buffer = ByteBuffer.wrap(bytes);
+            this.position = position;
+        }
+
+        void start()
+        {
+            channel.read(buffer, position, null, this);
+        }
+
+        public void completed(final Integer nrOfBytes, final Void unused)
+        {
+            if (nrOfBytes < 0)
+            {
+                failed(new EOFException("Unexpected end of table file"), null);
+            }
+            else if (buffer.hasRemaining())
+            {
+                channel.read(buffer,
+                             position + buffer.position(),
+                             null,
+                             this);
+            }
+            else
+            {
+                readDone();
+            }
+        }
+
+        abstract void readDone();
+    }
+
+    private final Table table;
+
+    /*
+     * Opened by the first asynchronous read. Guarded by the monitor of this reader.
+     */
+    private AsynchronousFileChannel asyncChannel = null;
+
+    RecordBatchReader(final Table table)
+    {
+        this.table = table;
+    }
+
+    /*
+     * Reads the records at the sorted indexes, see sortIndexes. The caller holds the read locks of
+     * the header and of all record stripes.
+     */
+    Record[] read(final long[] sorted)
+           throws IOException, CorruptedTableException
+    {
+        checkIndexes(sorted);
+
+        final int recordLength = table.getHeader().getRecordLength();
+        final byte[] block = new byte[Math.max(1, Table.LENGTH_IO_BLOCK / recordLength) * recordLength];
+
+        /*
+         * The bytes of the records, by position in indexes, so that the memos of all of them can be
+         * read in one pass.
+         */
+        final byte[] recordBytes = new byte[sorted.length * recordLength];
+
+        for (int i = 0; i < sorted.length;)
+        {
+            final int end = getReadGroupEnd(sorted, i);
+            final int first = (int) (sorted[i] >>> 32);
+            table.readTableBytesAt(table.getRecordOffset(first),
+                                   block,
+                                   0,
+                                   ((int) (sorted[end - 1] >>> 32) - first + 1) * recordLength);
+            copyReadGroup(block, sorted, i, end, recordBytes);
+            i = end;
+        }
+
+        return table.decodeRecords(recordBytes, sorted.length);
+    }
+
+    /*
+     * Starts reading the records at indexes, see Table.getRecordsAtAsync(int[], Object,
+     * CompletionHandler).
+     */
+    <A> void readAsync(final int[] indexes, final A attachment, final CompletionHandler<Record[], ? super A> handler)
+                throws IOException
+    {
+        final AsynchronousFileChannel channel = getAsyncChannel();
+        final long[] sorted = sortIndexes(indexes);
+        final int recordLength;
+        final List<Integer> groupStarts = new ArrayList<Integer>();
+        final List<Long> groupOffsets = new ArrayList<Long>();
+
+        table.getHeaderLock().readLock().lock();
+
+        try
+        {
+            checkIndexes(sorted);
+            recordLength = table.getHeader().getRecordLength();
+
+            for (int i = 0; i < sorted.length; i = getReadGroupEnd(sorted, i))
+            {
+                groupStarts.add(i);
+                groupOffsets.add(table.getRecordOffset((int) (sorted[i] >>> 32)));
+            }
+        }
+        finally
+        {
+            table.getHeaderLock().readLock().unlock();
+        }
+
+        groupStarts.add(sorted.length);
+
+        final byte[] recordBytes = new byte[indexes.length * recordLength];
+        final AtomicInteger pendingReads = new AtomicInteger(groupOffsets.size());
+        final AtomicBoolean failed = new AtomicBoolean(false);
+
+        final Runnable decode =
+            new Runnable()
+            {
+                public void run()
+                {
+                    final Record[] records;
+
+                    try
+                    {
+                        records = table.decodeRecords(recordBytes, indexes.length);
+                    }
+                    catch (final IOException ioException)
+                    {
+                        handler.failed(ioException, attachment);
+
+                        return;
+                    }
+                    catch (final CorruptedTableException corruptedTableException)
+                    {
+                        handler.failed(corruptedTableException, attachment);
+
+                        return;
+                    }
+                    catch (final IllegalStateException illegalStateException)
+                    {
+                        /*
+                         * The table has been closed in the meantime.
+                         */
+                        handler.failed(illegalStateException, attachment);
+
+                        return;
+                    }
+
+                    handler.completed(records, attachment);
+                }
+            };
+
+        if (groupOffsets.isEmpty())
+        {
+            decode.run();
+
+            return;
+        }
+
+        for (int group = 0; group < groupOffsets.size(); ++group)
+        {
+            final int start = groupStarts.get(group);
+            final int end = groupStarts.get(group + 1);
+            final byte[] block =
+                new byte[((int) (sorted[end - 1] >>> 32) - (int) (sorted[start] >>> 32) + 1) * recordLength];
+
+            new AsyncRead(channel,
+                          block,
+                          groupOffsets.get(group))
+                {
+                    void readDone()
+                    {
+                        copyReadGroup(block, sorted, start, end, recordBytes);
+
+                        if (pendingReads.decrementAndGet() == 0 && ! failed.get())
+                        {
+                            decode.run();
+                        }
+                    }
+
+                    public void failed(final Throwable exception, final Void unused)
+                    {
+                        if (failed.compareAndSet(false, true))
+                        {
+                            handler.failed(exception, attachment);
+                        }
+                    }
+                }.start();
+        }
+    }
+
+    private synchronized AsynchronousFileChannel getAsyncChannel()
+                                                          throws IOException
+    {
+        table.checkOpen();
+
+        if (asyncChannel == null)
+        {
+            asyncChannel = AsynchronousFileChannel.open(table.getTableFile().toPath(), StandardOpenOption.READ);
+        }
+
+        return asyncChannel;
+    }
+
+    /*
+     * Closes the asynchronous channel, if it was opened. Pending reads fail.
+     */
+    synchronized void close()
+                     throws IOException
+    {
+        if (asyncChannel != null)
+        {
+            try
+            {
+                asyncChannel.close();
+            }
+            finally
+            {
+                asyncChannel = null;
+            }
+        }
+    }
+
+    /*
+     * Sorts the indexes along with their positions, packed into longs.
+     */
+    static long[] sortIndexes(final int[] indexes)
+    {
+        final long[] sorted = new long[indexes.length];
+
+        for (int i = 0; i < indexes.length; ++i)
+        {
+            if (indexes[i] < 0)
+            {
+                throw new NoSuchElementException(String.format("Invalid index: %d", indexes[i]));
+            }
+
+            sorted[i] = (long) indexes[i] << 32 | i;
+        }
+
+        Arrays.sort(sorted);
+
+        return sorted;
+    }
+
+    private void checkIndexes(final long[] sorted)
+    {
+        if (sorted.length > 0 && (int) (sorted[sorted.length - 1] >>> 32) >= table.getHeader().getRecordCount())
+        {
+            throw new NoSuchElementException(String.format("Invalid index: %d",
+                                                           (int) (sorted[sorted.length - 1] >>> 32)));
+        }
+    }
+
+    /*
+     * Returns the end of the group of sorted indexes starting at start that are read together: the
+     * records are less than a block apart in all, and less than LENGTH_READ_GAP apart each.
+     */
+    private int getReadGroupEnd(final long[] sorted, final int start)
+    {
+        final int recordLength = table.getHeader().getRecordLength();
+        final int recordsPerBlock = Math.max(1, Table.LENGTH_IO_BLOCK / recordLength);
+        final int maxGap = LENGTH_READ_GAP / recordLength + 1;
+        final int first = (int) (sorted[start] >>> 32);
+        int end = start + 1;
+
+        while (end < sorted.length && (int) (sorted[end] >>> 32) - first < recordsPerBlock
+                   && (int) (sorted[end] >>> 32) - (int) (sorted[end - 1] >>> 32) <= maxGap)
+        {
+            ++end;
+        }
+
+        return end;
+    }
+
+    /*
+     * Copies the records of a group read into block to their positions in recordBytes.
+     */
+    private void copyReadGroup(final byte[] block, final long[] sorted, final int start, final int end,
+                               final byte[] recordBytes)
+    {
+        final int recordLength = table.getHeader().getRecordLength();
+        final int first = (int) (sorted[start] >>> 32);
+
+        for (int i = start; i < end; ++i)
+        {
+            System.arraycopy(block,
+                             ((int) (sorted[i] >>> 32) - first) * recordLength,
+                             recordBytes,
+                             (int) sorted[i] * recordLength,
+                             recordLength);
+        }
+    }
+}
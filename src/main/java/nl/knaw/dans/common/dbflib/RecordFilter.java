@@ -0,0 +1,33 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+/**
+ * Selects records for bulk operations on a table. The records passed to a filter are read straight
+ * from the table file, without reading the memo file: the values of memo fields are always
+ * <code>null</code>.
+ */
+public interface RecordFilter
+{
+    /**
+     * Returns whether the operation applies to <code>record</code>.
+     *
+     * @param record the record, without the values of its memo fields
+     * @return whether to select the record
+     */
+    boolean accept(Record record);
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Extracts the values of key fields from stored records and compares them, for sorting records
+ * without decoding them entirely. Keys are compared field by field: numbers by value, character
+ * fields by their text without trailing spaces, dates by date and logical fields false before
+ * true. Empty values come first.
+ * <p>
+ * Keys can also be encoded into a fixed number of bytes that sort in the same order when compared
+ * byte by byte, so that many keys can be held and sorted in one byte array.
+ */
+class RecordKeys
+    implements Comparator<Object[]>
+{
+    /*
+     * Below this number of keys, sorting is not split over more threads.
+     */
+    private static final int PARALLEL_SORT_THRESHOLD = 8192;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    /*
+     * Sorts a range of positions of encoded keys with a merge sort, forking the halves of large
+     * ranges.
+     */
+    private class MergeSort
+        extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        private final byte[] keys;
+        private final int[] positions;
+        private final int[] buffer;
+        private final int from;
+        private final int to;
+
+        MergeSort(final byte[] keys, final int[] positions, final int[] buffer, final int from, final int to)
+        {
+            this.keys = keys;
+            this.positions = positions;
+            this.buffer = buffer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= PARALLEL_SORT_THRESHOLD)
+            {
+                sort(keys, positions, buffer, from, to);
+
+                return;
+            }
+
+            final int middle = (from + to) >>> 1;
+            invokeAll(new MergeSort(keys, positions, buffer, from, middle),
+                      new MergeSort(keys, positions, buffer, middle, to));
+            merge(keys, positions, buffer, from, middle, to);
+        }
+    }
+
+    private final Field[] fields;
+    private final int[] offsets;
+    private final String charsetName;
+    private final int direction;
+    private final int encodedLength;
+
+    RecordKeys(final List<Field> fields, final int[] offsets, final String charsetName, final SortOrder order)
+    {
+        this.fields = fields.toArray(new Field[fields.size()]);
+        this.offsets = offsets.clone();
+        this.charsetName = charsetName;
+        direction = order == SortOrder.DESCENDING ? -1 : 1;
+
+        for (final Field field : fields)
+        {
+            if (field.getType() != Type.CHARACTER && field.getType() != Type.NUMBER && field.getType() != Type.FLOAT
+                    && field.getType() != Type.DATE && field.getType() != Type.LOGICAL)
+            {
+                throw new IllegalArgumentException("Cannot sort by " + field.getType() + " field " + field.getName());
+            }
+        }
+
+        int length = 0;
+
+        for (final Field field : fields)
+        {
+            length += 1 + getEncodedValueLength(field);
+        }
+
+        encodedLength = length;
+    }
+
+    /*
+     * Characters take two bytes each, numbers a sign, an exponent of four bytes and their digits.
+     */
+    private static int getEncodedValueLength(final Field field)
+    {
+        switch (field.getType())
+        {
+            case NUMBER:
+            case FLOAT:
+                return 5 + field.getLength();
+
+            case LOGICAL:
+                return 1;
+
+            default:
+                return 2 * field.getLength();
+        }
+    }
+
+    /**
+     * Returns the number of bytes of an encoded key.
+     *
+     * @return the length of an encoded key
+     */
+    int getEncodedLength()
+    {
+        return encodedLength;
+    }
+
+    /**
+     * Encodes the key of the record stored at <code>offset</code> in <code>bytes</code> into
+     * {@link #getEncodedLength()} bytes of <code>target</code>. Each value is preceded by a byte
+     * that is 0 for empty values and 1 otherwise.
+     *
+     * @param bytes the bytes holding the record
+     * @param offset the offset of the record, i.e. of its deletion flag
+     * @param target the array to encode the key into
+     * @param targetOffset the offset in <code>target</code> to encode the key at
+     */
+    void encode(final byte[] bytes, final int offset, final byte[] target, final int targetOffset)
+    {
+        Arrays.fill(target, targetOffset, targetOffset + encodedLength, (byte) 0);
+
+        int position = targetOffset;
+
+        for (int i = 0; i < fields.length; ++i)
+        {
+            final Object value = extractValue(fields[i], bytes, offset + offsets[i]);
+
+            if (value != null)
+            {
+                target[position] = 1;
+                encodeValue(fields[i], value, target, position + 1);
+            }
+
+            position += 1 + getEncodedValueLength(fields[i]);
+        }
+    }
+
+    private static void encodeValue(final Field field, final Object value, final byte[] target, final int offset)
+    {
+        if (value instanceof Boolean)
+        {
+            target[offset] = (byte) ((Boolean) value ? 1 : 0);
+        }
+        else if (value instanceof BigDecimal)
+        {
+            encodeNumber(field, (BigDecimal) value, target, offset);
+        }
+        else
+        {
+            /*
+             * UTF-16 code units, big-endian, compare as String.compareTo does.
+             */
+            final String text = (String) value;
+
+            for (int i = 0; i < Math.min(text.length(), field.getLength()); ++i)
+            {
+                target[offset + 2 * i] = (byte) (text.charAt(i) >>> 8);
+                target[offset + 2 * i + 1] = (byte) text.charAt(i);
+            }
+        }
+    }
+
+    /*
+     * Zero, negative and positive numbers are told apart by the first byte. The others hold the
+     * exponent and the digits of the number in scientific notation, which are inverted for negative
+     * numbers, so that a larger magnitude sorts first.
+     */
+    private static void encodeNumber(final Field field, final BigDecimal number, final byte[] target, final int offset)
+    {
+        if (number.signum() == 0)
+        {
+            target[offset] = 1;
+
+            return;
+        }
+
+        final BigDecimal stripped = number.stripTrailingZeros();
+        final String digits = stripped.unscaledValue().abs().toString();
+        final int exponent = digits.length() - stripped.scale() - 1;
+        target[offset] = (byte) (number.signum() > 0 ? 2 : 0);
+        target[offset + 1] = (byte) ((exponent >>> 24) ^ 0x80);
+        target[offset + 2] = (byte) (exponent >>> 16);
+        target[offset + 3] = (byte) (exponent >>> 8);
+        target[offset + 4] = (byte) exponent;
+
+        for (int i = 0; i < Math.min(digits.length(), field.getLength()); ++i)
+        {
+            target[offset + 5 + i] = (byte) digits.charAt(i);
+        }
+
+        if (number.signum() < 0)
+        {
+            for (int i = offset + 1; i < offset + 5 + field.getLength(); ++i)
+            {
+                target[i] = (byte) ~target[i];
+            }
+        }
+    }
+
+    /**
+     * Compares two encoded keys.
+     *
+     * @param keys1 the bytes holding the first key
+     * @param offset1 the offset of the first key
+     * @param keys2 the bytes holding the second key
+     * @param offset2 the offset of the second key
+     * @return a negative number, zero or a positive number if the first key sorts before, with or
+     *         after the second
+     */
+    int compareEncoded(final byte[] keys1, final int offset1, final byte[] keys2, final int offset2)
+    {
+        for (int i = 0; i < encodedLength; ++i)
+        {
+            final int result = (keys1[offset1 + i] & 0xFF) - (keys2[offset2 + i] & 0xFF);
+
+            if (result != 0)
+            {
+                return direction * result;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Returns the key of the record stored at <code>offset</code> in <code>bytes</code>.
+     *
+     * @param bytes the bytes holding the record
+     * @param offset the offset of the record, i.e. of its deletion flag
+     * @return the key values, with <code>null</code> for empty values
+     */
+    Object[] extract(final byte[] bytes, final int offset)
+    {
+        final Object[] key = new Object[fields.length];
+
+        for (int i = 0; i < fields.length; ++i)
+        {
+            key[i] = extractValue(fields[i], bytes, offset + offsets[i]);
+        }
+
+        return key;
+    }
+
+    private Object extractValue(final Field field, final byte[] bytes, final int offset)
+    {
+        int end = offset + field.getLength();
+
+        while (end > offset && (bytes[end - 1] == ' ' || bytes[end - 1] == 0))
+        {
+            --end;
+        }
+
+        if (end == offset)
+        {
+            return null;
+        }
+
+        switch (field.getType())
+        {
+            case NUMBER:
+            case FLOAT:
+
+                final String number = new String(bytes, offset, end - offset).trim();
+
+                try
+                {
+                    return new BigDecimal(number);
+                }
+                catch (final NumberFormatException numberFormatException)
+                {
+                    /*
+                     * E.g. a lone decimal point, which NumberValue also reads as empty.
+                     */
+                    return null;
+                }
+
+            case LOGICAL:
+
+                final char c = (char) bytes[offset];
+
+                return (c == 'Y') || (c == 'y') || (c == 'T') || (c == 't');
+
+            case DATE:
+                return new String(bytes, offset, end - offset);
+
+            default:
+
+                final byte[] text = new byte[end - offset];
+                System.arraycopy(bytes, offset, text, 0, text.length);
+
+                return Util.createString(text, charsetName);
+        }
+    }
+
+    /**
+     * Returns the positions of the first <code>nrOfKeys</code> encoded keys in <code>keys</code>,
+     * in the order of their keys. Positions with equal keys keep their order, so that the sort is
+     * stable. Large arrays are sorted on several threads.
+     *
+     * @param keys the encoded keys to sort, one after another
+     * @param nrOfKeys the number of keys
+     * @return the positions of the keys, sorted
+     */
+    int[] sortedPositions(final byte[] keys, final int nrOfKeys)
+    {
+        final int[] positions = new int[nrOfKeys];
+
+        for (int i = 0; i < positions.length; ++i)
+        {
+            positions[i] = i;
+        }
+
+        final int[] buffer = new int[nrOfKeys];
+
+        if (nrOfKeys <= PARALLEL_SORT_THRESHOLD)
+        {
+            sort(keys, positions, buffer, 0, nrOfKeys);
+        }
+        else
+        {
+            final ForkJoinPool pool = new ForkJoinPool();
+
+            try
+            {
+                pool.invoke(new MergeSort(keys, positions, buffer, 0, nrOfKeys));
+            }
+            finally
+            {
+                pool.shutdown();
+            }
+        }
+
+        return positions;
+    }
+
+    private void sort(final byte[] keys, final int[] positions, final int[] buffer, final int from, final int to)
+    {
+        if (to - from <= INSERTION_SORT_THRESHOLD)
+        {
+            for (int i = from + 1; i < to; ++i)
+            {
+                final int position = positions[i];
+                int j = i;
+
+                while (j > from && comparePositions(keys, positions[j - 1], position) > 0)
+                {
+                    positions[j] = positions[j - 1];
+                    --j;
+                }
+
+                positions[j] = position;
+            }
+
+            return;
+        }
+
+        final int middle = (from + to) >>> 1;
+        sort(keys, positions, buffer, from, middle);
+        sort(keys, positions, buffer, middle, to);
+        merge(keys, positions, buffer, from, middle, to);
+    }
+
+    private void merge(final byte[] keys, final int[] positions, final int[] buffer, final int from,
+                       final int middle, final int to)
+    {
+        if (comparePositions(keys, positions[middle - 1], positions[middle]) <= 0)
+        {
+            return;
+        }
+
+        System.arraycopy(positions, from, buffer, from, to - from);
+
+        int i = from;
+        int j = middle;
+
+        for (int k = from; k < to; ++k)
+        {
+            if (j >= to || (i < middle && comparePositions(keys, buffer[i], buffer[j]) <= 0))
+            {
+                positions[k] = buffer[i++];
+            }
+            else
+            {
+                positions[k] = buffer[j++];
+            }
+        }
+    }
+
+    private int comparePositions(final byte[] keys, final int position1, final int position2)
+    {
+        final int result = compareEncoded(keys, position1 * encodedLength, keys, position2 * encodedLength);
+
+        return result != 0 ? result : position1 - position2;
+    }
+
+    @SuppressWarnings("unchecked")
+    public int compare(final Object[] key1, final Object[] key2)
+    {
+        for (int i = 0; i < key1.length; ++i)
+        {
+            final Comparable<Object> value1 = (Comparable<Object>) key1[i];
+            final Object value2 = key2[i];
+            final int result;
+
+            if (value1 == null)
+            {
+                result = value2 == null ? 0 : -1;
+            }
+            else if (value2 == null)
+            {
+                result = 1;
+            }
+            else
+            {
+                result = value1.compareTo(value2);
+            }
+
+            if (result != 0)
+            {
+                return direction * result;
+            }
+        }
+
+        return 0;
+    }
+}
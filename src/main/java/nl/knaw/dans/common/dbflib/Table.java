@@ -16,17 +16,46 @@
  */
 package nl.knaw.dans.common.dbflib;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
 import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Represents a single table in a xBase database. A table is represented by a single
@@ -37,10 +66,38 @@ import java.util.NoSuchElementException;
  */
 public class Table
 {
-    private static final int MARKER_RECORD_DELETED = 0x2A;
-    private static final int MARKER_EOF = 0x1A;
+    static final int MARKER_RECORD_DELETED = 0x2A;
+    static final int MARKER_EOF = 0x1A;
     private static final int MARKER_RECORD_VALID = 0x20;
 
+    /*
+     * The preferred number of bytes to read or write at a time when processing many records.
+     */
+    static final int LENGTH_IO_BLOCK = 65536;
+
+    /*
+     * The largest number of unrequested bytes between two records that are still read together
+     * when fetching a batch of records, rather than with separate reads.
+     */
+
+    /*
+     * The number of records per encoding thread that addRecords may encode ahead of the writer.
+     */
+    private static final int NR_RECORDS_ENCODED_AHEAD = 64;
+
+    /*
+     * The number of locks that records are distributed over.
+     */
+    private static final int NR_RECORD_STRIPES = 64;
+    private static final int DEFAULT_GROUP_COMMIT_RECORDS = 1000;
+    private static final long DEFAULT_GROUP_COMMIT_MILLIS = 1000;
+
+    /*
+     * The memory sortTable uses for sorting records if no other budget is specified.
+     */
+    private static final long DEFAULT_SORT_MEMORY = 64L * 1024 * 1024;
+
+
     private class RecordIterator
         implements Iterator<Record>
     {
@@ -74,8 +131,7 @@ public class Table
 
             do
             {
-                jumpToRecordAt(index++);
-                b = raFile.readByte();
+                b = readDeletionFlag(index++);
 
                 if (b == MARKER_RECORD_VALID)
                 {
@@ -144,12 +200,186 @@ public class Table
         }
     }
 
+    /*
+     * Iterates over the records from a first index up to a fixed record count, reading a block of
+     * records at a time. Optionally, the memos of a block are read along with it, in the order of
+     * the memo file. In reverse, the records are returned from the last one down to the first index.
+     */
+    private class SnapshotIterator
+        implements Iterator<Record>
+    {
+        private final int firstIndex;
+        private final int recordCount;
+        private final boolean includeDeleted;
+        private final boolean memosInBlockOrder;
+        private final boolean reverse;
+        private final byte[] block;
+        private int blockFirst = 0;
+        private int blockRecordCount = 0;
+        private int nextIndex;
+        private Map<Integer, byte[]> blockMemos = null;
+
+        SnapshotIterator(final int firstIndex, final int recordCount, final boolean includeDeleted)
+        {
+            this(firstIndex, recordCount, includeDeleted, false, false);
+        }
+
+        SnapshotIterator(final int firstIndex, final int recordCount, final boolean includeDeleted,
+                         final boolean memosInBlockOrder, final boolean reverse)
+        {
+            this.firstIndex = firstIndex;
+            nextIndex = reverse ? recordCount - 1 : firstIndex;
+            this.recordCount = recordCount;
+            this.includeDeleted = includeDeleted;
+            this.memosInBlockOrder = memosInBlockOrder && hasMemoFields(header.getFields());
+            this.reverse = reverse;
+            block = new byte[Math.max(LENGTH_IO_BLOCK / header.getRecordLength(), 1) * header.getRecordLength()];
+        }
+
+        public boolean hasNext()
+        {
+            try
+            {
+                while (nextIndex >= firstIndex && nextIndex < recordCount)
+                {
+                    if (nextIndex < blockFirst || nextIndex >= blockFirst + blockRecordCount)
+                    {
+                        readBlock();
+                    }
+
+                    if (includeDeleted || getBlockByte(nextIndex) != MARKER_RECORD_DELETED)
+                    {
+                        return true;
+                    }
+
+                    nextIndex += reverse ? -1 : 1;
+                }
+
+                return false;
+            }
+            catch (final IOException ioException)
+            {
+                throw new RuntimeException(ioException.getMessage(), ioException);
+            }
+        }
+
+        private void readBlock()
+                        throws IOException
+        {
+            final int recordsPerBlock = block.length / header.getRecordLength();
+
+            if (reverse)
+            {
+                blockFirst = Math.max(firstIndex, nextIndex + 1 - recordsPerBlock);
+                blockRecordCount = nextIndex + 1 - blockFirst;
+            }
+            else
+            {
+                blockFirst = nextIndex;
+                blockRecordCount = Math.min(recordsPerBlock, recordCount - blockFirst);
+            }
+
+            Util.readFully(raFile.getChannel(),
+                           ByteBuffer.wrap(block, 0, blockRecordCount * header.getRecordLength()),
+                           getRecordOffset(blockFirst));
+
+            if (memosInBlockOrder)
+            {
+                try
+                {
+                    blockMemos = readBlockMemos(block, blockRecordCount, includeDeleted);
+                }
+                catch (final CorruptedTableException corruptedTableException)
+                {
+                    throw new IOException(corruptedTableException.getMessage(), corruptedTableException);
+                }
+            }
+        }
+
+        private byte getBlockByte(final int index)
+        {
+            return block[(index - blockFirst) * header.getRecordLength()];
+        }
+
+        public Record next()
+        {
+            if (! hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+
+            try
+            {
+                final Record record = decodeRecord(block,
+                                                   (nextIndex - blockFirst) * header.getRecordLength(),
+                                                   true,
+                                                   blockMemos);
+                nextIndex += reverse ? -1 : 1;
+
+                return record;
+            }
+            catch (final IOException ioException)
+            {
+                throw new RuntimeException(ioException.getMessage(), ioException);
+            }
+            catch (final CorruptedTableException corruptedTableException)
+            {
+                throw new RuntimeException(corruptedTableException.getMessage(), corruptedTableException);
+            }
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException("Records cannot be removed through a snapshot iterator");
+        }
+    }
+
     private final File tableFile;
     private final DbfHeader header = new DbfHeader();
     private final String charsetName;
     private Memo memo = null;
     private RandomAccessFile raFile = null;
 
+    private final RecordBatchReader batchReader = new RecordBatchReader(this);
+    private final FileSwap fileSwap = new FileSwap(this);
+    private boolean reuseDeletedRecords = false;
+
+    /*
+     * The indexes of the records flagged as "deleted". Only maintained if reuseDeletedRecords is
+     * set.
+     */
+    private final BitSet deletedRecords = new BitSet();
+    private LockScheme lockScheme = null;
+    private Durability durability = Durability.NONE;
+    private int groupCommitRecords = DEFAULT_GROUP_COMMIT_RECORDS;
+    private long groupCommitMillis = DEFAULT_GROUP_COMMIT_MILLIS;
+
+    /*
+     * Guarded by the monitor of this table.
+     */
+    private int nrOfUncommittedRecords = 0;
+    private long lastCommitTime = System.nanoTime();
+
+    private final TableJournal journal = new TableJournal(this);
+    private final Map<Integer, FileLock> recordLocks = new HashMap<Integer, FileLock>();
+    private FileLock tableLock = null;
+
+    /*
+     * Operations on a record lock the stripe of its index, so that operations on records in
+     * different stripes can run in parallel. Operations that change the record count or rewrite the
+     * table hold the write lock of headerLock, all others its read lock. The header lock is always
+     * acquired first.
+     */
+    private final ReadWriteLock headerLock = new ReentrantReadWriteLock();
+    private final ReadWriteLock[] recordStripes = new ReadWriteLock[NR_RECORD_STRIPES];
+
+    {
+        for (int i = 0; i < recordStripes.length; ++i)
+        {
+            recordStripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
     /**
      * Creates a new <code>Table</code> object. A {@link File} object representing the
      * <code>.DBF</code> file must be provided. To read from or write to the table it must first be
@@ -218,7 +448,7 @@ public class Table
     {
         this(tableFile, charsetName);
         header.setVersion(version);
-        header.setHasMemo(hasMemo(fields));
+        header.setHasMemo(hasMemoFields(fields));
         header.setFields(fields);
     }
 
@@ -232,11 +462,15 @@ public class Table
              Charset.defaultCharset().name());
     }
 
-    private static boolean hasMemo(final List<Field> fields)
+    /*
+     * Returns whether any of the fields keeps its values in the memo file: MEMO, GENERAL, BINARY
+     * and PICTURE fields.
+     */
+    static boolean hasMemoFields(final List<Field> fields)
     {
         for (final Field field : fields)
         {
-            if (field.getType() == Type.MEMO)
+            if (isMemoField(field))
             {
                 return true;
             }
@@ -269,10 +503,18 @@ public class Table
     public void open(final IfNonExistent ifNonExistent)
               throws IOException, CorruptedTableException
     {
+        fileSwap.complete();
+
         if (tableFile.exists())
         {
             raFile = new RandomAccessFile(tableFile, "rw");
             header.readAll(raFile);
+            journal.replay();
+
+            if (reuseDeletedRecords)
+            {
+                findDeletedRecords();
+            }
         }
         else if (ifNonExistent.isCreate())
         {
@@ -286,243 +528,2722 @@ public class Table
     }
 
     /**
-     * Closes this table for reading and writing.
+     * Sets whether {@link #addRecord(Record)} should overwrite records flagged as "deleted" rather
+     * than append new records. This keeps the table file from growing if records are added and
+     * deleted at about the same rate, without the need to call {@link #pack()}. Note that the
+     * order of the records then no longer reflects the order in which they were added.
+     * <p>
+     * The deleted records are found by a scan of the deletion flags, which is done when the table
+     * is opened, or right away if it is already open. Off by default.
      *
-     * @throws java.io.IOException if the table file or an associated file cannot be closed
+     * @param reuseDeletedRecords whether to reuse the slots of deleted records
+     * @throws IOException if the table file could not be scanned for deleted records
      */
-    public void close()
-               throws IOException
+    public void setReuseDeletedRecords(final boolean reuseDeletedRecords)
+                                throws IOException
     {
+        headerLock.writeLock().lock();
+
         try
         {
-            if (raFile != null)
+            this.reuseDeletedRecords = reuseDeletedRecords;
+            deletedRecords.clear();
+
+            if (reuseDeletedRecords && raFile != null)
             {
-                raFile.close();
+                findDeletedRecords();
             }
         }
         finally
         {
-            raFile = null;
-            ensureMemoClosed();
+            headerLock.writeLock().unlock();
         }
     }
 
     /**
-     * Closes and deletes the underlying table file and associated files.
+     * Returns whether the slots of records flagged as "deleted" are reused when adding records.
      *
-     * @throws IOException if the table file or an associated file cannot be closed or deleted
+     * @return whether deleted records are reused
+     * @see #setReuseDeletedRecords(boolean)
      */
-    public void delete()
-                throws IOException
+    public boolean isReuseDeletedRecords()
     {
-        close();
-        tableFile.delete();
-
-        if (memo != null)
-        {
-            memo.delete();
-        }
+        return reuseDeletedRecords;
     }
 
     /**
-     * Returns the date on which this table was last modified. Note that the hours, minutes, seconds
-     * and milliseconds fields are always set to zero. Also, the date time is not normalized to UTC.
+     * Sets when the writes to this table are forced to the storage device, so that they survive a
+     * crash of the operating system or a power failure. Writes to both the table file and the memo
+     * file are forced. {@link Durability#NONE} by default.
      *
-     * @return the last modified date of the table
+     * @param durability the durability policy
      */
-    public Date getLastModifiedDate()
+    public void setDurability(final Durability durability)
     {
-        checkOpen();
-
-        return header.getLastModifiedDate();
+        this.durability = durability;
     }
 
     /**
-     * Returns the name of the table, including the extension.
+     * Returns when the writes to this table are forced to the storage device.
      *
-     * @return the name of the table
+     * @return the durability policy
+     * @see #setDurability(Durability)
      */
-    public String getName()
+    public Durability getDurability()
     {
-        return tableFile.getName();
+        return durability;
     }
 
     /**
-     * Returns a {@link List} of {@link Field} objects, which provide a description of each field
-     * (column) in the table. The order of the <code>Field</code> objects is guaranteed to be the
-     * same as the order of the fields in each record returned. A new copy of the field list is
-     * returned on each call.
+     * Sets how often writes are forced if the durability policy is
+     * {@link Durability#GROUP_COMMIT}. The writes are forced as soon as
+     * <code>nrOfRecords</code> records have been written or <code>millis</code> milliseconds have
+     * passed since the previous commit. The time is only checked when records are written, so the
+     * last writes before a pause are forced by the next write, {@link #commit()} or
+     * {@link #close()}. By default, writes are forced every 1000 records or 1000 milliseconds.
      *
-     * @return the list of field objects.
+     * @param nrOfRecords the number of records to write before forcing the writes
+     * @param millis the maximum time between commits
+     * @throws IllegalArgumentException if <code>nrOfRecords</code> is less than one or
+     *             <code>millis</code> is negative
      */
-    public List<Field> getFields()
+    public void setGroupCommitInterval(final int nrOfRecords, final long millis)
     {
-        checkOpen();
+        if (nrOfRecords < 1 || millis < 0)
+        {
+            throw new IllegalArgumentException("Invalid group commit interval: " + nrOfRecords + " records, "
+                                               + millis + " ms");
+        }
 
-        return header.getFields();
+        groupCommitRecords = nrOfRecords;
+        groupCommitMillis = millis;
     }
 
     /**
-     * Returns a {@link Record} iterator. Note that, to use the iterator the table must be opened.
-     * This iterator skips the records flagged as "deleted".
-     *
-     * @return a <code>Record</code> iterator
+     * Forces all writes to the table file and the memo file to the storage device, whatever the
+     * {@link #setDurability(Durability) durability policy}.
      *
-     * @see Record
-     * @see #recordIterator(boolean)
+     * @throws IOException if the writes could not be forced
      */
-    public Iterator<Record> recordIterator()
+    public synchronized void commit()
+                             throws IOException
     {
-        return recordIterator(false);
+        checkOpen();
+        raFile.getChannel().force(true);
+
+        if (memo != null)
+        {
+            memo.force();
+        }
+
+        nrOfUncommittedRecords = 0;
+        lastCommitTime = System.nanoTime();
     }
 
     /**
-     * Returns a {@link Record} iterator. Note that, to use the iterator the table must be opened.
-     * If <code>includeDeleted</code> is <code>true</code>, records flagged as "deleted" are
-     * included in the iteration.
+     * Writes a batch of records through the redo journal. The batch is appended to the journal
+     * file, next to the table file, and forced to the storage device with a single force. Once
+     * this method returns, the batch survives a crash: batches that were not yet applied to the
+     * table are applied when the table is opened again.
+     * <p>
+     * The batch is applied to the table and memo files on a background thread, which forces these
+     * files afterwards. Until then, the records of the batch cannot be read from the table; call
+     * {@link #applyJournal()} to wait for that. While batches are being applied, the table should
+     * not be changed in any other way. The journal file is deleted when the table is closed.
      *
-     * @param includeDeleted if <code>true</code> deleted records are returned, otherwise not
-     * @return a <code>Record</code> iterator
+     * @param batch the batch to write
+     * @throws IOException if the batch could not be written to the journal, or if an earlier batch
+     *             could not be applied to the table
+     * @throws DbfLibException if a record of the batch could not be stored in the table. In that
+     *             case nothing of the batch is written
+     * @throws IllegalArgumentException if the batch updates a record that does not exist
      */
-    public Iterator<Record> recordIterator(final boolean includeDeleted)
+    public void write(final WriteBatch batch)
+               throws IOException, DbfLibException
     {
-        return new RecordIterator(includeDeleted);
+        checkOpen();
+        journal.write(batch);
     }
 
     /**
-     * Constructs and adds a record. The fields values for the record must be provided as parameters
-     * in the same order that the fields are provided in the field list.
+     * Waits until all batches written with {@link #write(WriteBatch)} have been applied to the
+     * table.
      *
-     * @throws IOException if the record could not be written to the database file
-     * @throws CorruptedTableException if the table was corrupt
-     * @throws ValueTooLargeException if a field value exceeds the length of its corresponding field
-     * @throws RecordTooLargeException if more field values are provided than there are field in
-     *             this table
+     * @throws IOException if a batch could not be applied to the table
      */
-    public void addRecord(final Object... fieldValues)
-                   throws IOException, DbfLibException
+    public void applyJournal()
+                      throws IOException
     {
-        if (fieldValues.length > header.getFields().size())
-        {
-            throw new RecordTooLargeException("Trying to add " + fieldValues.length + " fields while there are only "
-                                              + header.getFields().size() + " defined in the table file");
-        }
-
-        final Map<String, Value> map = new HashMap<String, Value>();
-        final Iterator<Field> fieldIterator = header.getFields().iterator();
+        journal.apply();
+    }
 
-        for (final Object fieldValue : fieldValues)
-        {
-            final Field field = fieldIterator.next();
+    File getJournalFile()
+    {
+        return new File(tableFile.getPath() + ".jnl");
+    }
 
-            map.put(field.getName(),
-                    createValueObject(fieldValue));
-        }
+    /*
+     * Lists the files being moved into place by FileSwap.replaceFiles, until all of them are.
+     */
+    File getSwapFile()
+    {
+        return new File(tableFile.getPath() + ".swp");
+    }
 
-        addRecord(new Record(map));
+    /*
+     * Moves source over target. Separate so that tests can interrupt a swap.
+     */
+    void moveFile(final File source, final File target)
+           throws IOException
+    {
+        Util.replaceFile(source, target);
     }
 
-    private Value createValueObject(final Object value)
+    /*
+     * Writes the records to the table at the given indexes, extending the table if needed. Used to
+     * apply a journaled batch.
+     */
+    void writeRecords(final int[] indexes, final List<EncodedRecord> encodedRecords)
+               throws IOException, CorruptedTableException
     {
-        if (value instanceof Number)
-        {
-            return new NumberValue((Number) value);
-        }
-        else if (value instanceof String)
+        headerLock.writeLock().lock();
+
+        try
         {
-            return new StringValue((String) value, charsetName);
+            int recordCount = header.getRecordCount();
+
+            for (int i = 0; i < indexes.length; ++i)
+            {
+                writeRecord(indexes[i],
+                            encodedRecords.get(i));
+                recordCount = Math.max(recordCount, indexes[i] + 1);
+            }
+
+            if (recordCount > header.getRecordCount())
+            {
+                publishRecordCount(recordCount);
+            }
         }
-        else if (value instanceof Boolean)
+        finally
         {
-            return new BooleanValue((Boolean) value);
+            headerLock.writeLock().unlock();
         }
-        else if (value instanceof Date)
+    }
+
+    /*
+     * Commits if the durability policy is group commit and the interval has passed.
+     */
+    void recordsWritten(final int nrOfRecords)
+                 throws IOException
+    {
+        if (durability != Durability.GROUP_COMMIT)
         {
-            return new DateValue((Date) value);
+            return;
         }
-        else if (value instanceof byte[])
+
+        synchronized (this)
         {
-            return new ByteArrayValue((byte[]) value);
+            nrOfUncommittedRecords += nrOfRecords;
+
+            if (nrOfUncommittedRecords >= groupCommitRecords
+                    || System.nanoTime() - lastCommitTime >= groupCommitMillis * 1000000L)
+            {
+                commit();
+            }
         }
+    }
 
-        return null;
+    synchronized int getNrOfUncommittedRecords()
+    {
+        return nrOfUncommittedRecords;
     }
 
     /**
-     * Adds a record to this table.
+     * Sets the convention used to lock records and the table. By default the convention of the
+     * xBase program that writes the version of this table is used, see
+     * {@link LockScheme#forVersion(Version)}.
      *
-     * @param record the record to add.
+     * @param lockScheme the lock scheme, or <code>null</code> for the default
+     */
+    public void setLockScheme(final LockScheme lockScheme)
+    {
+        this.lockScheme = lockScheme;
+    }
+
+    /**
+     * Returns the convention used to lock records and the table.
      *
-     * @throws IOException if the record could not be written to the database file
-     * @throws CorruptedTableException if the table was corrupt
-     * @throws ValueTooLargeException if a field value exceeds the length of its corresponding field
+     * @return the lock scheme
+     * @see #setLockScheme(LockScheme)
+     */
+    public LockScheme getLockScheme()
+    {
+        return lockScheme == null ? LockScheme.forVersion(header.getVersion()) : lockScheme;
+    }
+
+    /**
+     * Locks the record at <code>index</code> against other processes following the same
+     * {@link #getLockScheme() lock scheme}, waiting until the lock is available. The lock is
+     * advisory: it only keeps out programs that lock the record before changing it.
+     * <p>
+     * Locks are held on behalf of the whole Java virtual machine, so they cannot be used to
+     * coordinate threads. Locking the same record through two <code>Table</code> objects in one
+     * virtual machine fails with an {@link java.nio.channels.OverlappingFileLockException}.
      *
-     * @see Record
+     * @param index the index of the record to lock
+     * @throws IOException if the lock could not be acquired
      */
-    public void addRecord(final Record record)
-                   throws IOException, DbfLibException
+    public void lockRecord(final int index)
+                    throws IOException
     {
-        updateRecordAt(header.getRecordCount(),
-                       record);
-        raFile.writeByte(MARKER_EOF);
-        writeRecordCount(header.getRecordCount() + 1);
+        checkRecordNotLocked(index);
+        recordLocks.put(index,
+                        raFile.getChannel().lock(getLockScheme().getRecordLockOffset(index),
+                                                 1,
+                                                 false));
     }
 
-    public void updateRecordAt(final int index, final Record record)
-                        throws IOException, DbfLibException
+    /**
+     * As {@link #lockRecord(int)}, but does not wait if another process holds the lock.
+     *
+     * @param index the index of the record to lock
+     * @return whether the lock was acquired
+     * @throws IOException if the lock could not be acquired for another reason
+     */
+    public boolean tryLockRecord(final int index)
+                          throws IOException
     {
-        checkOpen();
-        jumpToRecordAt(index);
-        raFile.writeByte(MARKER_RECORD_VALID);
+        checkRecordNotLocked(index);
 
-        for (final Field field : header.getFields())
+        final FileLock lock = raFile.getChannel().tryLock(getLockScheme().getRecordLockOffset(index),
+                                                          1,
+                                                          false);
+
+        if (lock == null)
+        {
+            return false;
+        }
+
+        recordLocks.put(index, lock);
+
+        return true;
+    }
+
+    /**
+     * Releases the lock on the record at <code>index</code>. Does nothing if the record is not
+     * locked.
+     *
+     * @param index the index of the record to unlock
+     * @throws IOException if the lock could not be released
+     */
+    public void unlockRecord(final int index)
+                      throws IOException
+    {
+        final FileLock lock = recordLocks.remove(index);
+
+        if (lock != null)
+        {
+            lock.release();
+        }
+    }
+
+    private void checkRecordNotLocked(final int index)
+    {
+        checkOpen();
+
+        if (recordLocks.containsKey(index))
+        {
+            throw new IllegalStateException(String.format("Record %d is already locked", index));
+        }
+    }
+
+    /**
+     * Locks the whole table against other processes following the same
+     * {@link #getLockScheme() lock scheme}, waiting until no other process holds a lock on the
+     * table or one of its records. Once locked, the record count and the next free block of the
+     * memo file are read again, so that records and memos added by other processes are taken into
+     * account when adding records.
+     * <p>
+     * See {@link #lockRecord(int)} on locks within one Java virtual machine. Records locked through
+     * this <code>Table</code> object must be unlocked first.
+     *
+     * @throws IOException if the lock could not be acquired
+     * @throws CorruptedTableException if the record count in the header is invalid
+     */
+    public void lockTable()
+                   throws IOException, CorruptedTableException
+    {
+        checkTableNotLocked();
+        tableLock = raFile.getChannel().lock(getLockScheme().getTableLockOffset(),
+                                             getLockScheme().getTableLockLength(),
+                                             false);
+        readRecordCount();
+    }
+
+    /**
+     * As {@link #lockTable()}, but does not wait if another process holds a lock.
+     *
+     * @return whether the lock was acquired
+     * @throws IOException if the lock could not be acquired for another reason
+     * @throws CorruptedTableException if the record count in the header is invalid
+     */
+    public boolean tryLockTable()
+                         throws IOException, CorruptedTableException
+    {
+        checkTableNotLocked();
+        tableLock = raFile.getChannel().tryLock(getLockScheme().getTableLockOffset(),
+                                                getLockScheme().getTableLockLength(),
+                                                false);
+
+        if (tableLock == null)
+        {
+            return false;
+        }
+
+        readRecordCount();
+
+        return true;
+    }
+
+    /**
+     * Releases the lock on the table. Does nothing if the table is not locked.
+     *
+     * @throws IOException if the lock could not be released
+     */
+    public void unlockTable()
+                     throws IOException
+    {
+        if (tableLock != null)
+        {
+            try
+            {
+                tableLock.release();
+            }
+            finally
+            {
+                tableLock = null;
+            }
+        }
+    }
+
+    private void checkTableNotLocked()
+    {
+        checkOpen();
+
+        if (tableLock != null)
+        {
+            throw new IllegalStateException("Table is already locked");
+        }
+    }
+
+    /*
+     * Rereads the record count and the next available memo block, which other processes may have
+     * changed.
+     */
+    private void readRecordCount()
+                          throws IOException, CorruptedTableException
+    {
+        headerLock.writeLock().lock();
+
+        try
+        {
+            raFile.seek(DbfHeader.OFFSET_RECORD_COUNT);
+            header.readRecordCount(raFile);
+            readNextAvailableMemoBlock();
+        }
+        finally
+        {
+            headerLock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Reads the deletion flags of all records into deletedRecords, a large block of records at a
+     * time.
+     */
+    private void findDeletedRecords()
+                             throws IOException
+    {
+        deletedRecords.clear();
+
+        final int recordLength = header.getRecordLength();
+        final int recordsPerBlock = Math.max(1, LENGTH_IO_BLOCK / recordLength);
+        final byte[] block = new byte[recordsPerBlock * recordLength];
+
+        for (int first = 0; first < header.getRecordCount(); first += recordsPerBlock)
+        {
+            final int nrRecords = Math.min(recordsPerBlock,
+                                           header.getRecordCount() - first);
+            jumpToRecordAt(first);
+            raFile.readFully(block, 0, nrRecords * recordLength);
+
+            for (int i = 0; i < nrRecords; ++i)
+            {
+                if (block[i * recordLength] == MARKER_RECORD_DELETED)
+                {
+                    deletedRecords.set(first + i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes this table for reading and writing.
+     *
+     * @throws java.io.IOException if the table file or an associated file cannot be closed
+     */
+    public void close()
+               throws IOException
+    {
+        try
+        {
+            journal.close();
+        }
+        finally
+        {
+            closeFiles();
+        }
+    }
+
+    private void closeFiles()
+                     throws IOException
+    {
+        try
+        {
+            if (raFile != null)
+            {
+                if (durability == Durability.GROUP_COMMIT)
+                {
+                    commit();
+                }
+
+                raFile.close();
+            }
+        }
+        finally
+        {
+            /*
+             * Closing the file has released the locks.
+             */
+            raFile = null;
+            recordLocks.clear();
+            tableLock = null;
+
+            try
+            {
+                batchReader.close();
+            }
+            finally
+            {
+                ensureMemoClosed();
+            }
+        }
+    }
+
+    /**
+     * Closes and deletes the underlying table file and associated files.
+     *
+     * @throws IOException if the table file or an associated file cannot be closed or deleted
+     */
+    public void delete()
+                throws IOException
+    {
+        close();
+        tableFile.delete();
+
+        if (memo != null)
+        {
+            memo.delete();
+        }
+    }
+
+    /**
+     * Returns the date on which this table was last modified. Note that the hours, minutes, seconds
+     * and milliseconds fields are always set to zero. Also, the date time is not normalized to UTC.
+     *
+     * @return the last modified date of the table
+     */
+    public Date getLastModifiedDate()
+    {
+        checkOpen();
+
+        return header.getLastModifiedDate();
+    }
+
+    /**
+     * Returns the name of the table, including the extension.
+     *
+     * @return the name of the table
+     */
+    public String getName()
+    {
+        return tableFile.getName();
+    }
+
+    /**
+     * Returns a {@link List} of {@link Field} objects, which provide a description of each field
+     * (column) in the table. The order of the <code>Field</code> objects is guaranteed to be the
+     * same as the order of the fields in each record returned. A new copy of the field list is
+     * returned on each call.
+     *
+     * @return the list of field objects.
+     */
+    public List<Field> getFields()
+    {
+        checkOpen();
+
+        return header.getFields();
+    }
+
+    /**
+     * Returns a {@link Record} iterator. Note that, to use the iterator the table must be opened.
+     * This iterator skips the records flagged as "deleted".
+     *
+     * @return a <code>Record</code> iterator
+     *
+     * @see Record
+     * @see #recordIterator(boolean)
+     */
+    public Iterator<Record> recordIterator()
+    {
+        return recordIterator(false);
+    }
+
+    /**
+     * Returns a {@link Record} iterator. Note that, to use the iterator the table must be opened.
+     * If <code>includeDeleted</code> is <code>true</code>, records flagged as "deleted" are
+     * included in the iteration.
+     *
+     * @param includeDeleted if <code>true</code> deleted records are returned, otherwise not
+     * @return a <code>Record</code> iterator
+     */
+    public Iterator<Record> recordIterator(final boolean includeDeleted)
+    {
+        return new RecordIterator(includeDeleted);
+    }
+
+    /**
+     * Returns an iterator over the records that the table has at the moment this method is called.
+     * The record count is read from the table file, so records appended by other processes up to
+     * that moment are included as well. Records appended later, through this <code>Table</code>
+     * object or otherwise, are not returned, so the iteration is not disturbed by appending
+     * records while it is going on. The iterator does not lock the table.
+     * <p>
+     * Records are read a large block at a time. A record that is updated while the iteration is
+     * going on may therefore be returned in either its old or its new state. The iterator does not
+     * support {@link Iterator#remove()}.
+     *
+     * @param includeDeleted if <code>true</code> deleted records are returned, otherwise not
+     * @return a <code>Record</code> iterator
+     * @throws IOException if the record count could not be read from the table file
+     */
+    public Iterator<Record> snapshotIterator(final boolean includeDeleted)
+                                      throws IOException
+    {
+        checkOpen();
+
+        return new SnapshotIterator(0,
+                                    readRecordCountFromFile(),
+                                    includeDeleted);
+    }
+
+    /**
+     * Returns an iterator over the records of a split of this table, planned with
+     * {@link TableSplit#plan(File, int)}. Only the records of the split are read from the table
+     * file, a large block at a time.
+     *
+     * @param split the split to iterate over
+     * @param includeDeleted if <code>true</code> deleted records are returned, otherwise not
+     * @param memosInBlockOrder if <code>true</code>, the memos of each block of records are read
+     *            in advance, in the order in which they are stored in the memo file, instead of
+     *            one record at a time. This keeps the reads of a split in the memo file moving
+     *            forward, but keeps the memos of a block in memory
+     * @return a <code>Record</code> iterator
+     *
+     * @throws IllegalArgumentException if the split does not fit this table, or covers records
+     *             beyond the end of this table
+     */
+    public Iterator<Record> splitIterator(final TableSplit split, final boolean includeDeleted,
+                                          final boolean memosInBlockOrder)
+    {
+        checkOpen();
+
+        /*
+         * The split may have been planned on another machine, where the table has another path.
+         * Only the file name is compared, and whether the offset and length of the split match
+         * the header and record length of this table.
+         */
+        if (! split.getTableFile().getName().equals(tableFile.getName())
+                || split.getOffset() != getRecordOffset(split.getFirstIndex())
+                || split.getLength() != (long) split.getRecordCount() * header.getRecordLength())
+        {
+            throw new IllegalArgumentException("Split " + split + " is not of table " + tableFile);
+        }
+
+        if (split.getFirstIndex() + split.getRecordCount() > getRecordCount())
+        {
+            throw new IllegalArgumentException("Split " + split + " is beyond the end of the table");
+        }
+
+        return new SnapshotIterator(split.getFirstIndex(),
+                                    split.getFirstIndex() + split.getRecordCount(),
+                                    includeDeleted,
+                                    memosInBlockOrder,
+                                    false);
+    }
+
+    /**
+     * Returns an iterator over the records from <code>fromIndex</code> (inclusive) up to
+     * <code>toIndex</code> (exclusive), e.g. to show one page of a large table. Only the records
+     * in this window are read from the table file, a large block at a time. Records appended while
+     * the iteration is going on are not returned, and a record that is updated may be returned in
+     * either its old or its new state. The iterator does not support {@link Iterator#remove()}.
+     *
+     * @param fromIndex the index of the first record to return
+     * @param toIndex the index after the last record to return
+     * @param includeDeleted if <code>true</code> deleted records are returned, otherwise not
+     * @return a <code>Record</code> iterator
+     *
+     * @throws IllegalArgumentException if <code>fromIndex</code> is negative or greater than
+     *             <code>toIndex</code>, or <code>toIndex</code> is greater than the record count
+     * @see #reverseRecordIterator(int, int, boolean)
+     */
+    public Iterator<Record> recordIterator(final int fromIndex, final int toIndex, final boolean includeDeleted)
+    {
+        checkOpen();
+        checkWindow(fromIndex, toIndex);
+
+        return new SnapshotIterator(fromIndex, toIndex, includeDeleted);
+    }
+
+    /**
+     * As {@link #recordIterator(int, int, boolean)}, but returns the records in reverse order, from
+     * the record at <code>toIndex - 1</code> down to the record at <code>fromIndex</code>. The
+     * blocks of records are read from the end of the window towards its start.
+     *
+     * @param fromIndex the index of the last record to return
+     * @param toIndex the index after the first record to return
+     * @param includeDeleted if <code>true</code> deleted records are returned, otherwise not
+     * @return a <code>Record</code> iterator
+     *
+     * @throws IllegalArgumentException if <code>fromIndex</code> is negative or greater than
+     *             <code>toIndex</code>, or <code>toIndex</code> is greater than the record count
+     */
+    public Iterator<Record> reverseRecordIterator(final int fromIndex, final int toIndex,
+                                                  final boolean includeDeleted)
+    {
+        checkOpen();
+        checkWindow(fromIndex, toIndex);
+
+        return new SnapshotIterator(fromIndex, toIndex, includeDeleted, false, true);
+    }
+
+    private void checkWindow(final int fromIndex, final int toIndex)
+    {
+        if (fromIndex < 0 || fromIndex > toIndex || toIndex > getRecordCount())
+        {
+            throw new IllegalArgumentException(String.format("Invalid window: %d to %d", fromIndex, toIndex));
+        }
+    }
+
+    /**
+     * Creates a follower that reports the records appended to this table by another process, from
+     * the current end of the table onwards. See {@link TableFollower} for details.
+     *
+     * @return a new follower
+     * @throws IOException if the record count could not be read from the table file
+     * @throws CorruptedTableException if the record count in the table file is invalid
+     */
+    public TableFollower createFollower()
+                                 throws IOException, CorruptedTableException
+    {
+        return createFollower(readAppendedRecordCount());
+    }
+
+    /**
+     * As {@link #createFollower()}, but reports the records from <code>firstIndex</code> onwards,
+     * including the ones already in the table.
+     *
+     * @param firstIndex the index of the first record to report
+     * @return a new follower
+     */
+    public TableFollower createFollower(final int firstIndex)
+    {
+        checkOpen();
+
+        return new TableFollower(this, firstIndex);
+    }
+
+    /*
+     * Iterates over the records from first up to recordCount, deleted ones included.
+     */
+    Iterator<Record> recordIterator(final int first, final int recordCount)
+    {
+        return new SnapshotIterator(first, recordCount, true);
+    }
+
+    long getFileLength()
+                 throws IOException
+    {
+        checkOpen();
+
+        return raFile.getChannel().size();
+    }
+
+    /*
+     * Takes over the record count from the table file if other processes have appended records, so
+     * that these records can be read. Returns the new record count.
+     */
+    int readAppendedRecordCount()
+                         throws IOException, CorruptedTableException
+    {
+        checkOpen();
+        headerLock.writeLock().lock();
+
+        try
+        {
+            final int recordCount = readRecordCountFromFile();
+
+            if (recordCount > header.getRecordCount())
+            {
+                header.setRecordCount(recordCount);
+                readNextAvailableMemoBlock();
+            }
+
+            return header.getRecordCount();
+        }
+        finally
+        {
+            headerLock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Reads the record count without changing the one in the header, limited to the number of
+     * records that are actually in the file.
+     */
+    private int readRecordCountFromFile()
+                                 throws IOException
+    {
+        final byte[] recordCountBytes = new byte[4];
+        Util.readFully(raFile.getChannel(),
+                       recordCountBytes,
+                       DbfHeader.OFFSET_RECORD_COUNT);
+
+        final long recordCount =
+            ByteBuffer.wrap(recordCountBytes).order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xffffffffL;
+        final long recordsInFile = (raFile.getChannel().size() - header.getLength()) / header.getRecordLength();
+
+        return (int) Math.max(0,
+                              Math.min(Integer.MAX_VALUE,
+                                       Math.min(recordCount, recordsInFile)));
+    }
+
+    /**
+     * Constructs and adds a record. The fields values for the record must be provided as parameters
+     * in the same order that the fields are provided in the field list.
+     *
+     * @throws IOException if the record could not be written to the database file
+     * @throws CorruptedTableException if the table was corrupt
+     * @throws ValueTooLargeException if a field value exceeds the length of its corresponding field
+     * @throws RecordTooLargeException if more field values are provided than there are field in
+     *             this table
+     */
+    public void addRecord(final Object... fieldValues)
+                   throws IOException, DbfLibException
+    {
+        addRecord(createRecord(fieldValues));
+    }
+
+    Record createRecord(final Object[] fieldValues)
+                         throws RecordTooLargeException
+    {
+        if (fieldValues.length > header.getFields().size())
+        {
+            throw new RecordTooLargeException("Trying to add " + fieldValues.length + " fields while there are only "
+                                              + header.getFields().size() + " defined in the table file");
+        }
+
+        final Map<String, Value> map = new HashMap<String, Value>();
+        final Iterator<Field> fieldIterator = header.getFields().iterator();
+
+        for (final Object fieldValue : fieldValues)
+        {
+            final Field field = fieldIterator.next();
+
+            map.put(field.getName(),
+                    createValueObject(fieldValue));
+        }
+
+        return new Record(map);
+    }
+
+    private Value createValueObject(final Object value)
+    {
+        if (value instanceof Number)
+        {
+            return new NumberValue((Number) value);
+        }
+        else if (value instanceof String)
+        {
+            return new StringValue((String) value, charsetName);
+        }
+        else if (value instanceof Boolean)
+        {
+            return new BooleanValue((Boolean) value);
+        }
+        else if (value instanceof Date)
+        {
+            return new DateValue((Date) value);
+        }
+        else if (value instanceof byte[])
+        {
+            return new ByteArrayValue((byte[]) value);
+        }
+
+        return null;
+    }
+
+    /**
+     * Adds a record to this table. If {@link #setReuseDeletedRecords(boolean) reuse of deleted
+     * records} is on, the record takes the place of the first record flagged as "deleted", if there
+     * is one.
+     *
+     * @param record the record to add.
+     *
+     * @throws IOException if the record could not be written to the database file
+     * @throws CorruptedTableException if the table was corrupt
+     * @throws ValueTooLargeException if a field value exceeds the length of its corresponding field
+     *
+     * @see Record
+     */
+    public void addRecord(final Record record)
+                   throws IOException, DbfLibException
+    {
+        headerLock.writeLock().lock();
+
+        try
+        {
+            if (reuseDeletedRecords && ! deletedRecords.isEmpty())
+            {
+                replaceRecordAt(deletedRecords.nextSetBit(0),
+                                record);
+            }
+            else
+            {
+                replaceRecordAt(header.getRecordCount(),
+                                record);
+                publishRecordCount(header.getRecordCount() + 1);
+            }
+        }
+        finally
+        {
+            headerLock.writeLock().unlock();
+        }
+
+        recordsWritten(1);
+    }
+
+    /**
+     * Creates an appender through which several threads can add records to the end of this table
+     * at the same time. See {@link TableAppender} for details.
+     *
+     * @return a new appender
+     */
+    public TableAppender createAppender()
+    {
+        checkOpen();
+
+        return new TableAppender(this,
+                                 header.getRecordCount());
+    }
+
+    /*
+     * Writes the record bytes without moving the file pointer, so that appenders can call this
+     * from several threads at once.
+     */
+    void writeRecordBytesAt(final int index, final byte[] recordBytes)
+                     throws IOException
+    {
+        Util.writeFully(raFile.getChannel(),
+                        recordBytes,
+                        getRecordOffset(index));
+    }
+
+    /*
+     * Writes the EOF marker after the last record and the record count to the header.
+     */
+    void publishRecordCount(final int recordCount)
+                     throws IOException
+    {
+        checkOpen();
+        headerLock.writeLock().lock();
+
+        try
+        {
+            Util.writeFully(raFile.getChannel(),
+                            new byte[] { MARKER_EOF },
+                            getRecordOffset(recordCount));
+            writeRecordCount(recordCount);
+        }
+        finally
+        {
+            headerLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the records of other tables with the same fields to the end of this table, in order.
+     * Records flagged as "deleted" are skipped. The records are copied as they are stored, a large
+     * block at a time, without being decoded. Memos are copied block by block to the memo file of
+     * this table, and the memo pointers of the copied records are adjusted accordingly. The record
+     * count in the header is updated once, at the end.
+     * <p>
+     * Records are always appended, even if {@link #setReuseDeletedRecords(boolean) reuse of
+     * deleted records} is on. If an error occurs, the records copied until then are still added.
+     *
+     * @param sources the open tables to copy the records from
+     * @return the number of records added
+     *
+     * @throws IOException if one of the tables or memo files could not be read or written
+     * @throws DbfLibException if the memo file of a source table is missing or corrupt
+     * @throws IllegalArgumentException if a source table does not have the same fields as this
+     *             table, or has memo fields and another version
+     */
+    public int appendFrom(final Table... sources)
+                   throws IOException, DbfLibException
+    {
+        checkOpen();
+
+        final List<Field> fields = header.getFields();
+        final boolean hasMemo = hasMemoFields(fields);
+
+        for (final Table source : sources)
+        {
+            source.checkOpen();
+
+            if (source == this)
+            {
+                throw new IllegalArgumentException("Cannot append a table to itself");
+            }
+
+            if (! source.getFields().equals(fields))
+            {
+                throw new IllegalArgumentException("Table " + source.getName() + " does not have the same fields");
+            }
+
+            if (hasMemo && source.getVersion() != getVersion())
+            {
+                throw new IllegalArgumentException("Table " + source.getName() + " has memos of another version");
+            }
+        }
+
+        final int[] offsets = header.getFieldOffsets();
+        final int recordLength = header.getRecordLength();
+        final int recordsPerBlock = Math.max(1, LENGTH_IO_BLOCK / recordLength);
+        final byte[] block = new byte[recordsPerBlock * recordLength];
+
+        headerLock.writeLock().lock();
+
+        final int firstIndex = header.getRecordCount();
+        int recordCount = firstIndex;
+
+        try
+        {
+            for (final Table source : sources)
+            {
+                source.headerLock.readLock().lock();
+
+                try
+                {
+                    final int sourceRecordCount = source.header.getRecordCount();
+
+                    for (int first = 0; first < sourceRecordCount; first += recordsPerBlock)
+                    {
+                        final int blockLength = Math.min(recordsPerBlock, sourceRecordCount - first) * recordLength;
+                        Util.readFully(source.raFile.getChannel(),
+                                       ByteBuffer.wrap(block, 0, blockLength),
+                                       source.getRecordOffset(first));
+
+                        /*
+                         * The records to keep are moved to the front of the block.
+                         */
+                        int keptLength = 0;
+
+                        for (int offset = 0; offset < blockLength; offset += recordLength)
+                        {
+                            if (block[offset] == MARKER_RECORD_DELETED)
+                            {
+                                continue;
+                            }
+
+                            if (offset != keptLength)
+                            {
+                                System.arraycopy(block, offset, block, keptLength, recordLength);
+                            }
+
+                            if (hasMemo)
+                            {
+                                copyMemos(source, block, keptLength, offsets);
+                            }
+
+                            keptLength += recordLength;
+                        }
+
+                        if (keptLength > 0)
+                        {
+                            Util.writeFully(raFile.getChannel(),
+                                            ByteBuffer.wrap(block, 0, keptLength),
+                                            getRecordOffset(recordCount));
+                            recordCount += keptLength / recordLength;
+                        }
+                    }
+                }
+                finally
+                {
+                    source.headerLock.readLock().unlock();
+                }
+            }
+        }
+        finally
+        {
+            try
+            {
+                publishRecordCount(recordCount);
+            }
+            finally
+            {
+                headerLock.writeLock().unlock();
+            }
+        }
+
+        recordsWritten(recordCount - firstIndex);
+
+        return recordCount - firstIndex;
+    }
+
+    /*
+     * Copies the memos referenced by the record at offset in bytes, read from source, to the memo
+     * file of this table and points the memo fields to the copies. Source must have the same
+     * version.
+     */
+    synchronized void copyMemos(final Table source, final byte[] bytes, final int offset, final int[] offsets)
+                                 throws IOException, CorruptedTableException
+    {
+        final List<Field> fields = header.getFields();
+
+        for (int i = 0; i < fields.size(); ++i)
+        {
+            final Field field = fields.get(i);
+
+            if (! isMemoField(field))
+            {
+                continue;
+            }
+
+            final int blockIndex = parseMemoPointer(bytes,
+                                                    offset + offsets[i],
+                                                    field.getLength());
+
+            if (blockIndex > 0)
+            {
+                ensureMemoOpened(IfNonExistent.CREATE);
+
+                /*
+                 * Only reading is done under the lock of the source, so that several tables can
+                 * copy from the same source at once. The blocks are copied verbatim if both memo
+                 * files have the same block length.
+                 */
+                byte[] blocks = null;
+                byte[] memoBytes = null;
+
+                synchronized (source)
+                {
+                    source.ensureMemoOpened(IfNonExistent.ERROR);
+
+                    if (source.memo.getBlockLength() == memo.getBlockLength())
+                    {
+                        blocks = source.memo.readBlocks(blockIndex);
+                    }
+                    else
+                    {
+                        memoBytes = source.memo.readMemo(blockIndex);
+                    }
+                }
+
+                final int copyIndex = blocks != null ? memo.appendBlocks(blocks) : memo.writeMemo(memoBytes);
+
+                System.arraycopy(formatMemoPointer(field, copyIndex),
+                                 0,
+                                 bytes,
+                                 offset + offsets[i],
+                                 field.getLength());
+            }
+        }
+    }
+
+    /**
+     * Adds the records provided by <code>records</code> to the end of this table, in order.
+     * Encoding the records, which includes validating and formatting the field values, is done on
+     * <code>threadCount</code> worker threads. The encoded records are written by the calling
+     * thread, in large blocks, and the record count in the header is updated once, at the end.
+     * <p>
+     * Records are always appended, even if {@link #setReuseDeletedRecords(boolean) reuse of
+     * deleted records} is on. If a record cannot be encoded, the records before it are still added.
+     *
+     * @param records the records to add
+     * @param threadCount the number of threads to encode records on
+     *
+     * @throws IOException if the records could not be written to the table file
+     * @throws DbfLibException if a record could not be stored in the table
+     * @throws IllegalArgumentException if <code>threadCount</code> is less than one
+     */
+    public void addRecords(final Iterator<Record> records, final int threadCount)
+                    throws IOException, DbfLibException
+    {
+        load(records, threadCount);
+    }
+
+    /**
+     * As {@link #addRecords(Iterator, int)}, but each record is provided as an array of field
+     * values, as in {@link #addRecord(Object...)}.
+     *
+     * @param fieldValues the field values of the records to add
+     * @param threadCount the number of threads to encode records on
+     *
+     * @throws IOException if the records could not be written to the table file
+     * @throws DbfLibException if a record could not be stored in the table
+     * @throws IllegalArgumentException if <code>threadCount</code> is less than one
+     */
+    public void addRecordValues(final Iterator<Object[]> fieldValues, final int threadCount)
+                         throws IOException, DbfLibException
+    {
+        load(fieldValues, threadCount);
+    }
+
+    /*
+     * Rows are either Records or Object arrays of field values.
+     */
+    private void load(final Iterator<?> rows, final int threadCount)
+               throws IOException, DbfLibException
+    {
+        checkOpen();
+
+        if (threadCount < 1)
+        {
+            throw new IllegalArgumentException("Thread count must be at least one");
+        }
+
+        headerLock.writeLock().lock();
+
+        try
+        {
+            final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+            final Queue<Future<EncodedRecord>> encodedRecords = new ArrayDeque<Future<EncodedRecord>>();
+            final byte[] block = new byte[Math.max(LENGTH_IO_BLOCK, header.getRecordLength())];
+            int blockLength = 0;
+            final int firstIndex = header.getRecordCount();
+            int blockStart = firstIndex;
+            int recordCount = firstIndex;
+
+            try
+            {
+                while (rows.hasNext() || ! encodedRecords.isEmpty())
+                {
+                    if (rows.hasNext() && encodedRecords.size() < threadCount * NR_RECORDS_ENCODED_AHEAD)
+                    {
+                        final Object row = rows.next();
+
+                        encodedRecords.add(executor.submit(new Callable<EncodedRecord>()
+                            {
+                                public EncodedRecord call()
+                                                   throws DbfLibException
+                                {
+                                    return encodeRecord(row instanceof Record ? (Record) row
+                                                                              : createRecord((Object[]) row));
+                                }
+                            }));
+
+                        continue;
+                    }
+
+                    final EncodedRecord encodedRecord = getResult(encodedRecords.remove());
+                    writeMemos(encodedRecord);
+
+                    if (blockLength + header.getRecordLength() > block.length)
+                    {
+                        jumpToRecordAt(blockStart);
+                        raFile.write(block, 0, blockLength);
+                        blockStart = recordCount;
+                        blockLength = 0;
+                    }
+
+                    System.arraycopy(encodedRecord.getBytes(),
+                                     0,
+                                     block,
+                                     blockLength,
+                                     header.getRecordLength());
+                    blockLength += header.getRecordLength();
+                    ++recordCount;
+                }
+            }
+            finally
+            {
+                executor.shutdownNow();
+                jumpToRecordAt(blockStart);
+                raFile.write(block, 0, blockLength);
+                raFile.writeByte(MARKER_EOF);
+                writeRecordCount(recordCount);
+                recordsWritten(recordCount - firstIndex);
+            }
+        }
+        finally
+        {
+            headerLock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Waits for the work of a worker thread to be done and rethrows any exception that occurred
+     * while doing it.
+     */
+    static <T> T getResult(final Future<T> future)
+                            throws IOException, DbfLibException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (final InterruptedException interruptedException)
+        {
+            Thread.currentThread().interrupt();
+
+            throw new InterruptedIOException("Interrupted while waiting for a worker thread");
+        }
+        catch (final ExecutionException executionException)
+        {
+            final Throwable cause = executionException.getCause();
+
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            else if (cause instanceof DbfLibException)
+            {
+                throw (DbfLibException) cause;
+            }
+            else if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            else if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+
+            throw new RuntimeException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Overwrites the record at <code>index</code>. The memos of the record that is overwritten are
+     * released, so that their blocks in the memo file can be reused for new memos.
+     *
+     * @param index the index of the record to overwrite
+     * @param record the new record
+     *
+     * @throws IOException if the record could not be written to the database file
+     * @throws DbfLibException if the record could not be stored in the table
+     * @throws NoSuchElementException if <code>index</code> is negative
+     */
+    public void updateRecordAt(final int index, final Record record)
+                        throws IOException, DbfLibException
+    {
+        checkOpen();
+        checkIndexNotNegative(index);
+        replaceRecordAt(index, record);
+        recordsWritten(1);
+    }
+
+    private void replaceRecordAt(final int index, final Record record)
+                          throws IOException, DbfLibException
+    {
+        final EncodedRecord encodedRecord = encodeRecord(record);
+        final Lock stripeLock = getRecordStripe(index).writeLock();
+        headerLock.readLock().lock();
+        stripeLock.lock();
+
+        try
+        {
+            writeRecord(index, encodedRecord);
+        }
+        finally
+        {
+            stripeLock.unlock();
+            headerLock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Converts the record to the bytes to store in the table file. Does not access the table or
+     * memo file, so it is safe to call from other threads than the writing one.
+     */
+    EncodedRecord encodeRecord(final Record record)
+                                throws DbfLibException
+    {
+        final List<Field> fields = header.getFields();
+        final int[] offsets = header.getFieldOffsets();
+        final EncodedRecord encodedRecord = new EncodedRecord(header.getRecordLength());
+        final byte[] bytes = encodedRecord.getBytes();
+        bytes[0] = MARKER_RECORD_VALID;
+
+        for (int i = 0; i < fields.size(); ++i)
+        {
+            final Field field = fields.get(i);
+            final byte[] raw = record.getRawValue(field);
+
+            if (raw != null && isMemoField(field))
+            {
+                encodedRecord.addMemo(field, offsets[i], raw);
+            }
+            else
+            {
+                encodeField(field, raw, bytes, offsets[i]);
+            }
+        }
+
+        return encodedRecord;
+    }
+
+    /*
+     * Copies the raw value to the field at offset in bytes. Empty fields are filled with spaces,
+     * the remainder of shorter values stays zero.
+     */
+    private static void encodeField(final Field field, final byte[] raw, final byte[] bytes, final int offset)
+    {
+        if (raw == null)
+        {
+            Arrays.fill(bytes,
+                        offset,
+                        offset + field.getLength(),
+                        (byte) ' ');
+        }
+        else
+        {
+            System.arraycopy(raw,
+                             0,
+                             bytes,
+                             offset,
+                             Math.min(raw.length, field.getLength()));
+        }
+    }
+
+    /**
+     * Sets the value of a single field of the record at <code>index</code>. Only the bytes of that
+     * field are written; the other fields and their memos are left as they are. If the field is a
+     * memo field, the new memo is written to the memo file and the old memo of the field is
+     * released. The deletion flag of the record is not changed.
+     *
+     * @param index the index of the record to update
+     * @param fieldName the name of the field to update
+     * @param value the new value, either a {@link Value} or a Java object as accepted by
+     *            {@link #addRecord(Object...)}, or <code>null</code> to empty the field
+     *
+     * @throws IOException if the field could not be written to the table file
+     * @throws DbfLibException if the value cannot be stored in the field
+     * @throws IllegalArgumentException if the table has no field named <code>fieldName</code>
+     * @throws NoSuchElementException if there is no record at <code>index</code>
+     */
+    public void updateFieldAt(final int index, final String fieldName, final Object value)
+                       throws IOException, DbfLibException
+    {
+        checkOpen();
+
+        final int fieldIndex = getFieldIndex(fieldName);
+        final Field field = header.getFields().get(fieldIndex);
+        final byte[] raw = getRawValue(field, value);
+        final byte[] fieldBytes = new byte[field.getLength()];
+        final long fieldOffset = header.getFieldOffsets()[fieldIndex];
+
+        final Lock stripeLock = getRecordStripe(index).writeLock();
+        headerLock.readLock().lock();
+        stripeLock.lock();
+
+        try
+        {
+            if (index < 0 || index >= header.getRecordCount())
+            {
+                throw new NoSuchElementException(String.format("Invalid index: %d", index));
+            }
+
+            if (isMemoField(field))
+            {
+                Util.readFully(raFile.getChannel(),
+                               fieldBytes,
+                               getRecordOffset(index) + fieldOffset);
+            }
+
+            final List<Integer> oldMemoBlocks = new ArrayList<Integer>();
+            replaceField(field, raw, fieldBytes, 0, oldMemoBlocks);
+            writeTableBytesAt(getRecordOffset(index) + fieldOffset,
+                              fieldBytes,
+                              0,
+                              fieldBytes.length);
+            releaseMemos(oldMemoBlocks);
+        }
+        finally
+        {
+            stripeLock.unlock();
+            headerLock.readLock().unlock();
+        }
+
+        recordsWritten(1);
+    }
+
+    /*
+     * Converts value, either a Value or a Java object, to its raw representation for field.
+     */
+    private byte[] getRawValue(final Field field, final Object value)
+                        throws DbfLibException
+    {
+        final Value typedValue = value instanceof Value ? (Value) value : createValueObject(value);
+
+        return typedValue == null ? null : typedValue.getRawValue(field);
+    }
+
+    /*
+     * Overwrites the field at offset in bytes with the raw value. For memo fields, bytes must hold
+     * the current memo pointer and the new memo is written straight away. The old memo is not
+     * released but its block index is added to oldMemoBlocks, to be released by the caller once
+     * bytes have been written to the table file.
+     */
+    private void replaceField(final Field field, final byte[] raw, final byte[] bytes, final int offset,
+                              final List<Integer> oldMemoBlocks)
+                       throws IOException, CorruptedTableException
+    {
+        if (! isMemoField(field))
+        {
+            encodeField(field, raw, bytes, offset);
+
+            return;
+        }
+
+        final int blockIndex = parseMemoPointer(bytes, offset, field.getLength());
+
+        if (raw == null)
+        {
+            encodeField(field, null, bytes, offset);
+        }
+        else
+        {
+            System.arraycopy(formatMemoPointer(field,
+                                               writeMemo(raw)),
+                             0,
+                             bytes,
+                             offset,
+                             field.getLength());
+        }
+
+        if (blockIndex > 0)
+        {
+            oldMemoBlocks.add(blockIndex);
+        }
+    }
+
+    /*
+     * Reads length bytes from the table file at position into bytes, starting at offset, without
+     * moving the file pointer.
+     */
+    void readTableBytesAt(final long position, final byte[] bytes, final int offset, final int length)
+                   throws IOException
+    {
+        Util.readFully(raFile.getChannel(),
+                       ByteBuffer.wrap(bytes, offset, length),
+                       position);
+    }
+
+    /*
+     * Writes length bytes from bytes, starting at offset, to the table file at position, without
+     * moving the file pointer.
+     */
+    void writeTableBytesAt(final long position, final byte[] bytes, final int offset, final int length)
+                    throws IOException
+    {
+        Util.writeFully(raFile.getChannel(),
+                        ByteBuffer.wrap(bytes, offset, length),
+                        position);
+    }
+
+    /**
+     * Sets the values of one or more fields in all records that are not flagged as "deleted" and
+     * are accepted by <code>filter</code>. The new value of each field is computed from the record
+     * by the corresponding function, all from the record as it was before the update. The table is
+     * processed in one sequential pass, a large block of records at a time, and of each block only
+     * the range that holds changed fields is written back. New memos are written for memo fields
+     * that are updated; other memos are not touched.
+     * <p>
+     * The table is locked against all other access from this virtual machine during the pass.
+     *
+     * @param functions the functions computing the new values, by field name. A function may return
+     *            a {@link Value}, a Java object as accepted by {@link #addRecord(Object...)}, or
+     *            <code>null</code> to empty the field
+     * @param filter the filter selecting the records to update, or <code>null</code> for all records
+     * @return the number of records updated
+     *
+     * @throws IOException if the table file could not be read or written
+     * @throws DbfLibException if a value could not be stored in its field. The records before the
+     *             one with that value have been updated
+     * @throws IllegalArgumentException if the table has no field with one of the names
+     */
+    public int updateColumns(final Map<String, FieldFunction> functions, final RecordFilter filter)
+                      throws IOException, DbfLibException
+    {
+        checkOpen();
+
+        final List<Field> fields = new ArrayList<Field>();
+        final List<Integer> fieldOffsets = new ArrayList<Integer>();
+        final List<FieldFunction> fieldFunctions = new ArrayList<FieldFunction>();
+
+        for (final Map.Entry<String, FieldFunction> function : functions.entrySet())
+        {
+            final int fieldIndex = getFieldIndex(function.getKey());
+            fields.add(header.getFields().get(fieldIndex));
+            fieldOffsets.add(header.getFieldOffsets()[fieldIndex]);
+            fieldFunctions.add(function.getValue());
+        }
+
+        headerLock.writeLock().lock();
+
+        try
+        {
+            final int recordLength = header.getRecordLength();
+            final int recordsPerBlock = Math.max(1, LENGTH_IO_BLOCK / recordLength);
+            final byte[] block = new byte[recordsPerBlock * recordLength];
+            final int recordCount = header.getRecordCount();
+            final boolean hasMemo = hasMemoFields(header.getFields());
+            int nrUpdated = 0;
+
+            for (int first = 0; first < recordCount; first += recordsPerBlock)
+            {
+                final int blockLength = Math.min(recordsPerBlock, recordCount - first) * recordLength;
+                Util.readFully(raFile.getChannel(),
+                               ByteBuffer.wrap(block, 0, blockLength),
+                               getRecordOffset(first));
+
+                int changedFrom = blockLength;
+                int changedTo = 0;
+                final List<Integer> oldMemoBlocks = new ArrayList<Integer>();
+
+                /*
+                 * Changed fields are written back even if a value cannot be stored, as the memos of
+                 * updated memo fields have already been replaced. The old memos are released only
+                 * once the block no longer points to them, so that a failed write cannot leave
+                 * records pointing to blocks that are then reused.
+                 */
+                try
+                {
+                    for (int offset = 0; offset < blockLength; offset += recordLength)
+                    {
+                        if (block[offset] == MARKER_RECORD_DELETED)
+                        {
+                            continue;
+                        }
+
+                        Record record = decodeRecord(block, offset, ! hasMemo || filter == null);
+
+                        if (filter != null && ! filter.accept(record))
+                        {
+                            continue;
+                        }
+
+                        if (hasMemo && filter != null)
+                        {
+                            record = decodeRecord(block, offset, true);
+                        }
+
+                        final List<byte[]> raws = new ArrayList<byte[]>();
+
+                        for (int i = 0; i < fields.size(); ++i)
+                        {
+                            raws.add(getRawValue(fields.get(i),
+                                                 fieldFunctions.get(i).apply(record)));
+                        }
+
+                        for (int i = 0; i < fields.size(); ++i)
+                        {
+                            final int fieldOffset = offset + fieldOffsets.get(i);
+                            replaceField(fields.get(i),
+                                         raws.get(i),
+                                         block,
+                                         fieldOffset,
+                                         oldMemoBlocks);
+                            changedFrom = Math.min(changedFrom, fieldOffset);
+                            changedTo = Math.max(changedTo,
+                                                 fieldOffset + fields.get(i).getLength());
+                        }
+
+                        ++nrUpdated;
+                    }
+                }
+                finally
+                {
+                    if (changedFrom < changedTo)
+                    {
+                        writeTableBytesAt(getRecordOffset(first) + changedFrom,
+                                          block,
+                                          changedFrom,
+                                          changedTo - changedFrom);
+                    }
+
+                    releaseMemos(oldMemoBlocks);
+                }
+            }
+
+            recordsWritten(nrUpdated);
+
+            return nrUpdated;
+        }
+        finally
+        {
+            headerLock.writeLock().unlock();
+        }
+    }
+
+    int getFieldIndex(final String fieldName)
+    {
+        final List<Field> fields = header.getFields();
+
+        for (int i = 0; i < fields.size(); ++i)
+        {
+            if (fields.get(i).getName().equals(fieldName))
+            {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException("No such field: " + fieldName);
+    }
+
+    /*
+     * Writes the memos of the encoded record and then the record itself at index.
+     */
+    private void writeRecord(final int index, final EncodedRecord encodedRecord)
+                      throws IOException, CorruptedTableException
+    {
+        /*
+         * The old memos are only released once the record no longer points to them, so that a
+         * failed write cannot leave the record pointing to blocks that are then reused.
+         */
+        final List<Integer> oldMemoBlocks = readMemoBlocks(index);
+        writeMemos(encodedRecord);
+        writeRecordBytesAt(index,
+                           encodedRecord.getBytes());
+        releaseMemos(oldMemoBlocks);
+
+        synchronized (deletedRecords)
+        {
+            deletedRecords.clear(index);
+        }
+    }
+
+    /*
+     * Synchronized, as appenders write memos from several threads.
+     */
+    synchronized void writeMemos(final EncodedRecord encodedRecord)
+                          throws IOException, CorruptedTableException
+    {
+        for (int i = 0; i < encodedRecord.getMemoCount(); ++i)
+        {
+            encodedRecord.setMemoPointer(i,
+                                         formatMemoPointer(encodedRecord.getMemoField(i),
+                                                           writeMemo(encodedRecord.getMemo(i))));
+        }
+    }
+
+    /**
+     * Flags the record at <code>index</code> as "deleted". To physically remove "deleted" records,
+     * a call to {@link #pack()} is necessary.
+     *
+     * @param index the index of the record to delete
+     * @throws IOException
+     * @throws NoSuchElementException if <code>index</code> is negative
+     */
+    public void deleteRecordAt(final int index)
+                        throws IOException
+    {
+        checkOpen();
+        checkIndexNotNegative(index);
+
+        final Lock stripeLock = getRecordStripe(index).writeLock();
+        headerLock.readLock().lock();
+        stripeLock.lock();
+
+        try
+        {
+            Util.writeFully(raFile.getChannel(),
+                            new byte[] { MARKER_RECORD_DELETED },
+                            getRecordOffset(index));
+
+            if (reuseDeletedRecords)
+            {
+                synchronized (deletedRecords)
+                {
+                    deletedRecords.set(index);
+                }
+            }
+        }
+        finally
+        {
+            stripeLock.unlock();
+            headerLock.readLock().unlock();
+        }
+
+        recordsWritten(1);
+    }
+
+    /**
+     * Removes the "deleted" flag from the record at <code>index</code>, so that it is part of the
+     * table again. Records that are not flagged as "deleted" are left as they are. Note that a
+     * record that has been physically removed by {@link #pack()} cannot be recalled, nor can a
+     * record that has been overwritten because deleted records are reused.
+     *
+     * @param index the index of the record to recall
+     * @throws IOException if the table file could not be written
+     * @throws NoSuchElementException if <code>index</code> is negative
+     */
+    public void recallRecordAt(final int index)
+                        throws IOException
+    {
+        checkOpen();
+        checkIndexNotNegative(index);
+
+        final Lock stripeLock = getRecordStripe(index).writeLock();
+        headerLock.readLock().lock();
+        stripeLock.lock();
+
+        try
+        {
+            Util.writeFully(raFile.getChannel(),
+                            new byte[] { MARKER_RECORD_VALID },
+                            getRecordOffset(index));
+
+            synchronized (deletedRecords)
+            {
+                deletedRecords.clear(index);
+            }
+        }
+        finally
+        {
+            stripeLock.unlock();
+            headerLock.readLock().unlock();
+        }
+
+        recordsWritten(1);
+    }
+
+    /**
+     * Flags all records that are accepted by <code>filter</code> as "deleted". The table is
+     * processed in one sequential pass, a large block of records at a time. Only records that are
+     * not yet flagged as "deleted" are passed to the filter, and only the deletion flags are
+     * changed.
+     * <p>
+     * The table is locked against all other access from this virtual machine during the pass.
+     *
+     * @param filter the filter selecting the records to delete, or <code>null</code> for all
+     *            records. The memo fields of the records passed to it are empty, and a record is
+     *            only valid during the call that it is passed to
+     * @return the number of records flagged as "deleted"
+     *
+     * @throws IOException if the table file could not be read or written
+     * @throws DbfLibException if a record could not be decoded
+     */
+    public int deleteWhere(final RecordFilter filter)
+                    throws IOException, DbfLibException
+    {
+        return setDeletionFlags(filter, MARKER_RECORD_DELETED);
+    }
+
+    /**
+     * Removes the "deleted" flag from all records that are accepted by <code>filter</code>. The
+     * table is processed as by {@link #deleteWhere(RecordFilter)}, except that only records that
+     * are flagged as "deleted" are passed to the filter.
+     *
+     * @param filter the filter selecting the records to recall, or <code>null</code> for all
+     *            deleted records. The memo fields of the records passed to it are empty, and a
+     *            record is only valid during the call that it is passed to
+     * @return the number of records recalled
+     *
+     * @throws IOException if the table file could not be read or written
+     * @throws DbfLibException if a record could not be decoded
+     *
+     * @see #recallRecordAt(int)
+     */
+    public int recallWhere(final RecordFilter filter)
+                    throws IOException, DbfLibException
+    {
+        return setDeletionFlags(filter, MARKER_RECORD_VALID);
+    }
+
+    /*
+     * Sets the deletion flag of the records accepted by filter to marker, writing back of each block
+     * only the range from the first to the last flag changed.
+     */
+    private int setDeletionFlags(final RecordFilter filter, final int marker)
+                          throws IOException, DbfLibException
+    {
+        checkOpen();
+        headerLock.writeLock().lock();
+
+        try
+        {
+            final int recordLength = header.getRecordLength();
+            final int recordsPerBlock = Math.max(1, LENGTH_IO_BLOCK / recordLength);
+            final byte[] block = new byte[recordsPerBlock * recordLength];
+            final int recordCount = header.getRecordCount();
+            final boolean deleting = marker == MARKER_RECORD_DELETED;
+
+            /*
+             * All records passed to the filter have the same deletion flag, so one record is moved
+             * through the table and only the fields the filter asks for are decoded.
+             */
+            final LazyRecordValues values =
+                new LazyRecordValues(header.getFields(), header.getFieldOffsets(), charsetName);
+            final Record record = new Record(! deleting, values);
+            int nrChanged = 0;
+
+            for (int first = 0; first < recordCount; first += recordsPerBlock)
+            {
+                final int blockLength = Math.min(recordsPerBlock, recordCount - first) * recordLength;
+                Util.readFully(raFile.getChannel(),
+                               ByteBuffer.wrap(block, 0, blockLength),
+                               getRecordOffset(first));
+
+                int changedFrom = blockLength;
+                int changedTo = 0;
+
+                for (int offset = 0; offset < blockLength; offset += recordLength)
+                {
+                    if ((block[offset] == MARKER_RECORD_DELETED) == deleting)
+                    {
+                        continue;
+                    }
+
+                    if (filter != null)
+                    {
+                        values.setRecord(block, offset);
+
+                        if (! filter.accept(record))
+                        {
+                            continue;
+                        }
+                    }
+
+                    block[offset] = (byte) marker;
+                    changedFrom = Math.min(changedFrom, offset);
+                    changedTo = offset + 1;
+                    ++nrChanged;
+
+                    synchronized (deletedRecords)
+                    {
+                        if (! deleting)
+                        {
+                            deletedRecords.clear(first + offset / recordLength);
+                        }
+                        else if (reuseDeletedRecords)
+                        {
+                            deletedRecords.set(first + offset / recordLength);
+                        }
+                    }
+                }
+
+                if (changedFrom < changedTo)
+                {
+                    Util.writeFully(raFile.getChannel(),
+                                    ByteBuffer.wrap(block, changedFrom, changedTo - changedFrom),
+                                    getRecordOffset(first) + changedFrom);
+                }
+            }
+
+            recordsWritten(nrChanged);
+
+            return nrChanged;
+        }
+        finally
+        {
+            headerLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the memo file so that it only contains the memos that are still referenced from the
+     * table file. Memo blocks abandoned by earlier updates are thereby reclaimed. The referenced
+     * memos are copied verbatim and in block order to a new memo file, after which a copy of the
+     * table file is written with the memo pointers adjusted accordingly. Finally both new files are
+     * moved into place, replacing the originals.
+     * <p>
+     * The two files cannot be replaced in one atomic step. The moves are therefore recorded in a
+     * swap file next to the table first. If the process stops after the swap file was written but
+     * before both files were moved, the next {@link #open()} moves the remaining file into place,
+     * so that the table and memo file always match. If it stops earlier, the originals are kept.
+     * <p>
+     * Memos of records flagged as "deleted" are kept, as these records are still part of the
+     * table. Call {@link #pack()} first to discard them as well.
+     *
+     * @throws IOException if the table file or the memo file could not be read or written
+     * @throws DbfLibException if the memo file is missing or corrupt
+     */
+    public void compactMemo()
+                     throws IOException, DbfLibException
+    {
+        checkOpen();
+
+        headerLock.writeLock().lock();
+
+        try
+        {
+            final List<Field> fields = header.getFields();
+            final int[] offsets = header.getFieldOffsets();
+            final List<Integer> memoFieldIndexes = new ArrayList<Integer>();
+
+            for (int i = 0; i < fields.size(); ++i)
+            {
+                if (isMemoField(fields.get(i)))
+                {
+                    memoFieldIndexes.add(i);
+                }
+            }
+
+            if (memoFieldIndexes.isEmpty())
+            {
+                return;
+            }
+
+            ensureMemoOpened(IfNonExistent.ERROR);
+
+            /*
+             * First pass: collect the memo pointers, so that the memos can be copied in block order.
+             */
+            final byte[] recordBytes = new byte[header.getRecordLength()];
+            final SortedSet<Integer> blockIndexes = new TreeSet<Integer>();
+
+            for (int i = 0; i < header.getRecordCount(); ++i)
+            {
+                readRecordBytes(i, recordBytes);
+
+                for (final int f : memoFieldIndexes)
+                {
+                    final int blockIndex = parseMemoPointer(recordBytes,
+                                                            offsets[f],
+                                                            fields.get(f).getLength());
+
+                    if (blockIndex > 0)
+                    {
+                        blockIndexes.add(blockIndex);
+                    }
+                }
+            }
+
+            final File memoFile = memo.getFile();
+            final File compactMemoFile = new File(memoFile.getPath() + ".tmp");
+            final File compactTableFile = new File(tableFile.getPath() + ".tmp");
+            final Map<Integer, Integer> blockIndexMap = new HashMap<Integer, Integer>();
+            final Memo compactMemo = memo.createEmptyCopy(compactMemoFile);
+
+            try
+            {
+                for (final int blockIndex : blockIndexes)
+                {
+                    blockIndexMap.put(blockIndex,
+                                      memo.copyBlocksTo(compactMemo, blockIndex));
+                }
+
+                if (durability != Durability.NONE)
+                {
+                    compactMemo.force();
+                }
+            }
+            finally
+            {
+                compactMemo.close();
+            }
+
+            /*
+             * Second pass: copy the table file, pointing the memo fields to the copied memos.
+             */
+            final FileOutputStream fileOut = new FileOutputStream(compactTableFile);
+            final OutputStream out = new BufferedOutputStream(fileOut);
+
+            try
+            {
+                final byte[] headerBytes = new byte[header.getLength()];
+                raFile.seek(0);
+                raFile.readFully(headerBytes);
+                out.write(headerBytes);
+
+                for (int i = 0; i < header.getRecordCount(); ++i)
+                {
+                    readRecordBytes(i, recordBytes);
+
+                    for (final int f : memoFieldIndexes)
+                    {
+                        final Field field = fields.get(f);
+                        final int blockIndex = parseMemoPointer(recordBytes,
+                                                                offsets[f],
+                                                                field.getLength());
+
+                        if (blockIndex > 0)
+                        {
+                            System.arraycopy(formatMemoPointer(field,
+                                                               blockIndexMap.get(blockIndex)),
+                                             0,
+                                             recordBytes,
+                                             offsets[f],
+                                             field.getLength());
+                        }
+                    }
+
+                    out.write(recordBytes);
+                }
+
+                out.write(MARKER_EOF);
+
+                /*
+                 * The files replace the originals, so they must be on disk before that.
+                 */
+                if (durability != Durability.NONE)
+                {
+                    out.flush();
+                    fileOut.getChannel().force(true);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            close();
+            fileSwap.replaceFiles(Arrays.asList(compactMemoFile, compactTableFile),
+                                  Arrays.asList(memoFile, tableFile));
+            raFile = new RandomAccessFile(tableFile, "rw");
+        }
+        finally
+        {
+            headerLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Changes the fields of this table. The table file is rewritten in one sequential pass, to a
+     * new file that then replaces the original. Fields are matched by name with the current fields:
+     * <ul>
+     * <li>fields that are not in <code>fields</code> are dropped;</li>
+     * <li>fields that are only in <code>fields</code> are added, and are empty in all records;</li>
+     * <li>fields that are unchanged are copied byte for byte;</li>
+     * <li>fields that have a different type, length or decimal count are converted, as if the
+     * values were added to the table with {@link #addRecord(Object...)}.</li>
+     * </ul>
+     * The memo file is not rewritten. Memo fields keep pointing to the same memo blocks, even if
+     * the length of the field changes. A memo field cannot be converted to or from another type.
+     * <p>
+     * Records flagged as "deleted" are kept, and their fields are converted as well. The table is
+     * closed and opened again, which releases any locks on it.
+     *
+     * @param fields the new fields of the table
+     *
+     * @throws IOException if the table file could not be read or written
+     * @throws DbfLibException if one of the fields is invalid for the version of the table, or a
+     *             value could not be converted. The table is then left as it was
+     * @throws IllegalArgumentException if a memo field would be converted to or from another type
+     */
+    public void alterTable(final List<Field> fields)
+                    throws IOException, DbfLibException
+    {
+        checkOpen();
+
+        headerLock.writeLock().lock();
+
+        try
+        {
+            final DbfHeader newHeader = new DbfHeader();
+            newHeader.setVersion(header.getVersion());
+            newHeader.setHasMemo(hasMemoFields(fields));
+            newHeader.setFields(new ArrayList<Field>(fields));
+            newHeader.setRecordCount(header.getRecordCount());
+
+            final List<Field> oldFields = header.getFields();
+            final int[] oldOffsets = header.getFieldOffsets();
+            final int[] newOffsets = newHeader.getFieldOffsets();
+            final int[] sources = new int[fields.size()];
+
+            for (int i = 0; i < fields.size(); ++i)
+            {
+                final Field field = fields.get(i);
+                sources[i] = -1;
+
+                for (int j = 0; j < oldFields.size(); ++j)
+                {
+                    if (oldFields.get(j).getName().equals(field.getName()))
+                    {
+                        sources[i] = j;
+                    }
+                }
+
+                if (sources[i] >= 0 && (isMemoField(field) || isMemoField(oldFields.get(sources[i])))
+                        && field.getType() != oldFields.get(sources[i]).getType())
+                {
+                    throw new IllegalArgumentException("Cannot convert field " + field.getName() + " from "
+                                                       + oldFields.get(sources[i]).getType() + " to "
+                                                       + field.getType());
+                }
+            }
+
+            final File alteredTableFile = new File(tableFile.getPath() + ".tmp");
+            final FileOutputStream fileOut = new FileOutputStream(alteredTableFile);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, LENGTH_IO_BLOCK));
+            boolean written = false;
+
+            try
+            {
+                newHeader.writeAll(out);
+
+                final int recordLength = header.getRecordLength();
+                final int recordsPerBlock = Math.max(1, LENGTH_IO_BLOCK / recordLength);
+                final byte[] block = new byte[recordsPerBlock * recordLength];
+                final byte[] newRecordBytes = new byte[newHeader.getRecordLength()];
+                final int recordCount = header.getRecordCount();
+
+                for (int first = 0; first < recordCount; first += recordsPerBlock)
+                {
+                    final int blockLength = Math.min(recordsPerBlock, recordCount - first) * recordLength;
+                    Util.readFully(raFile.getChannel(),
+                                   ByteBuffer.wrap(block, 0, blockLength),
+                                   getRecordOffset(first));
+
+                    for (int offset = 0; offset < blockLength; offset += recordLength)
+                    {
+                        newRecordBytes[0] = block[offset];
+
+                        /*
+                         * Only decoded if a field must be converted.
+                         */
+                        Record record = null;
+
+                        for (int i = 0; i < fields.size(); ++i)
+                        {
+                            final Field field = fields.get(i);
+                            final int newOffset = newOffsets[i];
+
+                            if (sources[i] < 0)
+                            {
+                                encodeField(field, null, newRecordBytes, newOffset);
+
+                                continue;
+                            }
+
+                            final Field oldField = oldFields.get(sources[i]);
+                            final int oldOffset = offset + oldOffsets[sources[i]];
+
+                            if (field.equals(oldField))
+                            {
+                                System.arraycopy(block, oldOffset, newRecordBytes, newOffset, field.getLength());
+                            }
+                            else if (isMemoField(field))
+                            {
+                                final int blockIndex = parseMemoPointer(block,
+                                                                        oldOffset,
+                                                                        oldField.getLength());
+                                encodeField(field,
+                                            blockIndex == 0 ? null : formatMemoPointer(field, blockIndex),
+                                            newRecordBytes,
+                                            newOffset);
+                            }
+                            else
+                            {
+                                if (record == null)
+                                {
+                                    record = decodeRecord(block, offset, false);
+                                }
+
+                                encodeField(field,
+                                            getRawValue(field,
+                                                        record.getTypedValue(oldField.getName())),
+                                            newRecordBytes,
+                                            newOffset);
+                            }
+                        }
+
+                        out.write(newRecordBytes);
+                    }
+                }
+
+                out.write(MARKER_EOF);
+
+                /*
+                 * The file replaces the original, so it must be on disk before that.
+                 */
+                if (durability != Durability.NONE)
+                {
+                    out.flush();
+                    fileOut.getChannel().force(true);
+                }
+
+                written = true;
+            }
+            finally
+            {
+                out.close();
+
+                if (! written)
+                {
+                    alteredTableFile.delete();
+                }
+            }
+
+            close();
+            Util.replaceFile(alteredTableFile, tableFile);
+            open();
+        }
+        finally
+        {
+            headerLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes a copy of this table in another version, e.g. to turn a Clipper table into a FoxPro
+     * table. The copy has the same fields and records, including the records flagged as "deleted".
+     * It is written in one sequential pass, a large block of records at a time. Field values are
+     * stored the same way in all versions, so they are copied byte for byte. Only the header, the
+     * memo pointers and the memos themselves are written in the format of the new version; the
+     * memos are read and written one at a time, in record order. If the conversion fails, the
+     * partly written table and memo file are deleted.
+     *
+     * @param targetFile the table file to create. A memo file is created next to it if the table
+     *            has memo fields
+     * @param version the version of the copy
+     *
+     * @throws FileAlreadyExistsException if <code>targetFile</code> already exists
+     * @throws IOException if one of the tables or memo files could not be read or written
+     * @throws DbfLibException if a field is not supported by <code>version</code>, or if the memo
+     *             file of this table is missing or corrupt
+     */
+    public void convertTo(final File targetFile, final Version version)
+                   throws IOException, DbfLibException
+    {
+        checkOpen();
+
+        if (targetFile.exists())
+        {
+            throw new FileAlreadyExistsException(targetFile.getPath());
+        }
+
+        headerLock.readLock().lock();
+
+        try
+        {
+            final List<Field> fields = header.getFields();
+            final int[] offsets = header.getFieldOffsets();
+            final boolean hasMemo = hasMemoFields(fields);
+            final Table target = new Table(targetFile, version, new ArrayList<Field>(fields), charsetName);
+            boolean converted = false;
+
+            try
+            {
+                target.open(IfNonExistent.CREATE);
+
+                if (hasMemo)
+                {
+                    target.ensureMemoOpened(IfNonExistent.CREATE);
+                }
+
+                final int recordLength = header.getRecordLength();
+                final int recordsPerBlock = Math.max(1, LENGTH_IO_BLOCK / recordLength);
+                final byte[] block = new byte[recordsPerBlock * recordLength];
+                final int recordCount = header.getRecordCount();
+
+                for (int first = 0; first < recordCount; first += recordsPerBlock)
+                {
+                    final int blockLength = Math.min(recordsPerBlock, recordCount - first) * recordLength;
+                    Util.readFully(raFile.getChannel(),
+                                   ByteBuffer.wrap(block, 0, blockLength),
+                                   getRecordOffset(first));
+
+                    for (int offset = 0; hasMemo && offset < blockLength; offset += recordLength)
+                    {
+                        for (int i = 0; i < fields.size(); ++i)
+                        {
+                            final Field field = fields.get(i);
+
+                            if (isMemoField(field))
+                            {
+                                final int fieldOffset = offset + offsets[i];
+                                final byte[] memoBytes = readMemo(new String(block, fieldOffset, field.getLength()));
+                                encodeField(field,
+                                            memoBytes == null ? null
+                                                              : target.formatMemoPointer(field,
+                                                                                         target.writeMemo(memoBytes)),
+                                            block,
+                                            fieldOffset);
+                            }
+                        }
+                    }
+
+                    Util.writeFully(target.raFile.getChannel(),
+                                    ByteBuffer.wrap(block, 0, blockLength),
+                                    target.getRecordOffset(first));
+                }
+
+                target.publishRecordCount(recordCount);
+
+                if (durability != Durability.NONE)
+                {
+                    target.commit();
+                }
+
+                converted = true;
+            }
+            finally
+            {
+                try
+                {
+                    target.close();
+                }
+                finally
+                {
+                    if (! converted)
+                    {
+                        Util.deleteTableFiles(targetFile, version);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            headerLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Splits this table into a number of new tables with the same fields, by record range. The
+     * records are divided into as many ranges of equal length as there are target files, and the
+     * records of each range are copied to the corresponding table, in order. Records flagged as
+     * "deleted" are skipped. See {@link #splitByKey(String, List, int)} for how the tables are
+     * written.
+     *
+     * @param targetFiles the table files to create
+     * @param threadCount the number of threads to write the new tables on
+     * @return the number of records copied to each new table
+     *
+     * @throws FileAlreadyExistsException if one of the target files already exists
+     * @throws IOException if one of the tables or memo files could not be read or written
+     * @throws DbfLibException if the memo file of this table is missing or corrupt
+     * @throws IllegalArgumentException if there are no target files or <code>threadCount</code> is
+     *             less than one
+     */
+    public int[] splitByRange(final List<File> targetFiles, final int threadCount)
+                       throws IOException, DbfLibException
+    {
+        return split(-1, targetFiles, threadCount);
+    }
+
+    /**
+     * Splits this table into a number of new tables with the same fields, by the value of a key
+     * field. Records with the same key value always end up in the same table; which table that is
+     * depends on a hash of the key value as stored, without leading and trailing spaces. Records
+     * flagged as "deleted" are skipped.
+     * <p>
+     * This table is read in one sequential pass, a large block of records at a time. The records
+     * are copied as they are stored, without being decoded, to a buffer for their target table.
+     * Full buffers are written on <code>threadCount</code> worker threads, which also copy the
+     * memos of the records to the memo file of their table. The new tables have the version and
+     * character set of this table. If the split fails, the new tables are deleted.
+     *
+     * @param keyFieldName the name of the field to split by
+     * @param targetFiles the table files to create
+     * @param threadCount the number of threads to write the new tables on
+     * @return the number of records copied to each new table
+     *
+     * @throws FileAlreadyExistsException if one of the target files already exists
+     * @throws IOException if one of the tables or memo files could not be read or written
+     * @throws DbfLibException if the memo file of this table is missing or corrupt
+     * @throws IllegalArgumentException if the table has no field with that name, there are no
+     *             target files or <code>threadCount</code> is less than one
+     */
+    public int[] splitByKey(final String keyFieldName, final List<File> targetFiles, final int threadCount)
+                     throws IOException, DbfLibException
+    {
+        return split(getFieldIndex(keyFieldName),
+                     targetFiles,
+                     threadCount);
+    }
+
+    private int[] split(final int keyFieldIndex, final List<File> targetFiles, final int threadCount)
+                 throws IOException, DbfLibException
+    {
+        checkOpen();
+
+        if (targetFiles.isEmpty())
+        {
+            throw new IllegalArgumentException("At least one target file is needed");
+        }
+
+        if (threadCount < 1)
+        {
+            throw new IllegalArgumentException("Thread count must be at least one");
+        }
+
+        for (final File targetFile : targetFiles)
+        {
+            if (targetFile.exists())
+            {
+                throw new FileAlreadyExistsException(targetFile.getPath());
+            }
+        }
+
+        headerLock.readLock().lock();
+
+        try
+        {
+            return new TableSplitter(this, threadCount).split(keyFieldIndex, targetFiles);
+        }
+        finally
+        {
+            headerLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * As {@link #sortTable(List, SortOrder, long)}, using 64 MB of memory.
+     */
+    public void sortTable(final List<String> keyFieldNames, final SortOrder order)
+                   throws IOException, DbfLibException
+    {
+        sortTable(keyFieldNames, order, DEFAULT_SORT_MEMORY);
+    }
+
+    /**
+     * Reorders the records of this table by the values of one or more key fields. The records are
+     * sorted as they are stored, without being decoded, so memo fields keep pointing to the same
+     * memos and the memo file is not touched. Records with the same key keep their relative order.
+     * Records flagged as "deleted" are sorted along with the others.
+     * <p>
+     * The records are sorted with an external merge sort. The table is read once, in runs that fit
+     * in <code>memoryBudget</code>. Each run is sorted in memory and, if the table does not fit in
+     * one run, written to a temporary file next to the table file. The runs are then merged into a
+     * new table file, which replaces the original. The table is closed and opened again, which
+     * releases any locks on it.
+     *
+     * @param keyFieldNames the names of the key fields, most significant first. Memo fields cannot
+     *            be used
+     * @param order the order to sort in
+     * @param memoryBudget the number of bytes of memory to use, approximately
+     *
+     * @throws IOException if the table file or a temporary file could not be read or written
+     * @throws DbfLibException if the table could not be opened again
+     * @throws IllegalArgumentException if there are no key fields, a key field does not exist or is
+     *             a memo field
+     */
+    public void sortTable(final List<String> keyFieldNames, final SortOrder order, final long memoryBudget)
+                   throws IOException, DbfLibException
+    {
+        checkOpen();
+
+        final TableSorter sorter = new TableSorter(this, keyFieldNames, order);
+        headerLock.writeLock().lock();
+
+        try
+        {
+            final File sortedTableFile = sorter.writeSortedTable(memoryBudget);
+            close();
+            Util.replaceFile(sortedTableFile, tableFile);
+            open();
+        }
+        finally
+        {
+            headerLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * As {@link #iterateSorted(List, SortOrder, long)}, in ascending order and using 64 MB of
+     * memory.
+     */
+    public Iterator<Record> iterateSorted(final List<String> keyFieldNames)
+                                   throws IOException
+    {
+        return iterateSorted(keyFieldNames, SortOrder.ASCENDING, DEFAULT_SORT_MEMORY);
+    }
+
+    /**
+     * Returns an iterator over the records of this table in the order of one or more key fields,
+     * without changing the table. Records with the same key are returned in the order of the table.
+     * Records flagged as "deleted" are skipped.
+     * <p>
+     * The keys are read in one sequential pass over the table when this method is called, and
+     * sorted along with the record indexes, on several threads for large tables. If the keys do
+     * not fit in <code>memoryBudget</code>, they are sorted in runs that are written to temporary
+     * files next to the table file, and merged while iterating. The records themselves are read
+     * while iterating, a batch of records at a time, each batch in the order of the table file.
+     * <p>
+     * The order is that of the keys when this method was called. Records appended later are not
+     * returned. The iterator does not support {@link Iterator#remove()}.
+     *
+     * @param keyFieldNames the names of the key fields, most significant first. Memo fields cannot
+     *            be used
+     * @param order the order to return the records in
+     * @param memoryBudget the number of bytes of memory to use for the keys, approximately
+     * @return a <code>Record</code> iterator
+     *
+     * @throws IOException if the table file could not be read, or a temporary file could not be
+     *             written
+     * @throws IllegalArgumentException if there are no key fields, a key field does not exist or is
+     *             a memo field
+     */
+    public Iterator<Record> iterateSorted(final List<String> keyFieldNames, final SortOrder order,
+                                          final long memoryBudget)
+                                   throws IOException
+    {
+        checkOpen();
+
+        final TableSorter sorter = new TableSorter(this, keyFieldNames, order);
+        headerLock.readLock().lock();
+
+        try
+        {
+            return sorter.iterateSorted(memoryBudget);
+        }
+        finally
         {
-            byte[] raw = record.getRawValue(field);
+            headerLock.readLock().unlock();
+        }
+    }
 
-            if (raw == null)
-            {
-                raw = Util.repeat((byte) ' ',
-                                  field.getLength());
-            }
-            else if (field.getType() == Type.MEMO || field.getType() == Type.BINARY || field.getType() == Type.GENERAL)
-            {
-                final int i = writeMemo(raw);
+    /*
+     * Returns the indexes of the first blocks of the memos that the record at index points to.
+     */
+    private List<Integer> readMemoBlocks(final int index)
+                                  throws IOException, CorruptedTableException
+    {
+        final List<Integer> blockIndexes = new ArrayList<Integer>();
 
-                if (header.getVersion() == Version.DBASE_4 || header.getVersion() == Version.DBASE_5)
+        if (index >= header.getRecordCount())
+        {
+            return blockIndexes;
+        }
+
+        final List<Field> fields = header.getFields();
+        final int[] offsets = header.getFieldOffsets();
+        byte[] recordBytes = null;
+
+        for (int i = 0; i < fields.size(); ++i)
+        {
+            final Field field = fields.get(i);
+
+            if (isMemoField(field))
+            {
+                if (recordBytes == null)
                 {
-                    raw = String.format("%0" + field.getLength() + "d", i).getBytes();
+                    recordBytes = new byte[header.getRecordLength()];
+                    readRecordBytes(index, recordBytes);
                 }
-                else
+
+                final int blockIndex = parseMemoPointer(recordBytes,
+                                                        offsets[i],
+                                                        field.getLength());
+
+                if (blockIndex > 0)
                 {
-                    raw = String.format("%" + field.getLength() + "d", i).getBytes();
+                    blockIndexes.add(blockIndex);
                 }
             }
+        }
 
-            raFile.write(raw);
+        return blockIndexes;
+    }
 
-            if (raw.length < field.getLength())
-            {
-                raFile.write(Util.repeat((byte) 0x00, field.getLength() - raw.length));
-            }
+    private synchronized void readNextAvailableMemoBlock()
+                                                  throws IOException
+    {
+        if (memo != null)
+        {
+            memo.readNextAvailableBlock();
         }
     }
 
-    /**
-     * Flags the record at <code>index</code> as "deleted". To physically remove "deleted" records,
-     * a call to {@link #pack()} is necessary.
-     *
-     * @param index the index of the record to delete
-     * @throws IOException
+    private synchronized void releaseMemo(final int blockIndex)
+                                   throws IOException, CorruptedTableException
+    {
+        ensureMemoOpened(IfNonExistent.ERROR);
+        memo.releaseMemo(blockIndex);
+    }
+
+    private void releaseMemos(final List<Integer> blockIndexes)
+                       throws IOException, CorruptedTableException
+    {
+        for (final int blockIndex : blockIndexes)
+        {
+            releaseMemo(blockIndex);
+        }
+    }
+
+    private static boolean isMemoField(final Field field)
+    {
+        return field.getType() == Type.MEMO || field.getType() == Type.BINARY || field.getType() == Type.GENERAL
+               || field.getType() == Type.PICTURE;
+    }
+
+    private byte[] formatMemoPointer(final Field field, final int blockIndex)
+    {
+        if (header.getVersion() == Version.DBASE_4 || header.getVersion() == Version.DBASE_5)
+        {
+            return String.format("%0" + field.getLength() + "d", blockIndex).getBytes();
+        }
+
+        return String.format("%" + field.getLength() + "d", blockIndex).getBytes();
+    }
+
+    private static int parseMemoPointer(final byte[] recordBytes, final int offset, final int length)
+                                 throws CorruptedTableException
+    {
+        final String pointer = new String(recordBytes, offset, length).replace('\0', ' ').trim();
+
+        if (pointer.isEmpty())
+        {
+            return 0;
+        }
+
+        try
+        {
+            return Integer.parseInt(pointer);
+        }
+        catch (final NumberFormatException numberFormatException)
+        {
+            throw new CorruptedTableException("Invalid memo pointer: '" + pointer + "'");
+        }
+    }
+
+    /*
+     * Reads without moving the file pointer, so that records can be read from several threads at
+     * once.
      */
-    public void deleteRecordAt(final int index)
-                        throws IOException
+    private void readRecordBytes(final int index, final byte[] recordBytes)
+                          throws IOException
     {
-        checkOpen();
-        jumpToRecordAt(index);
-        raFile.writeByte(MARKER_RECORD_DELETED);
+        Util.readFully(raFile.getChannel(),
+                       recordBytes,
+                       getRecordOffset(index));
+    }
+
+    private byte readDeletionFlag(final int index)
+                           throws IOException
+    {
+        final byte[] flag = new byte[1];
+        readRecordBytes(index, flag);
+
+        return flag[0];
     }
 
-    private int writeMemo(final byte[] memoText)
+    private synchronized int writeMemo(final byte[] memoText)
                    throws IOException, CorruptedTableException
     {
         ensureMemoOpened(IfNonExistent.CREATE);
@@ -538,7 +3259,7 @@ public class Table
         header.writeRecordCount(raFile);
     }
 
-    private void checkOpen()
+    void checkOpen()
     {
         if (raFile == null)
         {
@@ -546,7 +3267,75 @@ public class Table
         }
     }
 
-    private byte[] readMemo(final String memoIndex)
+    private byte[] readMemo(final String memoIndex, final Map<Integer, byte[]> memos)
+                     throws IOException, CorruptedTableException
+    {
+        if (memos != null && ! memoIndex.trim().isEmpty())
+        {
+            final byte[] memoBytes = memos.get(Integer.parseInt(memoIndex.trim()));
+
+            if (memoBytes != null)
+            {
+                return memoBytes;
+            }
+        }
+
+        return readMemo(memoIndex);
+    }
+
+    /*
+     * Reads the memos of the records in block, in the order of the memo file rather than that of
+     * the records, so that reading them is one forward pass through the memo file.
+     */
+    private synchronized Map<Integer, byte[]> readBlockMemos(final byte[] block, final int nrOfRecords,
+                                                             final boolean includeDeleted)
+                                                      throws IOException, CorruptedTableException
+    {
+        final List<Field> fields = header.getFields();
+        final int[] offsets = header.getFieldOffsets();
+        final int recordLength = header.getRecordLength();
+        final SortedSet<Integer> blockIndexes = new TreeSet<Integer>();
+
+        for (int offset = 0; offset < nrOfRecords * recordLength; offset += recordLength)
+        {
+            if (! includeDeleted && block[offset] == MARKER_RECORD_DELETED)
+            {
+                continue;
+            }
+
+            for (int i = 0; i < fields.size(); ++i)
+            {
+                if (isMemoField(fields.get(i)))
+                {
+                    final int blockIndex = parseMemoPointer(block,
+                                                            offset + offsets[i],
+                                                            fields.get(i).getLength());
+
+                    if (blockIndex > 0)
+                    {
+                        blockIndexes.add(blockIndex);
+                    }
+                }
+            }
+        }
+
+        final Map<Integer, byte[]> memos = new HashMap<Integer, byte[]>();
+
+        if (! blockIndexes.isEmpty())
+        {
+            ensureMemoOpened(IfNonExistent.ERROR);
+
+            for (final int blockIndex : blockIndexes)
+            {
+                memos.put(blockIndex,
+                          memo.readMemo(blockIndex));
+            }
+        }
+
+        return memos;
+    }
+
+    private synchronized byte[] readMemo(final String memoIndex)
                      throws IOException, CorruptedTableException
     {
         ensureMemoOpened(IfNonExistent.ERROR);
@@ -627,9 +3416,9 @@ public class Table
     }
 
     /**
-     * Returns the record at index. If the index points to a record beyond the last a
-     * {@link NoSuchElementException} is thrown. Attention: records marked as deleted <em>are</em>
-     * returned.
+     * Returns the record at index. If the index is negative or points to a record beyond the last
+     * a {@link NoSuchElementException} is thrown. Attention: records marked as deleted
+     * <em>are</em> returned.
      *
      * @param index the zero-based index of the record
      * @return a Record object
@@ -641,61 +3430,257 @@ public class Table
     {
         checkOpen();
 
-        if (index >= header.getRecordCount())
+        final Lock stripeLock = getRecordStripe(index).readLock();
+        headerLock.readLock().lock();
+        stripeLock.lock();
+
+        try
         {
-            throw new NoSuchElementException(String.format("Invalid index: %d", index));
+            return readRecordAt(index);
+        }
+        finally
+        {
+            stripeLock.unlock();
+            headerLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the records at <code>indexes</code>, in the same order. The same index may occur more
+     * than once. As {@link #getRecordAt(int)}, records marked as deleted <em>are</em> returned.
+     * <p>
+     * The records are read in the order of the table file rather than in the order of
+     * <code>indexes</code>. Records that are near each other are read together, including the
+     * records between them, so that a batch of scattered records takes far fewer reads than fetching
+     * them one by one. The memos of the records are read afterwards, in the order of the memo file.
+     * The table is not changed by other threads of this process while the records are read.
+     *
+     * @param indexes the zero-based indexes of the records
+     * @return the records, in the order of <code>indexes</code>
+     *
+     * @throws IOException if the table or memo file could not be read
+     * @throws CorruptedTableException if a memo could not be read
+     * @throws NoSuchElementException if an index is negative or points to a record beyond the last
+     */
+    public Record[] getRecordsAt(final int[] indexes)
+                          throws IOException, CorruptedTableException
+    {
+        checkOpen();
+
+        final long[] sorted = RecordBatchReader.sortIndexes(indexes);
+
+        headerLock.readLock().lock();
+
+        for (final ReadWriteLock stripe : recordStripes)
+        {
+            stripe.readLock().lock();
+        }
+
+        try
+        {
+            return batchReader.read(sorted);
         }
+        finally
+        {
+            for (final ReadWriteLock stripe : recordStripes)
+            {
+                stripe.readLock().unlock();
+            }
+
+            headerLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Starts reading the record at <code>index</code> without waiting for it, and returns a
+     * <code>Future</code> that holds the record once it has been read. See
+     * {@link #getRecordsAtAsync(int[], Object, CompletionHandler)} for details.
+     *
+     * @param index the zero-based index of the record
+     * @return the pending record
+     *
+     * @throws IOException if the table file could not be opened for asynchronous reading
+     * @throws NoSuchElementException if the index is negative or points to a record beyond the last
+     */
+    public Future<Record> getRecordAtAsync(final int index)
+                                    throws IOException
+    {
+        final ReadFuture<Record> future = new ReadFuture<Record>();
+        getRecordAtAsync(index, null, future);
+
+        return future;
+    }
+
+    /**
+     * Starts reading the record at <code>index</code> without waiting for it, and passes the
+     * record to <code>handler</code> once it has been read. See
+     * {@link #getRecordsAtAsync(int[], Object, CompletionHandler)} for details.
+     *
+     * @param <A> the type of the attachment
+     * @param index the zero-based index of the record
+     * @param attachment the object to pass to <code>handler</code>, may be <code>null</code>
+     * @param handler the handler to call when the record has been read, or reading it has failed
+     *
+     * @throws IOException if the table file could not be opened for asynchronous reading
+     * @throws NoSuchElementException if the index is negative or points to a record beyond the last
+     */
+    public <A> void getRecordAtAsync(final int index, final A attachment,
+                                     final CompletionHandler<Record, ? super A> handler)
+                              throws IOException
+    {
+        getRecordsAtAsync(new int[] { index },
+                          attachment,
+                          new CompletionHandler<Record[], A>()
+            {
+                public void completed(final Record[] records, final A attachment)
+                {
+                    handler.completed(records[0], attachment);
+                }
+
+                public void failed(final Throwable exception, final A attachment)
+                {
+                    handler.failed(exception, attachment);
+                }
+            });
+    }
+
+    /**
+     * Starts reading the records at <code>indexes</code> without waiting for them, and returns a
+     * <code>Future</code> that holds the records once they have been read. See
+     * {@link #getRecordsAtAsync(int[], Object, CompletionHandler)} for details.
+     *
+     * @param indexes the zero-based indexes of the records
+     * @return the pending records, in the order of <code>indexes</code>
+     *
+     * @throws IOException if the table file could not be opened for asynchronous reading
+     * @throws NoSuchElementException if an index is negative or points to a record beyond the last
+     */
+    public Future<Record[]> getRecordsAtAsync(final int[] indexes)
+                                       throws IOException
+    {
+        final ReadFuture<Record[]> future = new ReadFuture<Record[]>();
+        getRecordsAtAsync(indexes, null, future);
+
+        return future;
+    }
+
+    /**
+     * Starts reading the records at <code>indexes</code> without waiting for them, and passes the
+     * records, in the order of <code>indexes</code>, to <code>handler</code> once they have all
+     * been read. As in {@link #getRecordsAt(int[])}, records that are near each other are read
+     * together, but here all reads are started at once through an {@link AsynchronousFileChannel},
+     * so that the storage can serve them in parallel. Many batches may be pending at the same time.
+     * <p>
+     * The handler is called on a thread of the default thread pool of asynchronous channels. The
+     * memos of the records are read on that thread as well, in the order of the memo file, and
+     * without asynchronous I/O. If a read fails, <code>handler</code> is called once with the
+     * exception.
+     * <p>
+     * The indexes are checked against the record count when this method is called. The records are
+     * not locked while they are read, so a record that is updated at the same time may be returned
+     * in either its old or its new state. If the table is closed before the records have been read,
+     * the handler fails with an {@link java.nio.channels.AsynchronousCloseException}.
+     *
+     * @param <A> the type of the attachment
+     * @param indexes the zero-based indexes of the records
+     * @param attachment the object to pass to <code>handler</code>, may be <code>null</code>
+     * @param handler the handler to call when the records have been read, or reading them has
+     *            failed
+     *
+     * @throws IOException if the table file could not be opened for asynchronous reading
+     * @throws NoSuchElementException if an index is negative or points to a record beyond the last
+     */
+    public <A> void getRecordsAtAsync(final int[] indexes, final A attachment,
+                                      final CompletionHandler<Record[], ? super A> handler)
+                               throws IOException
+    {
+        batchReader.readAsync(indexes, attachment, handler);
+    }
+
+    /*
+     * Decodes a batch of records, reading their memos in the order of the memo file.
+     */
+    Record[] decodeRecords(final byte[] recordBytes, final int nrOfRecords)
+                            throws IOException, CorruptedTableException
+    {
+        checkOpen();
+
+        final int recordLength = header.getRecordLength();
+        final Map<Integer, byte[]> memos =
+            hasMemoFields(header.getFields()) ? readBlockMemos(recordBytes, nrOfRecords, true) : null;
+        final Record[] records = new Record[nrOfRecords];
+
+        for (int i = 0; i < nrOfRecords; ++i)
+        {
+            records[i] = decodeRecord(recordBytes, i * recordLength, true, memos);
+        }
+
+        return records;
+    }
 
-        jumpToRecordAt(index);
+    private Record readRecordAt(final int index)
+                         throws IOException, CorruptedTableException
+    {
+        if (index < 0 || index >= header.getRecordCount())
+        {
+            throw new NoSuchElementException(String.format("Invalid index: %d", index));
+        }
 
-        final byte firstByteOfRecord = raFile.readByte();
+        final byte[] recordBytes = new byte[header.getRecordLength()];
+        readRecordBytes(index, recordBytes);
 
         /*
          * This should actually not be possible, as we already checked the index against the record
          * count. Checking anyway to be on the safe side.
          */
-        if (firstByteOfRecord == MARKER_EOF)
+        if (recordBytes[0] == MARKER_EOF)
         {
             throw new NoSuchElementException(String.format("Invalid index: %d", index));
         }
 
+        return decodeRecord(recordBytes, 0, true);
+    }
+
+    /*
+     * Converts the record stored at offset in recordBytes to a Record. If readMemos is false, the
+     * memo file is not accessed and memo fields are left empty.
+     */
+    private Record decodeRecord(final byte[] recordBytes, final int offset, final boolean readMemos)
+                         throws IOException, CorruptedTableException
+    {
+        return decodeRecord(recordBytes, offset, readMemos, null);
+    }
+
+    /*
+     * As decodeRecord(byte[], int, boolean), but takes the memos from memos, by block index, if
+     * they are there.
+     */
+    private Record decodeRecord(final byte[] recordBytes, final int offset, final boolean readMemos,
+                                final Map<Integer, byte[]> memos)
+                         throws IOException, CorruptedTableException
+    {
+        final DataInput recordInput =
+            new DataInputStream(new ByteArrayInputStream(recordBytes,
+                                                         offset,
+                                                         header.getRecordLength()));
+        final byte firstByteOfRecord = recordInput.readByte();
         final Map<String, Value> recordValues = new HashMap<String, Value>();
 
         for (final Field field : header.getFields())
         {
-            final byte[] rawData = Util.readStringBytes(raFile,
+            final byte[] rawData = Util.readStringBytes(recordInput,
                                                         field.getLength());
 
-            switch (field.getType())
+            if (! readMemos && isMemoField(field))
             {
-                case NUMBER:
-                case FLOAT:
-                    recordValues.put(field.getName(),
-                                     new NumberValue(field, rawData));
-
-                    break;
-
-                case CHARACTER:
-                    recordValues.put(field.getName(),
-                                     new StringValue(field, rawData, charsetName));
-
-                    break;
-
-                case LOGICAL:
-                    recordValues.put(field.getName(),
-                                     new BooleanValue(field, rawData));
-
-                    break;
-
-                case DATE:
-                    recordValues.put(field.getName(),
-                                     new DateValue(field, rawData));
-
-                    break;
+                continue;
+            }
 
+            switch (field.getType())
+            {
                 case MEMO:
 
-                    final byte[] memoTextBytes = readMemo(new String(rawData));
+                    final byte[] memoTextBytes = readMemo(new String(rawData), memos);
                     recordValues.put(field.getName(),
                                      memoTextBytes == null ? null : new StringValue(field, memoTextBytes, charsetName));
 
@@ -705,12 +3690,13 @@ public class Table
                 case BINARY:
                 case PICTURE:
                     recordValues.put(field.getName(),
-                                     new ByteArrayValue(readMemo(new String(rawData))));
+                                     new ByteArrayValue(readMemo(new String(rawData), memos)));
 
                     break;
 
                 default:
-                    throw new RuntimeException("Not all types handled");
+                    recordValues.put(field.getName(),
+                                     LazyRecordValues.decodeValue(field, rawData, charsetName));
             }
         }
 
@@ -726,20 +3712,30 @@ public class Table
     public void pack()
               throws IOException, DbfLibException
     {
-        final Iterator<Record> iterator = recordIterator(false);
+        headerLock.writeLock().lock();
+
+        try
+        {
+            final Iterator<Record> iterator = recordIterator(false);
 
-        int i = 0;
+            int i = 0;
 
-        while (iterator.hasNext())
+            while (iterator.hasNext())
+            {
+                replaceRecordAt(i++,
+                                iterator.next());
+            }
+
+            publishRecordCount(i);
+            deletedRecords.clear();
+            raFile.setLength(getRecordOffset(i) + 1);
+        }
+        finally
         {
-            updateRecordAt(i++,
-                           iterator.next());
+            headerLock.writeLock().unlock();
         }
 
-        writeRecordCount(i);
-        jumpToRecordAt(i);
-        raFile.write(MARKER_EOF);
-        raFile.setLength(raFile.getFilePointer());
+        recordsWritten(getRecordCount());
     }
 
     /**
@@ -763,10 +3759,53 @@ public class Table
         return header.getVersion();
     }
 
+    /*
+     * Computed as a long, as tables can be larger than 2 GB.
+     */
+    long getRecordOffset(final int index)
+    {
+        return header.getLength() + (long) index * header.getRecordLength();
+    }
+
+    File getTableFile()
+    {
+        return tableFile;
+    }
+
+    DbfHeader getHeader()
+    {
+        return header;
+    }
+
+    ReadWriteLock getHeaderLock()
+    {
+        return headerLock;
+    }
+
+    /*
+     * The sign bit is masked off, so that an invalid, negative index still gets a stripe and is
+     * rejected by the validation under the lock.
+     */
+    private ReadWriteLock getRecordStripe(final int index)
+    {
+        return recordStripes[(index & Integer.MAX_VALUE) % NR_RECORD_STRIPES];
+    }
+
+    /*
+     * A negative index would address the header, so it is rejected before anything is written.
+     */
+    private static void checkIndexNotNegative(final int index)
+    {
+        if (index < 0)
+        {
+            throw new NoSuchElementException(String.format("Invalid index: %d", index));
+        }
+    }
+
     private void jumpToRecordAt(final int index)
                          throws IOException
     {
-        raFile.seek(header.getLength() + (index * header.getRecordLength()));
+        raFile.seek(getRecordOffset(index));
     }
 
     /**
@@ -780,6 +3819,15 @@ public class Table
      */
     public int getRecordCount()
     {
-        return header.getRecordCount();
+        headerLock.readLock().lock();
+
+        try
+        {
+            return header.getRecordCount();
+        }
+        finally
+        {
+            headerLock.readLock().unlock();
+        }
     }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Adds records to the end of a table from several threads at the same time. An appender is
+ * obtained through {@link Table#createAppender()}.
+ * <p>
+ * Each record is encoded on the calling thread. It then gets the next free record slot from an
+ * atomic counter and is written to that slot without moving the file pointer of the table. Threads
+ * appending records therefore do not wait for each other, except briefly when writing memos.
+ * <p>
+ * The record count in the header and the EOF marker are only updated by {@link #publish()} and
+ * {@link #close()}, in one step. Until then, the appended records are not part of the table, e.g.
+ * they are not counted by {@link Table#getRecordCount()}. While an appender is in use, the table
+ * must not be changed in any other way. Deleted records are never reused by an appender.
+ * <p>
+ * If writing a record to its slot fails, the slot is left unfilled and the table must be considered
+ * damaged once the record count is published.
+ */
+public class TableAppender
+    implements Closeable
+{
+    private final Table table;
+    private final AtomicInteger nextIndex;
+
+    /*
+     * Appending threads hold the read lock, so that publish can wait for all records in slots below
+     * the counter to be written.
+     */
+    private final ReadWriteLock publishLock = new ReentrantReadWriteLock();
+
+    TableAppender(final Table table, final int recordCount)
+    {
+        this.table = table;
+        nextIndex = new AtomicInteger(recordCount);
+    }
+
+    /**
+     * Appends a record. May be called from several threads at once.
+     *
+     * @param record the record to append
+     * @return the index of the record in the table
+     *
+     * @throws IOException if the record could not be written to the table file
+     * @throws DbfLibException if the record could not be stored in the table
+     */
+    public int append(final Record record)
+               throws IOException, DbfLibException
+    {
+        final EncodedRecord encodedRecord = table.encodeRecord(record);
+        table.writeMemos(encodedRecord);
+
+        final int index;
+        publishLock.readLock().lock();
+
+        try
+        {
+            index = nextIndex.getAndIncrement();
+            table.writeRecordBytesAt(index,
+                                     encodedRecord.getBytes());
+        }
+        finally
+        {
+            publishLock.readLock().unlock();
+        }
+
+        table.recordsWritten(1);
+
+        return index;
+    }
+
+    /**
+     * Appends a record with the specified field values, as in {@link Table#addRecord(Object...)}.
+     * May be called from several threads at once.
+     *
+     * @param fieldValues the field values of the record
+     * @return the index of the record in the table
+     *
+     * @throws IOException if the record could not be written to the table file
+     * @throws DbfLibException if the record could not be stored in the table
+     */
+    public int append(final Object... fieldValues)
+               throws IOException, DbfLibException
+    {
+        return append(table.createRecord(fieldValues));
+    }
+
+    /**
+     * Makes the records appended so far part of the table, by writing the record count to the
+     * header and the EOF marker after the last record. Waits for records that are being written to
+     * be finished.
+     *
+     * @return the record count of the table
+     * @throws IOException if the header or EOF marker could not be written
+     */
+    public int publish()
+                throws IOException
+    {
+        publishLock.writeLock().lock();
+
+        try
+        {
+            final int recordCount = nextIndex.get();
+            table.publishRecordCount(recordCount);
+
+            return recordCount;
+        }
+        finally
+        {
+            publishLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Publishes the records appended so far. The table itself stays open.
+     *
+     * @throws IOException if the header or EOF marker could not be written
+     */
+    public void close()
+               throws IOException
+    {
+        publish();
+    }
+}
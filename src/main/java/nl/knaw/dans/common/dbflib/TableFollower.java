@@ -0,0 +1,239 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports the records that another process appends to a table, as they are appended. A follower is
+ * obtained through {@link Table#createFollower()}.
+ * <p>
+ * Each {@link #poll()} first compares the length of the table file with the length at the previous
+ * poll. Only if it has changed, the record count is read from the header, and only the records
+ * after the last one reported are read. Polling therefore stays cheap however large the table
+ * grows. The record count of the <code>Table</code> object is updated as well, so that the new
+ * records can also be read through it.
+ * <p>
+ * Records that the other process changes in place, including records written in the slots of
+ * deleted records, are not reported. Deleted records are reported like any other, with
+ * {@link Record#isMarkedDeleted()} telling them apart.
+ */
+public class TableFollower
+{
+    private final Table table;
+    private int nextIndex;
+    private long fileLength = -1;
+    private ScheduledExecutorService scheduler = null;
+    private volatile Exception failure = null;
+
+    TableFollower(final Table table, final int firstIndex)
+    {
+        this.table = table;
+        nextIndex = firstIndex;
+    }
+
+    /**
+     * Returns the index of the next record to report.
+     *
+     * @return the index of the next record
+     */
+    public synchronized int getNextIndex()
+    {
+        return nextIndex;
+    }
+
+    /**
+     * Returns the records appended since the previous poll.
+     *
+     * @return the appended records, in order; empty if there are none
+     * @throws IOException if the table file could not be read
+     * @throws CorruptedTableException if the table file is corrupt
+     */
+    public List<Record> poll()
+                      throws IOException, CorruptedTableException
+    {
+        final List<Record> records = new ArrayList<Record>();
+
+        poll(new RecordListener()
+            {
+                public void recordAdded(final int index, final Record record)
+                {
+                    records.add(record);
+                }
+            });
+
+        return records;
+    }
+
+    /**
+     * Passes the records appended since the previous poll to <code>listener</code>.
+     *
+     * @param listener the listener to pass the records to
+     * @return the number of records passed to the listener
+     * @throws IOException if the table file could not be read
+     * @throws CorruptedTableException if the table file is corrupt
+     */
+    public synchronized int poll(final RecordListener listener)
+                          throws IOException, CorruptedTableException
+    {
+        final long currentFileLength = table.getFileLength();
+
+        if (currentFileLength == fileLength)
+        {
+            return 0;
+        }
+
+        final int recordCount = table.readAppendedRecordCount();
+
+        /*
+         * If the record count has not caught up with the records in the file yet, check the header
+         * again at the next poll, even if the file does not grow any further.
+         */
+        fileLength = currentFileLength <= table.getRecordOffset(recordCount) + 1 ? currentFileLength : -1;
+
+        final int first = nextIndex;
+
+        try
+        {
+            final Iterator<Record> records = table.recordIterator(first, recordCount);
+
+            while (records.hasNext())
+            {
+                listener.recordAdded(nextIndex,
+                                     records.next());
+                ++nextIndex;
+            }
+        }
+        catch (final RuntimeException runtimeException)
+        {
+            /*
+             * The record iterator wraps the exceptions of reading the table.
+             */
+            if (runtimeException.getCause() instanceof IOException)
+            {
+                throw (IOException) runtimeException.getCause();
+            }
+            else if (runtimeException.getCause() instanceof CorruptedTableException)
+            {
+                throw (CorruptedTableException) runtimeException.getCause();
+            }
+
+            throw runtimeException;
+        }
+
+        return nextIndex - first;
+    }
+
+    /**
+     * Starts polling the table on a background thread every <code>intervalMillis</code>
+     * milliseconds, passing appended records to <code>listener</code> on that thread. Polling
+     * continues until {@link #stop()} is called, or until a poll fails.
+     *
+     * @param listener the listener to pass the records to
+     * @param intervalMillis the time between the end of one poll and the start of the next
+     * @throws IllegalStateException if the follower is already started
+     */
+    public synchronized void start(final RecordListener listener, final long intervalMillis)
+    {
+        if (scheduler != null)
+        {
+            throw new IllegalStateException("Follower is already started");
+        }
+
+        failure = null;
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        poll(listener);
+                    }
+                    catch (final Exception exception)
+                    {
+                        failure = exception;
+
+                        /*
+                         * Cancels the following polls.
+                         */
+                        throw new RuntimeException(exception.getMessage(), exception);
+                    }
+                }
+            },
+                                         0,
+                                         intervalMillis,
+                                         TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops polling the table on the background thread, waiting for a poll that is going on to
+     * finish. Does nothing if the follower is not started.
+     *
+     * @throws IOException if a background poll failed to read the table file
+     * @throws CorruptedTableException if a background poll found the table file to be corrupt
+     */
+    public void stop()
+              throws IOException, CorruptedTableException
+    {
+        final ScheduledExecutorService stoppedScheduler;
+
+        synchronized (this)
+        {
+            stoppedScheduler = scheduler;
+            scheduler = null;
+        }
+
+        if (stoppedScheduler == null)
+        {
+            return;
+        }
+
+        stoppedScheduler.shutdown();
+
+        try
+        {
+            stoppedScheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (final InterruptedException interruptedException)
+        {
+            Thread.currentThread().interrupt();
+
+            throw new InterruptedIOException("Interrupted while waiting for the follower to stop");
+        }
+
+        if (failure instanceof IOException)
+        {
+            throw (IOException) failure;
+        }
+        else if (failure instanceof CorruptedTableException)
+        {
+            throw (CorruptedTableException) failure;
+        }
+        else if (failure instanceof RuntimeException)
+        {
+            throw (RuntimeException) failure;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The redo journal of a table: writes batches of records to the journal file, applies them to the
+ * table on a background thread and replays the batches that were not applied when the table is
+ * opened again.
+ */
+class TableJournal
+{
+    private final Table table;
+
+    /*
+     * The journal of the batches written with write(WriteBatch), opened by the first batch. The
+     * batches are applied to the table in order by a single background thread. Guarded by
+     * journalLock.
+     */
+    private final Object journalLock = new Object();
+    private Journal journal = null;
+    private ExecutorService journalApplier = null;
+    private Future<Void> lastJournalApply = null;
+    private int journaledRecordCount;
+    private volatile Exception journalFailure = null;
+
+    TableJournal(final Table table)
+    {
+        this.table = table;
+    }
+
+    /*
+     * Appends the batch to the journal, and schedules it to be applied to the table. See
+     * Table.write(WriteBatch).
+     */
+    void write(final WriteBatch batch)
+        throws IOException, DbfLibException
+    {
+        checkFailure();
+
+        final List<EncodedRecord> encodedRecords = new ArrayList<EncodedRecord>();
+
+        for (int i = 0; i < batch.size(); ++i)
+        {
+            encodedRecords.add(table.encodeRecord(batch.getRecord(i)));
+        }
+
+        synchronized (journalLock)
+        {
+            if (journal == null)
+            {
+                final Journal newJournal = new Journal(table.getJournalFile());
+                newJournal.open();
+                journal = newJournal;
+                journalApplier = Executors.newSingleThreadExecutor();
+                journaledRecordCount = table.getRecordCount();
+            }
+
+            final int[] indexes = new int[batch.size()];
+            int recordCount = journaledRecordCount;
+
+            for (int i = 0; i < indexes.length; ++i)
+            {
+                indexes[i] = batch.getIndex(i) < 0 ? recordCount++ : batch.getIndex(i);
+
+                if (indexes[i] >= recordCount)
+                {
+                    throw new IllegalArgumentException(String.format("Invalid index: %d", indexes[i]));
+                }
+            }
+
+            final long endOffset = journal.append(encodeBatch(indexes, encodedRecords));
+            journaledRecordCount = recordCount;
+
+            final Journal batchJournal = journal;
+            lastJournalApply = journalApplier.submit(new Callable<Void>()
+                    {
+                        public Void call()
+                                  throws Exception
+                        {
+                            /*
+                             * After a failure the following batches are left in the journal as
+                             * well, to be applied in order when the table is opened again.
+                             */
+                            if (journalFailure == null)
+                            {
+                                try
+                                {
+                                    applyBatch(batchJournal, indexes, encodedRecords, endOffset);
+                                }
+                                catch (final Exception exception)
+                                {
+                                    journalFailure = exception;
+
+                                    throw exception;
+                                }
+                            }
+
+                            return null;
+                        }
+                    });
+        }
+    }
+
+    /*
+     * Waits until all batches written so far have been applied to the table.
+     */
+    void apply()
+        throws IOException
+    {
+        final Future<Void> future;
+
+        synchronized (journalLock)
+        {
+            future = lastJournalApply;
+        }
+
+        if (future != null)
+        {
+            try
+            {
+                future.get();
+            }
+            catch (final InterruptedException interruptedException)
+            {
+                Thread.currentThread().interrupt();
+
+                throw new InterruptedIOException("Interrupted while waiting for the journal to be applied");
+            }
+            catch (final ExecutionException executionException)
+            {
+                // reported by checkFailure
+            }
+        }
+
+        checkFailure();
+    }
+
+    private void checkFailure()
+                       throws IOException
+    {
+        if (journalFailure != null)
+        {
+            throw new IOException("Could not apply journaled batch to the table; it is applied again when the table "
+                                  + "is opened", journalFailure);
+        }
+    }
+
+    /*
+     * Waits for the journaled batches to be applied, and deletes the journal if they all were.
+     */
+    void close()
+        throws IOException
+    {
+        synchronized (journalLock)
+        {
+            if (journal == null)
+            {
+                return;
+            }
+
+            try
+            {
+                journalApplier.shutdown();
+                journalApplier.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+                if (journalFailure == null)
+                {
+                    journal.delete();
+                }
+                else
+                {
+                    journal.close();
+                }
+            }
+            catch (final InterruptedException interruptedException)
+            {
+                Thread.currentThread().interrupt();
+                journal.close();
+
+                throw new InterruptedIOException("Interrupted while waiting for the journal to be applied");
+            }
+            finally
+            {
+                journal = null;
+                journalApplier = null;
+                lastJournalApply = null;
+            }
+        }
+
+        try
+        {
+            checkFailure();
+        }
+        finally
+        {
+            journalFailure = null;
+        }
+    }
+
+    /*
+     * Applies the batches that were journaled but not applied before the table was last closed.
+     */
+    void replay()
+         throws IOException, CorruptedTableException
+    {
+        final File journalFile = table.getJournalFile();
+
+        if (! journalFile.exists())
+        {
+            return;
+        }
+
+        final Journal unapplied = new Journal(journalFile);
+        unapplied.open();
+
+        try
+        {
+            final List<Long> endOffsets = new ArrayList<Long>();
+            final List<byte[]> payloads = unapplied.readUnapplied(endOffsets);
+
+            for (int i = 0; i < payloads.size(); ++i)
+            {
+                final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payloads.get(i)));
+                final int[] indexes = new int[in.readInt()];
+                final List<EncodedRecord> encodedRecords = new ArrayList<EncodedRecord>();
+
+                for (int r = 0; r < indexes.length; ++r)
+                {
+                    indexes[r] = in.readInt();
+                    encodedRecords.add(decodeRecord(in));
+                }
+
+                applyBatch(unapplied, indexes, encodedRecords, endOffsets.get(i));
+            }
+        }
+        catch (final RuntimeException runtimeException)
+        {
+            unapplied.close();
+
+            throw runtimeException;
+        }
+        catch (final IOException ioException)
+        {
+            unapplied.close();
+
+            throw ioException;
+        }
+        catch (final CorruptedTableException corruptedTableException)
+        {
+            unapplied.close();
+
+            throw corruptedTableException;
+        }
+
+        unapplied.delete();
+    }
+
+    /*
+     * Writes the records of the batch to the table, forces the table and memo files and marks the
+     * batch as applied in the journal. Writing the same batch again has the same result, except
+     * that its memos are stored once more.
+     */
+    private void applyBatch(final Journal batchJournal, final int[] indexes, final List<EncodedRecord> encodedRecords,
+                            final long endOffset)
+                     throws IOException, CorruptedTableException
+    {
+        table.writeRecords(indexes, encodedRecords);
+        table.commit();
+        batchJournal.markApplied(endOffset);
+    }
+
+    static byte[] encodeBatch(final int[] indexes, final List<EncodedRecord> encodedRecords)
+                       throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(indexes.length);
+
+        for (int i = 0; i < indexes.length; ++i)
+        {
+            final EncodedRecord encodedRecord = encodedRecords.get(i);
+            out.writeInt(indexes[i]);
+            out.write(encodedRecord.getBytes());
+            out.writeInt(encodedRecord.getMemoCount());
+
+            for (int m = 0; m < encodedRecord.getMemoCount(); ++m)
+            {
+                out.writeInt(encodedRecord.getMemoOffset(m));
+                out.writeInt(encodedRecord.getMemo(m).length);
+                out.write(encodedRecord.getMemo(m));
+            }
+        }
+
+        out.close();
+
+        return bytes.toByteArray();
+    }
+
+    private EncodedRecord decodeRecord(final DataInput in)
+                                throws IOException, CorruptedTableException
+    {
+        final byte[] recordBytes = new byte[table.getHeader().getRecordLength()];
+        in.readFully(recordBytes);
+
+        final EncodedRecord encodedRecord = new EncodedRecord(recordBytes);
+        final int memoCount = in.readInt();
+
+        for (int m = 0; m < memoCount; ++m)
+        {
+            final int offset = in.readInt();
+            final byte[] memoBytes = new byte[in.readInt()];
+            in.readFully(memoBytes);
+            encodedRecord.addMemo(getFieldAtOffset(offset),
+                                  offset,
+                                  memoBytes);
+        }
+
+        return encodedRecord;
+    }
+
+    private Field getFieldAtOffset(final int offset)
+                            throws CorruptedTableException
+    {
+        final DbfHeader header = table.getHeader();
+        final int[] offsets = header.getFieldOffsets();
+
+        for (int i = 0; i < offsets.length; ++i)
+        {
+            if (offsets[i] == offset)
+            {
+                return header.getFields().get(i);
+            }
+        }
+
+        throw new CorruptedTableException("Journal does not match the table: no field at offset " + offset);
+    }
+}
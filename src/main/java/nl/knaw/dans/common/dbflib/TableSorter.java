@@ -0,0 +1,608 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/*
+ * Sorts the records of a table by key fields, either by rewriting the table file or by iterating
+ * over the records in key order. Both use an external merge sort: what does not fit in the memory
+ * budget is sorted in runs, written to temporary files next to the table file, and merged.
+ */
+class TableSorter
+{
+    /*
+     * The number of records a sorted iterator reads at once.
+     */
+    private static final int NR_RECORDS_READ_AHEAD = 256;
+
+    private final Table table;
+    private final DbfHeader header;
+    private final RecordKeys keys;
+    private final int nrOfKeyFields;
+
+    TableSorter(final Table table, final List<String> keyFieldNames, final SortOrder order)
+    {
+        if (keyFieldNames.isEmpty())
+        {
+            throw new IllegalArgumentException("At least one key field is needed");
+        }
+
+        this.table = table;
+        header = table.getHeader();
+
+        final List<Field> keyFields = new ArrayList<Field>();
+        final int[] keyOffsets = new int[keyFieldNames.size()];
+
+        for (int i = 0; i < keyFieldNames.size(); ++i)
+        {
+            final int fieldIndex = table.getFieldIndex(keyFieldNames.get(i));
+            keyFields.add(header.getFields().get(fieldIndex));
+            keyOffsets[i] = header.getFieldOffsets()[fieldIndex];
+        }
+
+        keys = new RecordKeys(keyFields, keyOffsets, table.getCharsetName(), order);
+        nrOfKeyFields = keyFields.size();
+    }
+
+    /*
+     * A stored record with its key, and the run it was read from while merging sorted runs.
+     */
+    private static class SortEntry
+    {
+        private final Object[] key;
+        private final byte[] bytes;
+        private final int run;
+
+        SortEntry(final Object[] key, final byte[] bytes, final int run)
+        {
+            this.key = key;
+            this.bytes = bytes;
+            this.run = run;
+        }
+    }
+
+    /*
+     * The encoded key of a record with its index, and the run it was read from while merging sorted
+     * runs.
+     */
+    private static class KeyEntry
+    {
+        private final byte[] key;
+        private final int index;
+        private final int run;
+
+        KeyEntry(final byte[] key, final int index, final int run)
+        {
+            this.key = key;
+            this.index = index;
+            this.run = run;
+        }
+    }
+
+    /*
+     * Returns the records in the order of a list of record indexes, sorted by key. The indexes are
+     * either in memory or merged from sorted runs in temporary files, which are deleted once the
+     * last index has been read from them. Records are read a batch at a time.
+     */
+    private class SortedRecordIterator
+        implements Iterator<Record>
+    {
+        private final int[] sortedIndexes;
+        private int position = 0;
+        private final List<File> runFiles;
+        private final List<DataInputStream> runs = new ArrayList<DataInputStream>();
+        private final PriorityQueue<KeyEntry> queue;
+        private final int keyLength;
+        private Record[] batch = new Record[0];
+        private int batchPosition = 0;
+
+        SortedRecordIterator(final int[] sortedIndexes, final List<File> runFiles, final int bufferSize)
+                      throws IOException
+        {
+            this.sortedIndexes = sortedIndexes;
+            this.runFiles = runFiles;
+            keyLength = keys.getEncodedLength();
+            queue = new PriorityQueue<KeyEntry>(Math.max(1, runFiles.size()),
+                                                new Comparator<KeyEntry>()
+                    {
+                        public int compare(final KeyEntry entry1, final KeyEntry entry2)
+                        {
+                            final int result = keys.compareEncoded(entry1.key, 0, entry2.key, 0);
+
+                            return result != 0 ? result : entry1.index - entry2.index;
+                        }
+                    });
+
+            try
+            {
+                for (int i = 0; i < runFiles.size(); ++i)
+                {
+                    runs.add(new DataInputStream(new BufferedInputStream(new FileInputStream(runFiles.get(i)),
+                                                                         bufferSize)));
+                    addNextKeyEntry(i);
+                }
+            }
+            catch (final IOException ioException)
+            {
+                closeRuns();
+
+                throw ioException;
+            }
+        }
+
+        private void addNextKeyEntry(final int run)
+                              throws IOException
+        {
+            final byte[] keyBytes = new byte[keyLength];
+            final int index;
+
+            try
+            {
+                index = runs.get(run).readInt();
+                runs.get(run).readFully(keyBytes);
+            }
+            catch (final EOFException eofException)
+            {
+                return;
+            }
+
+            queue.add(new KeyEntry(keyBytes, index, run));
+        }
+
+        private int nextIndex()
+                       throws IOException
+        {
+            if (sortedIndexes != null)
+            {
+                return position < sortedIndexes.length ? sortedIndexes[position++] : -1;
+            }
+
+            if (queue.isEmpty())
+            {
+                closeRuns();
+
+                return -1;
+            }
+
+            final KeyEntry entry = queue.remove();
+            addNextKeyEntry(entry.run);
+
+            return entry.index;
+        }
+
+        private void closeRuns()
+                        throws IOException
+        {
+            try
+            {
+                for (final DataInputStream run : runs)
+                {
+                    run.close();
+                }
+            }
+            finally
+            {
+                runs.clear();
+
+                for (final File runFile : runFiles)
+                {
+                    runFile.delete();
+                }
+            }
+        }
+
+        public boolean hasNext()
+        {
+            if (batchPosition < batch.length)
+            {
+                return true;
+            }
+
+            try
+            {
+                final int[] indexes = new int[NR_RECORDS_READ_AHEAD];
+                int nrOfIndexes = 0;
+                int index;
+
+                while (nrOfIndexes < indexes.length && (index = nextIndex()) >= 0)
+                {
+                    indexes[nrOfIndexes++] = index;
+                }
+
+                batch = table.getRecordsAt(Arrays.copyOf(indexes, nrOfIndexes));
+                batchPosition = 0;
+
+                return batch.length > 0;
+            }
+            catch (final IOException ioException)
+            {
+                throw new RuntimeException(ioException.getMessage(), ioException);
+            }
+            catch (final CorruptedTableException corruptedTableException)
+            {
+                throw new RuntimeException(corruptedTableException.getMessage(), corruptedTableException);
+            }
+        }
+
+        public Record next()
+        {
+            if (! hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+
+            return batch[batchPosition++];
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException("Records cannot be removed through a sorted iterator");
+        }
+    }
+
+    /*
+     * Writes a copy of the table file with the records sorted by key, and returns it. The caller
+     * holds the write lock of the header.
+     */
+    File writeSortedTable(final long memoryBudget)
+                   throws IOException
+    {
+        final Comparator<SortEntry> comparator =
+            new Comparator<SortEntry>()
+            {
+                public int compare(final SortEntry entry1, final SortEntry entry2)
+                {
+                    final int result = keys.compare(entry1.key, entry2.key);
+
+                    return result != 0 ? result : entry1.run - entry2.run;
+                }
+            };
+
+        final List<File> runFiles = new ArrayList<File>();
+
+        try
+        {
+            final int recordLength = header.getRecordLength();
+            final int recordsPerBlock = Math.max(1, Table.LENGTH_IO_BLOCK / recordLength);
+            final byte[] block = new byte[recordsPerBlock * recordLength];
+            final int recordCount = header.getRecordCount();
+            final long entrySize = recordLength + 64 + 32 * nrOfKeyFields;
+            final List<SortEntry> entries = new ArrayList<SortEntry>();
+            long entriesSize = 0;
+
+            for (int first = 0; first < recordCount; first += recordsPerBlock)
+            {
+                final int blockLength = Math.min(recordsPerBlock, recordCount - first) * recordLength;
+                table.readTableBytesAt(table.getRecordOffset(first), block, 0, blockLength);
+
+                for (int offset = 0; offset < blockLength; offset += recordLength)
+                {
+                    final byte[] recordBytes = Arrays.copyOfRange(block, offset, offset + recordLength);
+                    entries.add(new SortEntry(keys.extract(recordBytes, 0),
+                                              recordBytes,
+                                              0));
+                    entriesSize += entrySize;
+
+                    if (entriesSize >= memoryBudget)
+                    {
+                        Collections.sort(entries, comparator);
+                        runFiles.add(writeSortRun(entries));
+                        entries.clear();
+                        entriesSize = 0;
+                    }
+                }
+            }
+
+            Collections.sort(entries, comparator);
+
+            if (! runFiles.isEmpty())
+            {
+                runFiles.add(writeSortRun(entries));
+                entries.clear();
+            }
+
+            final File sortedTableFile = new File(table.getTableFile().getPath() + ".tmp");
+            final FileOutputStream fileOut = new FileOutputStream(sortedTableFile);
+            final OutputStream out = new BufferedOutputStream(fileOut, Table.LENGTH_IO_BLOCK);
+            boolean written = false;
+
+            try
+            {
+                final byte[] headerBytes = new byte[header.getLength()];
+                table.readTableBytesAt(0, headerBytes, 0, headerBytes.length);
+                out.write(headerBytes);
+
+                if (runFiles.isEmpty())
+                {
+                    for (final SortEntry entry : entries)
+                    {
+                        out.write(entry.bytes);
+                    }
+                }
+                else
+                {
+                    mergeSortRuns(runFiles, comparator, memoryBudget, out);
+                }
+
+                out.write(Table.MARKER_EOF);
+
+                /*
+                 * The file replaces the original, so it must be on disk before that.
+                 */
+                if (table.getDurability() != Durability.NONE)
+                {
+                    out.flush();
+                    fileOut.getChannel().force(true);
+                }
+
+                written = true;
+            }
+            finally
+            {
+                out.close();
+
+                if (! written)
+                {
+                    sortedTableFile.delete();
+                }
+            }
+
+            return sortedTableFile;
+        }
+        finally
+        {
+            for (final File runFile : runFiles)
+            {
+                runFile.delete();
+            }
+        }
+    }
+
+    /*
+     * Reads and sorts the keys of the records that are not flagged as "deleted", and returns an
+     * iterator over the records in that order. The caller holds the read lock of the header, which
+     * is not needed while iterating.
+     */
+    Iterator<Record> iterateSorted(final long memoryBudget)
+                            throws IOException
+    {
+        /*
+         * The keys are held encoded, one after another in a byte array, next to an array of the
+         * record indexes. Sorting them takes two more arrays of positions.
+         */
+        final int keyLength = keys.getEncodedLength();
+        final long entrySize = 4 + keyLength + 8;
+        final List<File> runFiles = new ArrayList<File>();
+        final int[] sortedIndexes;
+
+        try
+        {
+            final int recordLength = header.getRecordLength();
+            final int recordsPerBlock = Math.max(1, Table.LENGTH_IO_BLOCK / recordLength);
+            final byte[] block = new byte[recordsPerBlock * recordLength];
+            final int recordCount = header.getRecordCount();
+            final int chunkCapacity =
+                (int) Math.max(1,
+                               Math.min(recordCount,
+                                        Math.min(memoryBudget / entrySize, Integer.MAX_VALUE / keyLength)));
+            final int[] chunkIndexes = new int[chunkCapacity];
+            final byte[] chunkKeys = new byte[chunkCapacity * keyLength];
+            int nrInChunk = 0;
+
+            for (int first = 0; first < recordCount; first += recordsPerBlock)
+            {
+                final int blockLength = Math.min(recordsPerBlock, recordCount - first) * recordLength;
+                table.readTableBytesAt(table.getRecordOffset(first), block, 0, blockLength);
+
+                for (int offset = 0; offset < blockLength; offset += recordLength)
+                {
+                    if (block[offset] == Table.MARKER_RECORD_DELETED)
+                    {
+                        continue;
+                    }
+
+                    /*
+                     * A full chunk is only written to a run once another key needs the room, so
+                     * that a table whose keys all fit is sorted in memory only.
+                     */
+                    if (nrInChunk == chunkCapacity)
+                    {
+                        runFiles.add(writeKeyRun(chunkIndexes, chunkKeys, nrInChunk));
+                        nrInChunk = 0;
+                    }
+
+                    chunkIndexes[nrInChunk] = first + offset / recordLength;
+                    keys.encode(block, offset, chunkKeys, nrInChunk * keyLength);
+                    ++nrInChunk;
+                }
+            }
+
+            if (runFiles.isEmpty())
+            {
+                final int[] positions = keys.sortedPositions(chunkKeys, nrInChunk);
+                sortedIndexes = new int[nrInChunk];
+
+                for (int i = 0; i < nrInChunk; ++i)
+                {
+                    sortedIndexes[i] = chunkIndexes[positions[i]];
+                }
+            }
+            else
+            {
+                if (nrInChunk > 0)
+                {
+                    runFiles.add(writeKeyRun(chunkIndexes, chunkKeys, nrInChunk));
+                }
+
+                sortedIndexes = null;
+            }
+        }
+        catch (final IOException ioException)
+        {
+            for (final File runFile : runFiles)
+            {
+                runFile.delete();
+            }
+
+            throw ioException;
+        }
+
+        return new SortedRecordIterator(sortedIndexes,
+                                        runFiles,
+                                        (int) Math.max(8192,
+                                                       Math.min(Table.LENGTH_IO_BLOCK,
+                                                                memoryBudget / Math.max(1, runFiles.size()))));
+    }
+
+    /*
+     * Sorts a chunk of encoded keys and writes it, as pairs of record index and key, to a
+     * temporary file next to the table file.
+     */
+    private File writeKeyRun(final int[] chunkIndexes, final byte[] chunkKeys, final int nrOfKeys)
+                      throws IOException
+    {
+        final int keyLength = keys.getEncodedLength();
+        final int[] positions = keys.sortedPositions(chunkKeys, nrOfKeys);
+        final File runFile = createRunFile("-keys");
+        final DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), Table.LENGTH_IO_BLOCK));
+
+        try
+        {
+            for (final int position : positions)
+            {
+                out.writeInt(chunkIndexes[position]);
+                out.write(chunkKeys, position * keyLength, keyLength);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        return runFile;
+    }
+
+    /*
+     * Writes the stored records of a sorted run to a temporary file next to the table file.
+     */
+    private File writeSortRun(final List<SortEntry> entries)
+                       throws IOException
+    {
+        final File runFile = createRunFile("-sort");
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(runFile), Table.LENGTH_IO_BLOCK);
+
+        try
+        {
+            for (final SortEntry entry : entries)
+            {
+                out.write(entry.bytes);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        return runFile;
+    }
+
+    private File createRunFile(final String suffix)
+                        throws IOException
+    {
+        final File tableFile = table.getTableFile();
+
+        return File.createTempFile(Util.stripExtension(tableFile.getName()) + suffix,
+                                   ".run",
+                                   tableFile.getAbsoluteFile().getParentFile());
+    }
+
+    /*
+     * Merges the sorted runs into out, keeping the next record of each run in a priority queue.
+     * The read buffers of the runs together take about the memory budget.
+     */
+    private void mergeSortRuns(final List<File> runFiles, final Comparator<SortEntry> comparator,
+                               final long memoryBudget, final OutputStream out)
+                        throws IOException
+    {
+        final int bufferSize = (int) Math.max(8192,
+                                              Math.min(Table.LENGTH_IO_BLOCK, memoryBudget / runFiles.size()));
+        final List<DataInputStream> runs = new ArrayList<DataInputStream>();
+        final PriorityQueue<SortEntry> queue = new PriorityQueue<SortEntry>(runFiles.size(), comparator);
+
+        try
+        {
+            for (int i = 0; i < runFiles.size(); ++i)
+            {
+                runs.add(new DataInputStream(new BufferedInputStream(new FileInputStream(runFiles.get(i)),
+                                                                     bufferSize)));
+                addNextSortEntry(queue, runs.get(i), i);
+            }
+
+            while (! queue.isEmpty())
+            {
+                final SortEntry entry = queue.remove();
+                out.write(entry.bytes);
+                addNextSortEntry(queue, runs.get(entry.run), entry.run);
+            }
+        }
+        finally
+        {
+            for (final DataInputStream run : runs)
+            {
+                run.close();
+            }
+        }
+    }
+
+    private void addNextSortEntry(final PriorityQueue<SortEntry> queue, final DataInputStream run, final int runIndex)
+                           throws IOException
+    {
+        final byte[] recordBytes = new byte[header.getRecordLength()];
+
+        try
+        {
+            run.readFully(recordBytes);
+        }
+        catch (final EOFException eofException)
+        {
+            return;
+        }
+
+        queue.add(new SortEntry(keys.extract(recordBytes, 0),
+                                recordBytes,
+                                runIndex));
+    }
+}
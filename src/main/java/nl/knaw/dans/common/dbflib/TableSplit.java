@@ -0,0 +1,169 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of consecutive records of a table, to be processed separately from the other records,
+ * e.g. by another process or on another machine. Splits are planned with
+ * {@link #plan(File, int)}, which only reads the header of the table, and read with
+ * {@link Table#splitIterator(TableSplit, boolean, boolean)}, which only reads the records of the
+ * split and their memos. A split is serializable, so that it can be sent to where it is processed.
+ * <p>
+ * A split covers the records that were in the table when it was planned. Records appended later
+ * are not part of any split.
+ */
+public class TableSplit
+    implements Serializable
+{
+    private static final long serialVersionUID = 3305186254402871962L;
+
+    private final String tablePath;
+    private final int firstIndex;
+    private final int recordCount;
+    private final long offset;
+    private final long length;
+
+    TableSplit(final File tableFile, final int firstIndex, final int recordCount, final long offset,
+               final long length)
+    {
+        tablePath = tableFile.getPath();
+        this.firstIndex = firstIndex;
+        this.recordCount = recordCount;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Divides the records of a table into at most <code>nrOfSplits</code> splits of about the same
+     * size. Only the header of the table file is read. Splits without records are left out, so
+     * fewer splits are returned if the table has fewer records than <code>nrOfSplits</code>.
+     *
+     * @param tableFile the table file
+     * @param nrOfSplits the number of splits to make
+     * @return the splits, in record order
+     *
+     * @throws IOException if the header could not be read
+     * @throws CorruptedTableException if the header is corrupt
+     * @throws IllegalArgumentException if <code>nrOfSplits</code> is less than one
+     */
+    public static List<TableSplit> plan(final File tableFile, final int nrOfSplits)
+                                 throws IOException, CorruptedTableException
+    {
+        if (nrOfSplits < 1)
+        {
+            throw new IllegalArgumentException("Number of splits must be at least one");
+        }
+
+        final DbfHeader header = new DbfHeader();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tableFile)));
+
+        try
+        {
+            header.readAll(in);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        final List<TableSplit> splits = new ArrayList<TableSplit>();
+        final int totalRecordCount = header.getRecordCount();
+        final int recordLength = header.getRecordLength();
+
+        for (int i = 0; i < nrOfSplits; ++i)
+        {
+            final int first = (int) ((long) totalRecordCount * i / nrOfSplits);
+            final int next = (int) ((long) totalRecordCount * (i + 1) / nrOfSplits);
+
+            if (next > first)
+            {
+                splits.add(new TableSplit(tableFile,
+                                          first,
+                                          next - first,
+                                          header.getLength() + (long) first * recordLength,
+                                          (long) (next - first) * recordLength));
+            }
+        }
+
+        return splits;
+    }
+
+    /**
+     * Returns the table file the split belongs to.
+     *
+     * @return the table file
+     */
+    public File getTableFile()
+    {
+        return new File(tablePath);
+    }
+
+    /**
+     * Returns the index of the first record of the split.
+     *
+     * @return the index of the first record
+     */
+    public int getFirstIndex()
+    {
+        return firstIndex;
+    }
+
+    /**
+     * Returns the number of records in the split.
+     *
+     * @return the number of records
+     */
+    public int getRecordCount()
+    {
+        return recordCount;
+    }
+
+    /**
+     * Returns the offset in the table file of the first record of the split.
+     *
+     * @return the offset of the split
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * Returns the number of bytes the records of the split take up in the table file.
+     *
+     * @return the length of the split
+     */
+    public long getLength()
+    {
+        return length;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s[%d..%d)", tablePath, firstIndex, firstIndex + recordCount);
+    }
+}
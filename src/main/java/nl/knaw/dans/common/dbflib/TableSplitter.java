@@ -0,0 +1,283 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Splits a table into new tables with the same fields, by record range or by the hash of a key
+ * field. The table is read in one sequential pass and the records are copied as they are stored;
+ * the new tables are written, and their memos copied, on worker threads.
+ */
+class TableSplitter
+{
+    /*
+     * Collects the records for one of the new tables, and writes them to that table on a worker
+     * thread, a full buffer at a time. While one buffer is being written, the next is filled.
+     */
+    private class SplitPartition
+    {
+        private final Table target;
+        private byte[] buffer;
+        private byte[] spare = null;
+        private int length = 0;
+        private int recordCount = 0;
+        private Future<Void> pending = null;
+
+        SplitPartition(final Table target, final int bufferLength)
+        {
+            this.target = target;
+            buffer = new byte[bufferLength];
+        }
+
+        void add(final byte[] block, final int offset)
+          throws IOException, DbfLibException
+        {
+            System.arraycopy(block, offset, buffer, length, recordLength);
+            length += recordLength;
+
+            if (length == buffer.length)
+            {
+                flush();
+            }
+        }
+
+        void flush()
+            throws IOException, DbfLibException
+        {
+            if (length == 0)
+            {
+                return;
+            }
+
+            waitForPending();
+
+            final byte[] bytes = buffer;
+            final int bytesLength = length;
+            final int firstIndex = recordCount;
+            buffer = spare == null ? new byte[bytes.length] : spare;
+            spare = bytes;
+            recordCount += length / recordLength;
+            length = 0;
+
+            pending =
+                executor.submit(new Callable<Void>()
+                    {
+                        public Void call()
+                                  throws IOException, DbfLibException
+                        {
+                            if (hasMemoFields)
+                            {
+                                for (int offset = 0; offset < bytesLength; offset += recordLength)
+                                {
+                                    target.copyMemos(table, bytes, offset, fieldOffsets);
+                                }
+                            }
+
+                            target.writeTableBytesAt(target.getRecordOffset(firstIndex), bytes, 0, bytesLength);
+
+                            return null;
+                        }
+                    });
+        }
+
+        void waitForPending()
+                     throws IOException, DbfLibException
+        {
+            if (pending != null)
+            {
+                final Future<Void> future = pending;
+                pending = null;
+                Table.getResult(future);
+            }
+        }
+    }
+
+    private final Table table;
+    private final DbfHeader header;
+    private final int recordLength;
+    private final int[] fieldOffsets;
+    private final boolean hasMemoFields;
+    private final ExecutorService executor;
+
+    TableSplitter(final Table table, final int threadCount)
+    {
+        this.table = table;
+        header = table.getHeader();
+        recordLength = header.getRecordLength();
+        fieldOffsets = header.getFieldOffsets();
+        hasMemoFields = Table.hasMemoFields(header.getFields());
+        executor = Executors.newFixedThreadPool(threadCount);
+    }
+
+    /*
+     * Copies the records that are not flagged as "deleted" to the new tables, by record range if
+     * keyFieldIndex is negative, and returns the number of records copied to each. The new tables
+     * are deleted if the split fails. The caller holds the read lock of the header.
+     */
+    int[] split(final int keyFieldIndex, final List<File> targetFiles)
+         throws IOException, DbfLibException
+    {
+        final List<SplitPartition> partitions = new ArrayList<SplitPartition>();
+        boolean split = false;
+
+        try
+        {
+            final List<Field> fields = header.getFields();
+            final int recordsPerBlock = Math.max(1, Table.LENGTH_IO_BLOCK / recordLength);
+            final byte[] block = new byte[recordsPerBlock * recordLength];
+            final int recordCount = header.getRecordCount();
+            final int nrOfPartitions = targetFiles.size();
+
+            for (final File targetFile : targetFiles)
+            {
+                final Table target =
+                    new Table(targetFile, header.getVersion(), new ArrayList<Field>(fields), table.getCharsetName());
+                target.open(IfNonExistent.CREATE);
+                partitions.add(new SplitPartition(target, block.length));
+            }
+
+            for (int first = 0; first < recordCount; first += recordsPerBlock)
+            {
+                final int blockLength = Math.min(recordsPerBlock, recordCount - first) * recordLength;
+                table.readTableBytesAt(table.getRecordOffset(first), block, 0, blockLength);
+
+                for (int offset = 0; offset < blockLength; offset += recordLength)
+                {
+                    if (block[offset] == Table.MARKER_RECORD_DELETED)
+                    {
+                        continue;
+                    }
+
+                    final int partition;
+
+                    if (keyFieldIndex < 0)
+                    {
+                        partition = (int) ((long) (first + offset / recordLength) * nrOfPartitions / recordCount);
+                    }
+                    else
+                    {
+                        partition =
+                            (hashKey(block,
+                                     offset + fieldOffsets[keyFieldIndex],
+                                     fields.get(keyFieldIndex).getLength()) & Integer.MAX_VALUE) % nrOfPartitions;
+                    }
+
+                    partitions.get(partition).add(block, offset);
+                }
+            }
+
+            final int[] recordCounts = new int[nrOfPartitions];
+
+            for (int i = 0; i < nrOfPartitions; ++i)
+            {
+                final SplitPartition partition = partitions.get(i);
+                partition.flush();
+                partition.waitForPending();
+                partition.target.publishRecordCount(partition.recordCount);
+
+                if (table.getDurability() != Durability.NONE)
+                {
+                    partition.target.commit();
+                }
+
+                recordCounts[i] = partition.recordCount;
+            }
+
+            split = true;
+
+            return recordCounts;
+        }
+        finally
+        {
+            /*
+             * Not interrupted, as that would close the channels of the target tables under the
+             * worker threads.
+             */
+            executor.shutdown();
+
+            try
+            {
+                for (final SplitPartition partition : partitions)
+                {
+                    try
+                    {
+                        partition.waitForPending();
+                    }
+                    catch (final IOException ioException)
+                    {
+                        // only reached if an earlier failure is being reported
+                    }
+                    catch (final DbfLibException dbfLibException)
+                    {
+                        // only reached if an earlier failure is being reported
+                    }
+                    finally
+                    {
+                        partition.target.close();
+                    }
+                }
+            }
+            finally
+            {
+                if (! split)
+                {
+                    for (final File targetFile : targetFiles)
+                    {
+                        Util.deleteTableFiles(targetFile,
+                                              header.getVersion());
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Hashes the bytes of a key field, leaving out leading and trailing spaces and zeros.
+     */
+    private static int hashKey(final byte[] bytes, final int offset, final int length)
+    {
+        int from = offset;
+        int to = offset + length;
+
+        while (from < to && (bytes[from] & 0xff) <= ' ')
+        {
+            ++from;
+        }
+
+        while (to > from && (bytes[to - 1] & 0xff) <= ' ')
+        {
+            --to;
+        }
+
+        int hash = 1;
+
+        for (int i = from; i < to; ++i)
+        {
+            hash = 31 * hash + bytes[i];
+        }
+
+        return hash;
+    }
+}
@@ -19,12 +19,18 @@ package nl.knaw.dans.common.dbflib;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
@@ -164,6 +170,135 @@ class Util
         return null;
     }
 
+    /**
+     * Replaces <tt>target</tt> with <tt>source</tt>. If the file system supports it, the move is
+     * atomic, so that <tt>target</tt> is always either the old or the new file.
+     *
+     * @param source the file to move
+     * @param target the file to replace
+     * @throws IOException if the file could not be moved
+     */
+    static void replaceFile(final File source, final File target)
+                     throws IOException
+    {
+        try
+        {
+            Files.move(source.toPath(),
+                       target.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (final AtomicMoveNotSupportedException atomicMoveNotSupportedException)
+        {
+            Files.move(source.toPath(),
+                       target.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Deletes a table file and its memo file, if any. Files that do not exist are skipped.
+     *
+     * @param tableFile the table file to delete
+     * @param version the version of the table
+     */
+    static void deleteTableFiles(final File tableFile, final Version version)
+    {
+        /*
+         * The memo file can only be found while the table file exists.
+         */
+        final File memoFile = getMemoFile(tableFile, version);
+        tableFile.delete();
+
+        if (memoFile != null)
+        {
+            memoFile.delete();
+        }
+    }
+
+    /**
+     * Reads <tt>bytes.length</tt> bytes from <tt>channel</tt>, starting at <tt>position</tt>. The
+     * position of the channel itself is not changed.
+     *
+     * @param channel the channel to read from
+     * @param bytes the array to read into
+     * @param position the file position of the first byte to read
+     * @throws EOFException if the end of the file is reached first
+     * @throws IOException if the bytes could not be read
+     */
+    static void readFully(final FileChannel channel, final byte[] bytes, final long position)
+                   throws IOException
+    {
+        readFully(channel,
+                  ByteBuffer.wrap(bytes),
+                  position);
+    }
+
+    /**
+     * Fills the remainder of <tt>buffer</tt> from <tt>channel</tt>, starting at <tt>position</tt>.
+     * The position of the channel itself is not changed.
+     *
+     * @param channel the channel to read from
+     * @param buffer the buffer to read into
+     * @param position the file position of the first byte to read
+     * @throws EOFException if the end of the file is reached first
+     * @throws IOException if the bytes could not be read
+     */
+    static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+                   throws IOException
+    {
+        final int start = buffer.position();
+
+        while (buffer.hasRemaining())
+        {
+            final long current = position + buffer.position() - start;
+
+            if (channel.read(buffer, current) < 0)
+            {
+                throw new EOFException("Unexpected end of file at position " + current);
+            }
+        }
+    }
+
+    /**
+     * Writes all of <tt>bytes</tt> to <tt>channel</tt>, starting at <tt>position</tt>. The
+     * position of the channel itself is not changed, so several threads can write to different
+     * parts of the same file at once.
+     *
+     * @param channel the channel to write to
+     * @param bytes the bytes to write
+     * @param position the file position to write the first byte at
+     * @throws IOException if the bytes could not be written
+     */
+    static void writeFully(final FileChannel channel, final byte[] bytes, final long position)
+                    throws IOException
+    {
+        writeFully(channel,
+                   ByteBuffer.wrap(bytes),
+                   position);
+    }
+
+    /**
+     * Writes the remainder of <tt>buffer</tt> to <tt>channel</tt>, starting at <tt>position</tt>.
+     * The position of the channel itself is not changed.
+     *
+     * @param channel the channel to write to
+     * @param buffer the bytes to write
+     * @param position the file position to write the first byte at
+     * @throws IOException if the bytes could not be written
+     */
+    static void writeFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+                    throws IOException
+    {
+        final int start = buffer.position();
+
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer,
+                          position + buffer.position() - start);
+        }
+    }
+
     /**
      * Writes a <tt>java.lang.String</tt> to a <tt>java.io.DataOutput</tt>. The String is truncated
      * if it exceeds <tt>aLength</tt>. If it is shorter, the remaining bytes are filled with null
@@ -223,14 +358,22 @@ class Util
         final byte[] array = new byte[length];
         dataInput.readFully(array);
 
+        return getStringBytes(array, 0, length);
+    }
+
+    /*
+     * As readStringBytes(DataInput, int), but takes the bytes from bytes, starting at offset.
+     */
+    static byte[] getStringBytes(final byte[] bytes, final int offset, final int length)
+    {
         int index = 0;
 
-        while (index != length && array[index] != 0)
+        while (index != length && bytes[offset + index] != 0)
         {
             ++index;
         }
 
-        return Arrays.copyOf(array, index == 0 ? index + 1 : index);
+        return Arrays.copyOfRange(bytes, offset, offset + (index == 0 ? index + 1 : index));
     }
 
     /**
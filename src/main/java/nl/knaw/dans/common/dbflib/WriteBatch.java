@@ -0,0 +1,84 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of records to add to or update in a table, written as a whole with
+ * {@link Table#write(WriteBatch)}.
+ */
+public class WriteBatch
+{
+    /*
+     * The index of each record to update, or -1 for records to add.
+     */
+    private final List<Integer> indexes = new ArrayList<Integer>();
+    private final List<Record> records = new ArrayList<Record>();
+
+    /**
+     * Adds a record to the end of the table when the batch is written. Deleted records are never
+     * reused.
+     *
+     * @param record the record to add
+     */
+    public void addRecord(final Record record)
+    {
+        indexes.add(-1);
+        records.add(record);
+    }
+
+    /**
+     * Overwrites the record at <code>index</code> when the batch is written. The index may refer
+     * to a record added earlier in the same batch.
+     *
+     * @param index the index of the record to overwrite
+     * @param record the new record
+     * @throws IllegalArgumentException if <code>index</code> is negative
+     */
+    public void updateRecordAt(final int index, final Record record)
+    {
+        if (index < 0)
+        {
+            throw new IllegalArgumentException("Invalid index: " + index);
+        }
+
+        indexes.add(index);
+        records.add(record);
+    }
+
+    /**
+     * Returns the number of records in this batch.
+     *
+     * @return the number of records
+     */
+    public int size()
+    {
+        return records.size();
+    }
+
+    int getIndex(final int i)
+    {
+        return indexes.get(i);
+    }
+
+    Record getRecord(final int i)
+    {
+        return records.get(i);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import org.junit.runner.RunWith;
+
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests adding records in bulk with {@link Table#addRecords(Iterator, int)} and
+ * {@link Table#addRecordValues(Iterator, int)}.
+ */
+@RunWith(Parameterized.class)
+public class TestAddRecords
+    extends BaseTestcase
+{
+    private static final int NR_OF_RECORDS = 3000;
+
+    /**
+     * Creates a new TestAddRecords object.
+     *
+     * @param aVersion test parameter
+     * @param aVersionDirectory test parameter
+     */
+    public TestAddRecords(final Version aVersion, final String aVersionDirectory)
+    {
+        super(aVersion, aVersionDirectory);
+    }
+
+    private static List<Field> createFields()
+    {
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 8));
+        fields.add(new Field("AMOUNT", Type.NUMBER, 10, 2));
+        fields.add(new Field("NAME", Type.CHARACTER, 30));
+        fields.add(new Field("BORN", Type.DATE));
+        fields.add(new Field("ACTIVE", Type.LOGICAL));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        return fields;
+    }
+
+    private static Object[] createFieldValues(final int i)
+    {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(1950 + i % 50, i % 12, 1 + i % 28);
+
+        return new Object[]
+               {
+                   i, i * 1.25, "name " + i, calendar.getTime(), i % 2 == 0,
+                   i % 5 == 0 ? null : TestCompactMemo.createMemoText(i, i % 700)
+               };
+    }
+
+    private static Iterator<Object[]> createFieldValuesIterator(final int nrOfRecords)
+    {
+        return new Iterator<Object[]>()
+            {
+                private int i = 0;
+
+                public boolean hasNext()
+                {
+                    return i < nrOfRecords;
+                }
+
+                public Object[] next()
+                {
+                    return createFieldValues(i++);
+                }
+
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
+    }
+
+    @Test
+    public void sameResultAsAddRecord()
+                               throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory + "/addrecords");
+        final File expectedFile = new File(outputDir, "EXPECTED.DBF");
+        final File actualFile = new File(outputDir, "ACTUAL.DBF");
+
+        final Table expected = new Table(expectedFile, version, createFields());
+        expected.open(IfNonExistent.CREATE);
+
+        try
+        {
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                expected.addRecord(createFieldValues(i));
+            }
+        }
+        finally
+        {
+            expected.close();
+        }
+
+        final Table actual = new Table(actualFile, version, createFields());
+        actual.open(IfNonExistent.CREATE);
+
+        try
+        {
+            actual.addRecordValues(createFieldValuesIterator(NR_OF_RECORDS / 2),
+                                   4);
+
+            /*
+             * Appending to a non-empty table, as records this time.
+             */
+            final List<Record> records = new ArrayList<Record>();
+            final Table source = new Table(expectedFile);
+            source.open();
+
+            try
+            {
+                for (int i = NR_OF_RECORDS / 2; i < NR_OF_RECORDS; ++i)
+                {
+                    records.add(source.getRecordAt(i));
+                }
+            }
+            finally
+            {
+                source.close();
+            }
+
+            actual.addRecords(records.iterator(),
+                              3);
+            assertEquals(NR_OF_RECORDS,
+                         actual.getRecordCount());
+        }
+        finally
+        {
+            actual.close();
+        }
+
+        final Ranges ignoredRanges = new Ranges();
+        ignoredRanges.addRange(0x01, 0x03); // modified
+        assertEquals(-1,
+                     UnitTestUtil.compare(expectedFile, actualFile, ignoredRanges));
+
+        final Ranges ignoredMemoRanges = new Ranges();
+        ignoredMemoRanges.addRange(0x08, 0x0f); // file name
+        assertEquals(-1,
+                     UnitTestUtil.compare(Util.getMemoFile(expectedFile, version),
+                                          Util.getMemoFile(actualFile, version),
+                                          ignoredMemoRanges));
+    }
+
+    @Test
+    public void recordsBeforeInvalidRecordAreAdded()
+                                            throws Exception
+    {
+        final File outputDir =
+            UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory + "/addrecords_invalid");
+        final Table table = new Table(new File(outputDir, "INVALID.DBF"), version, createFields());
+        table.open(IfNonExistent.CREATE);
+
+        try
+        {
+            final List<Object[]> rows = new ArrayList<Object[]>();
+
+            for (int i = 0; i < 100; ++i)
+            {
+                rows.add(createFieldValues(i));
+            }
+
+            rows.get(60)[2] = "a name that does not fit in thirty characters";
+
+            try
+            {
+                table.addRecordValues(rows.iterator(),
+                                      2);
+                fail("Expected ValueTooLargeException");
+            }
+            catch (final ValueTooLargeException valueTooLargeException)
+            {
+                // expected
+            }
+
+            assertEquals(60,
+                         table.getRecordCount());
+            assertEquals("name 59",
+                         table.getRecordAt(59).getStringValue("NAME"));
+            assertEquals(TestCompactMemo.createMemoText(59, 59),
+                         table.getRecordAt(59).getStringValue("NOTES"));
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+}
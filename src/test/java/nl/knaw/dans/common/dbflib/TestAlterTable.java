@@ -0,0 +1,218 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import org.junit.runner.RunWith;
+
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests changing the fields of an existing table.
+ */
+@RunWith(Parameterized.class)
+public class TestAlterTable
+    extends BaseTestcase
+{
+    private static final int NR_OF_RECORDS = 1200;
+
+    /**
+     * Creates a new TestAlterTable object.
+     *
+     * @param aVersion test parameter
+     * @param aVersionDirectory test parameter
+     */
+    public TestAlterTable(final Version aVersion, final String aVersionDirectory)
+    {
+        super(aVersion, aVersionDirectory);
+    }
+
+    private Table createTable(final String name)
+                       throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory + "/alter/"
+                                                              + name);
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("NAME", Type.CHARACTER, 10));
+        fields.add(new Field("AMOUNT", Type.NUMBER, 8, 2));
+        fields.add(new Field("CODE", Type.NUMBER, 4));
+        fields.add(new Field("NOTES", Type.MEMO));
+        fields.add(new Field("OLD", Type.CHARACTER, 3));
+
+        final Table table = new Table(new File(outputDir, "ALTER.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        for (int i = 0; i < NR_OF_RECORDS; ++i)
+        {
+            table.addRecord(i,
+                            "name " + i,
+                            i + 0.25,
+                            i % 1000,
+                            i % 4 == 0 ? null : TestCompactMemo.createMemoText(i, 10 + i % 700),
+                            "old");
+
+            if (i % 7 == 0)
+            {
+                table.deleteRecordAt(i);
+            }
+        }
+
+        return table;
+    }
+
+    @Test
+    public void alterFields()
+                     throws Exception
+    {
+        final Table table = createTable("fields");
+
+        try
+        {
+            final List<Field> fields = new ArrayList<Field>();
+            fields.add(new Field("NOTES", Type.MEMO));
+            fields.add(new Field("ID", Type.NUMBER, 6));
+            fields.add(new Field("NAME", Type.CHARACTER, 20));
+            fields.add(new Field("AMOUNT", Type.NUMBER, 12, 3));
+            fields.add(new Field("CODE", Type.CHARACTER, 6));
+            fields.add(new Field("ADDED", Type.CHARACTER, 5));
+            table.alterTable(fields);
+
+            assertEquals(fields,
+                         table.getFields());
+            assertEquals(NR_OF_RECORDS,
+                         table.getRecordCount());
+
+            table.addRecord("added", NR_OF_RECORDS, "name", 1.5, "code", "added");
+            assertEquals(NR_OF_RECORDS + 1,
+                         table.getRecordCount());
+        }
+        finally
+        {
+            table.close();
+        }
+
+        final Table reopened = new Table(new File("target/test-output/" + versionDirectory + "/alter/fields",
+                                                  "ALTER.DBF"));
+        reopened.open();
+
+        try
+        {
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                final Record record = reopened.getRecordAt(i);
+                assertEquals(i % 7 == 0,
+                             record.isMarkedDeleted());
+                assertEquals(i,
+                             record.getNumberValue("ID").intValue());
+                assertEquals("name " + i,
+                             record.getStringValue("NAME").trim());
+                assertEquals(i + 0.25,
+                             record.getNumberValue("AMOUNT").doubleValue(),
+                             0.0001);
+                assertEquals(Integer.toString(i % 1000),
+                             record.getStringValue("CODE").trim());
+                assertEquals("",
+                             record.getStringValue("ADDED").trim());
+                assertEquals(i % 4 == 0 ? null : TestCompactMemo.createMemoText(i, 10 + i % 700),
+                             record.getStringValue("NOTES"));
+            }
+
+            final Record added = reopened.getRecordAt(NR_OF_RECORDS);
+            assertEquals("added",
+                         added.getStringValue("NOTES"));
+            assertEquals("code",
+                         added.getStringValue("CODE").trim());
+        }
+        finally
+        {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void valueTooLargeLeavesTableUnchanged()
+                                           throws Exception
+    {
+        final Table table = createTable("toolarge");
+
+        try
+        {
+            final List<Field> fields = new ArrayList<Field>(table.getFields());
+            fields.set(1,
+                       new Field("NAME", Type.CHARACTER, 6));
+
+            try
+            {
+                table.alterTable(fields);
+                fail("Names do not fit in the resized field");
+            }
+            catch (final ValueTooLargeException valueTooLargeException)
+            {
+                // expected
+            }
+
+            assertEquals(10,
+                         table.getFields().get(1).getLength());
+            assertEquals("name 1199",
+                         table.getRecordAt(NR_OF_RECORDS - 1).getStringValue("NAME").trim());
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void memoFieldCannotBeConverted()
+                                    throws Exception
+    {
+        final Table table = createTable("memo");
+
+        try
+        {
+            final List<Field> fields = new ArrayList<Field>(table.getFields());
+            fields.set(4,
+                       new Field("NOTES", Type.CHARACTER, 10));
+
+            try
+            {
+                table.alterTable(fields);
+                fail("Memo field converted");
+            }
+            catch (final IllegalArgumentException illegalArgumentException)
+            {
+                // expected
+            }
+
+            assertNull(table.getRecordAt(0).getStringValue("NOTES"));
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import org.junit.runner.RunWith;
+
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests appending the records of other tables with the same fields.
+ */
+@RunWith(Parameterized.class)
+public class TestAppendFrom
+    extends BaseTestcase
+{
+    private static final int NR_OF_SOURCES = 3;
+    private static final int NR_OF_RECORDS = 700;
+
+    /**
+     * Creates a new TestAppendFrom object.
+     *
+     * @param aVersion test parameter
+     * @param aVersionDirectory test parameter
+     */
+    public TestAppendFrom(final Version aVersion, final String aVersionDirectory)
+    {
+        super(aVersion, aVersionDirectory);
+    }
+
+    private static List<Field> createFields()
+    {
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("NOTES", Type.MEMO));
+        fields.add(new Field("NAME", Type.CHARACTER, 10));
+
+        return fields;
+    }
+
+    private static String getNotes(final int id)
+    {
+        return id % 5 == 0 ? null : TestCompactMemo.createMemoText(id, 20 + id % 900);
+    }
+
+    private Table createTable(final File outputDir, final String name, final int firstId, final int nrOfRecords)
+                       throws Exception
+    {
+        final Table table = new Table(new File(outputDir, name), version, createFields());
+        table.open(IfNonExistent.CREATE);
+
+        for (int id = firstId; id < firstId + nrOfRecords; ++id)
+        {
+            table.addRecord(id,
+                            getNotes(id),
+                            "name " + id);
+
+            if (id % 3 == 0)
+            {
+                table.deleteRecordAt(id - firstId);
+            }
+        }
+
+        return table;
+    }
+
+    @Test
+    public void appendTables()
+                      throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory + "/append");
+        final Table target = createTable(outputDir, "TARGET.DBF", 0, 100);
+        final Table[] sources = new Table[NR_OF_SOURCES];
+
+        for (int i = 0; i < NR_OF_SOURCES; ++i)
+        {
+            sources[i] = createTable(outputDir, "SOURCE" + i + ".DBF", 100 + i * NR_OF_RECORDS, NR_OF_RECORDS);
+        }
+
+        try
+        {
+            final int nrOfLiveRecords = NR_OF_SOURCES * NR_OF_RECORDS - NR_OF_SOURCES * NR_OF_RECORDS / 3;
+            assertEquals(nrOfLiveRecords,
+                         target.appendFrom(sources));
+            assertEquals(100 + nrOfLiveRecords,
+                         target.getRecordCount());
+        }
+        finally
+        {
+            target.close();
+
+            for (final Table source : sources)
+            {
+                source.close();
+            }
+        }
+
+        final Table reopened = new Table(new File(outputDir, "TARGET.DBF"));
+        reopened.open();
+
+        try
+        {
+            int index = 0;
+
+            for (int id = 0; id < 100 + NR_OF_SOURCES * NR_OF_RECORDS; ++id)
+            {
+                if (id >= 100 && id % 3 == 0)
+                {
+                    continue;
+                }
+
+                final Record record = reopened.getRecordAt(index++);
+                assertEquals(id,
+                             record.getNumberValue("ID").intValue());
+                assertEquals(id < 100 && id % 3 == 0,
+                             record.isMarkedDeleted());
+                assertEquals(getNotes(id),
+                             record.getStringValue("NOTES"));
+                assertEquals("name " + id,
+                             record.getStringValue("NAME").trim());
+            }
+
+            assertEquals(index,
+                         reopened.getRecordCount());
+
+            reopened.addRecord(-1, "after append", "last");
+            assertEquals("after append",
+                         reopened.getRecordAt(index).getStringValue("NOTES"));
+        }
+        finally
+        {
+            reopened.close();
+        }
+    }
+
+    /*
+     * Returns the type of field, other than MEMO, that is stored in the memo file in this version.
+     */
+    static Type getMemoBackedType(final Version version)
+    {
+        return version == Version.FOXPRO_26 ? Type.GENERAL : Type.BINARY;
+    }
+
+    static byte[] getData(final int id)
+    {
+        return id % 4 == 0 ? null : TestCompactMemo.createMemoText(id, 30 + id * 11 % 700).getBytes();
+    }
+
+    private Table createDataTable(final File outputDir, final String name, final int firstId, final int nrOfRecords)
+                           throws Exception
+    {
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("DATA", getMemoBackedType(version)));
+
+        final Table table = new Table(new File(outputDir, name), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        for (int id = firstId; id < firstId + nrOfRecords; ++id)
+        {
+            table.addRecord(id,
+                            getData(id));
+        }
+
+        return table;
+    }
+
+    @Test
+    public void appendTablesWithBinaryFields()
+                                      throws Exception
+    {
+        assumeTrue(version == Version.DBASE_5 || version == Version.FOXPRO_26);
+
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/append-data");
+        final Table target = createDataTable(outputDir, "TARGET.DBF", 0, 50);
+        final Table source = createDataTable(outputDir, "SOURCE.DBF", 50, NR_OF_RECORDS);
+
+        try
+        {
+            assertEquals(NR_OF_RECORDS,
+                         target.appendFrom(source));
+
+            for (int id = 0; id < 50 + NR_OF_RECORDS; ++id)
+            {
+                final Record record = target.getRecordAt(id);
+                assertEquals(id,
+                             record.getNumberValue("ID").intValue());
+                assertArrayEquals(getData(id),
+                                  (byte[]) record.getTypedValue("DATA"));
+            }
+        }
+        finally
+        {
+            source.close();
+            target.close();
+        }
+    }
+
+    @Test
+    public void differentFields()
+                         throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/append-fields");
+        final Table target = createTable(outputDir, "TARGET.DBF", 0, 10);
+        final List<Field> fields = createFields();
+        fields.set(2,
+                   new Field("NAME", Type.CHARACTER, 11));
+
+        final Table source = new Table(new File(outputDir, "SOURCE.DBF"), version, fields);
+        source.open(IfNonExistent.CREATE);
+
+        try
+        {
+            target.appendFrom(source);
+            fail("Table with other fields appended");
+        }
+        catch (final IllegalArgumentException illegalArgumentException)
+        {
+            assertEquals(10,
+                         target.getRecordCount());
+        }
+        finally
+        {
+            source.close();
+            target.close();
+        }
+    }
+}
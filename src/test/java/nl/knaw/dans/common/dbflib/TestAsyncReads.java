@@ -0,0 +1,233 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import org.junit.runner.RunWith;
+
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests reading records asynchronously, with many reads pending at once.
+ */
+@RunWith(Parameterized.class)
+public class TestAsyncReads
+    extends BaseTestcase
+{
+    private static final int NR_OF_RECORDS = 2000;
+
+    /**
+     * Creates a new TestAsyncReads object.
+     *
+     * @param aVersion test parameter
+     * @param aVersionDirectory test parameter
+     */
+    public TestAsyncReads(final Version aVersion, final String aVersionDirectory)
+    {
+        super(aVersion, aVersionDirectory);
+    }
+
+    private static String getNotes(final int id)
+    {
+        return id % 3 == 0 ? null : TestCompactMemo.createMemoText(id, 10 + id * 17 % 500);
+    }
+
+    private Table createTable(final String name)
+                       throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory + "/" + name);
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final Table table = new Table(new File(outputDir, "ASYNC.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        for (int i = 0; i < NR_OF_RECORDS; ++i)
+        {
+            table.addRecord(i,
+                            getNotes(i));
+        }
+
+        table.deleteRecordAt(7);
+
+        return table;
+    }
+
+    private static void checkRecord(final int expectedId, final Record record)
+    {
+        assertEquals(expectedId,
+                     record.getNumberValue("ID").intValue());
+        assertEquals(getNotes(expectedId),
+                     record.getStringValue("NOTES"));
+        assertEquals(expectedId == 7,
+                     record.isMarkedDeleted());
+    }
+
+    @Test
+    public void manyPendingReads()
+                          throws Exception
+    {
+        final Table table = createTable("async");
+
+        try
+        {
+            final List<Future<Record>> futures = new ArrayList<Future<Record>>();
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                futures.add(table.getRecordAtAsync(i * 7919 % NR_OF_RECORDS));
+            }
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                checkRecord(i * 7919 % NR_OF_RECORDS,
+                            futures.get(i).get(10, TimeUnit.SECONDS));
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void batches()
+                 throws Exception
+    {
+        final Table table = createTable("async-batch");
+
+        try
+        {
+            final int[] indexes = new int[500];
+
+            for (int i = 0; i < indexes.length; ++i)
+            {
+                indexes[i] = (i * 31 + i % 4) % NR_OF_RECORDS;
+            }
+
+            final List<Future<Record[]>> futures = new ArrayList<Future<Record[]>>();
+
+            for (int batch = 0; batch < 10; ++batch)
+            {
+                futures.add(table.getRecordsAtAsync(indexes));
+            }
+
+            futures.add(table.getRecordsAtAsync(new int[0]));
+
+            for (int batch = 0; batch < 10; ++batch)
+            {
+                final Record[] records = futures.get(batch).get(10, TimeUnit.SECONDS);
+
+                for (int i = 0; i < indexes.length; ++i)
+                {
+                    checkRecord(indexes[i],
+                                records[i]);
+                }
+            }
+
+            assertEquals(0,
+                         futures.get(10).get().length);
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void completionHandler()
+                           throws Exception
+    {
+        final Table table = createTable("async-handler");
+
+        try
+        {
+            final CountDownLatch done = new CountDownLatch(NR_OF_RECORDS);
+            final AtomicInteger failures = new AtomicInteger();
+            final Record[] records = new Record[NR_OF_RECORDS];
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                table.getRecordAtAsync(i,
+                                       i,
+                                       new CompletionHandler<Record, Integer>()
+                    {
+                        public void completed(final Record record, final Integer index)
+                        {
+                            records[index] = record;
+                            done.countDown();
+                        }
+
+                        public void failed(final Throwable exception, final Integer index)
+                        {
+                            failures.incrementAndGet();
+                            done.countDown();
+                        }
+                    });
+            }
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(0,
+                         failures.get());
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                checkRecord(i, records[i]);
+            }
+
+            table.updateRecordAt(5,
+                                 table.createRecord(new Object[] { 5, null }));
+            assertNull(table.getRecordAtAsync(5).get().getStringValue("NOTES"));
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void indexBeyondEnd()
+                        throws Exception
+    {
+        final Table table = createTable("async-beyond");
+
+        try
+        {
+            table.getRecordAtAsync(NR_OF_RECORDS);
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import org.junit.runner.RunWith;
+
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests compacting the memo file of a table.
+ */
+@RunWith(Parameterized.class)
+public class TestCompactMemo
+    extends BaseTestcase
+{
+    private static final int NR_OF_RECORDS = 20;
+
+    /**
+     * Creates a new TestCompactMemo object.
+     *
+     * @param aVersion test parameter
+     * @param aVersionDirectory test parameter
+     */
+    public TestCompactMemo(final Version aVersion, final String aVersionDirectory)
+    {
+        super(aVersion, aVersionDirectory);
+    }
+
+    /*
+     * The memo expected in record index after the updates done by the test.
+     */
+    private static String expectedMemoText(final int index)
+    {
+        if (index % 2 == 0)
+        {
+            return createMemoText(index, 1500);
+        }
+
+        return index % 3 == 0 ? null : createMemoText(index, 100);
+    }
+
+    static String createMemoText(final int index, final int length)
+    {
+        final StringBuilder sb = new StringBuilder("memo " + index + " ");
+
+        while (sb.length() < length)
+        {
+            sb.append((char) ('a' + sb.length() % 26));
+        }
+
+        return sb.toString();
+    }
+
+    private static List<Field> createFields()
+    {
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 5));
+        fields.add(new Field("MEMO", Type.MEMO));
+
+        return fields;
+    }
+
+    /*
+     * Adds the records and updates half of them, each update leaving the old memo behind in the
+     * memo file.
+     */
+    private static void fillTable(final Table table)
+                           throws Exception
+    {
+        table.open(IfNonExistent.CREATE);
+
+        for (int i = 0; i < NR_OF_RECORDS; ++i)
+        {
+            table.addRecord(i,
+                            i % 3 == 0 ? null : createMemoText(i, 100));
+        }
+
+        for (int i = 0; i < NR_OF_RECORDS; i += 2)
+        {
+            final Map<String, Value> values = new HashMap<String, Value>();
+            values.put("ID",
+                       new NumberValue(i));
+            values.put("MEMO",
+                       new StringValue(expectedMemoText(i)));
+            table.updateRecordAt(i,
+                                 new Record(values));
+        }
+    }
+
+    @Test
+    public void compactMemo()
+                     throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory + "/compact");
+        final File tableFile = new File(outputDir, "COMPACT.DBF");
+        final Table table = new Table(tableFile, version, createFields());
+
+        try
+        {
+            fillTable(table);
+
+            final File memoFile = Util.getMemoFile(tableFile, version);
+            final long lengthBefore = memoFile.length();
+
+            table.compactMemo();
+
+            assertTrue("Memo file did not shrink",
+                       memoFile.length() < lengthBefore);
+            assertEquals(NR_OF_RECORDS,
+                         table.getRecordCount());
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                final Record record = table.getRecordAt(i);
+                assertEquals(i,
+                             record.getNumberValue("ID").intValue());
+
+                assertEquals(expectedMemoText(i),
+                             record.getStringValue("MEMO"));
+            }
+
+            /*
+             * New memos must be appended after the compacted ones.
+             */
+            table.addRecord(NR_OF_RECORDS,
+                            createMemoText(NR_OF_RECORDS, 700));
+            assertEquals(createMemoText(1, 100),
+                         table.getRecordAt(1).getStringValue("MEMO"));
+            assertEquals(createMemoText(NR_OF_RECORDS, 700),
+                         table.getRecordAt(NR_OF_RECORDS).getStringValue("MEMO"));
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void interruptedSwapIsCompletedOnOpen()
+                                          throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/compact-interrupted");
+        final File tableFile = new File(outputDir, "COMPACT.DBF");
+
+        /*
+         * Stops after the compacted memo file has been moved into place, as a crash would.
+         */
+        final Table table =
+            new Table(tableFile, version, createFields())
+            {
+                private int nrOfMoves = 0;
+
+                @Override
+                void moveFile(final File source, final File target)
+                       throws IOException
+                {
+                    if (++nrOfMoves == 2)
+                    {
+                        throw new IOException("Simulated crash");
+                    }
+
+                    super.moveFile(source, target);
+                }
+            };
+
+        try
+        {
+            fillTable(table);
+            table.compactMemo();
+            fail("Swap not interrupted");
+        }
+        catch (final IOException ioException)
+        {
+            assertTrue(table.getSwapFile().exists());
+        }
+        finally
+        {
+            table.close();
+        }
+
+        final Table reopened = new Table(tableFile);
+        reopened.open();
+
+        try
+        {
+            assertFalse(reopened.getSwapFile().exists());
+            assertFalse(new File(tableFile.getPath() + ".tmp").exists());
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                assertEquals(expectedMemoText(i),
+                             reopened.getRecordAt(i).getStringValue("MEMO"));
+            }
+        }
+        finally
+        {
+            reopened.close();
+        }
+    }
+}
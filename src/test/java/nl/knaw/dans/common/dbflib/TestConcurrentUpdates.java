@@ -0,0 +1,233 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import org.junit.runner.RunWith;
+
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests updating, deleting and reading different records of one table from several threads at
+ * once.
+ */
+@RunWith(Parameterized.class)
+public class TestConcurrentUpdates
+    extends BaseTestcase
+{
+    private static final int NR_OF_THREADS = 8;
+    private static final int NR_OF_RECORDS = 400;
+    private static final int NR_OF_ROUNDS = 3;
+
+    /**
+     * Creates a new TestConcurrentUpdates object.
+     *
+     * @param aVersion test parameter
+     * @param aVersionDirectory test parameter
+     */
+    public TestConcurrentUpdates(final Version aVersion, final String aVersionDirectory)
+    {
+        super(aVersion, aVersionDirectory);
+    }
+
+    private static Record createRecord(final int id, final int round)
+    {
+        final Map<String, Value> values = new HashMap<String, Value>();
+        values.put("ID",
+                   new NumberValue(id));
+        values.put("ROUND",
+                   new NumberValue(round));
+        values.put("NOTES",
+                   new StringValue(TestCompactMemo.createMemoText(id, 50 + (id * 7 + round * 300) % 1200)));
+
+        return new Record(values);
+    }
+
+    @Test
+    public void updateDifferentRecordsInParallel()
+                                          throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory + "/concurrent");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 5));
+        fields.add(new Field("ROUND", Type.NUMBER, 2));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final Table table = new Table(new File(outputDir, "CONCUR.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        try
+        {
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                table.addRecord(createRecord(i, 0));
+            }
+
+            final ExecutorService executor = Executors.newFixedThreadPool(NR_OF_THREADS);
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+            for (int t = 0; t < NR_OF_THREADS; ++t)
+            {
+                final int thread = t;
+
+                futures.add(executor.submit(new Callable<Void>()
+                        {
+                            public Void call()
+                                      throws Exception
+                            {
+                                for (int round = 1; round <= NR_OF_ROUNDS; ++round)
+                                {
+                                    for (int i = thread; i < NR_OF_RECORDS; i += NR_OF_THREADS)
+                                    {
+                                        assertEquals(createRecord(i, round - 1).getStringValue("NOTES"),
+                                                     table.getRecordAt(i).getStringValue("NOTES"));
+                                        table.updateRecordAt(i,
+                                                             createRecord(i, round));
+
+                                        if (round == NR_OF_ROUNDS && i % 3 == 0)
+                                        {
+                                            table.deleteRecordAt(i);
+                                        }
+                                    }
+                                }
+
+                                return null;
+                            }
+                        }));
+            }
+
+            for (final Future<Void> future : futures)
+            {
+                future.get();
+            }
+
+            executor.shutdown();
+
+            assertEquals(NR_OF_RECORDS,
+                         table.getRecordCount());
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                final Record record = table.getRecordAt(i);
+                assertEquals(i,
+                             record.getNumberValue("ID").intValue());
+                assertEquals(NR_OF_ROUNDS,
+                             record.getNumberValue("ROUND").intValue());
+                assertEquals(createRecord(i, NR_OF_ROUNDS).getStringValue("NOTES"),
+                             record.getStringValue("NOTES"));
+                assertEquals(i % 3 == 0,
+                             record.isMarkedDeleted());
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void negativeIndex()
+                       throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory + "/negative");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 5));
+        fields.add(new Field("ROUND", Type.NUMBER, 2));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final File tableFile = new File(outputDir, "NEGATIVE.DBF");
+        final Table table = new Table(tableFile, version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        try
+        {
+            for (int i = 0; i < 3; ++i)
+            {
+                table.addRecord(createRecord(i, 0));
+            }
+
+            try
+            {
+                table.getRecordAt(-1);
+                fail("Record read at negative index");
+            }
+            catch (final NoSuchElementException noSuchElementException)
+            {
+                // expected
+            }
+
+            try
+            {
+                table.updateRecordAt(-1,
+                                     createRecord(9, 1));
+                fail("Record updated at negative index");
+            }
+            catch (final NoSuchElementException noSuchElementException)
+            {
+                // expected
+            }
+
+            try
+            {
+                table.deleteRecordAt(Integer.MIN_VALUE);
+                fail("Record deleted at negative index");
+            }
+            catch (final NoSuchElementException noSuchElementException)
+            {
+                // expected
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+
+        final Table reopened = new Table(tableFile);
+        reopened.open();
+
+        try
+        {
+            assertEquals(3,
+                         reopened.getRecordCount());
+
+            for (int i = 0; i < 3; ++i)
+            {
+                assertEquals(createRecord(i, 0).getStringValue("NOTES"),
+                             reopened.getRecordAt(i).getStringValue("NOTES"));
+            }
+        }
+        finally
+        {
+            reopened.close();
+        }
+    }
+}
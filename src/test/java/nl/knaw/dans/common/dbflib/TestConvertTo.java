@@ -0,0 +1,274 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import org.junit.runner.RunWith;
+
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Tests converting a table to each of the other versions.
+ */
+@RunWith(Parameterized.class)
+public class TestConvertTo
+    extends BaseTestcase
+{
+    private static final int NR_OF_RECORDS = 800;
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    /**
+     * Creates a new TestConvertTo object.
+     *
+     * @param aVersion test parameter
+     * @param aVersionDirectory test parameter
+     */
+    public TestConvertTo(final Version aVersion, final String aVersionDirectory)
+    {
+        super(aVersion, aVersionDirectory);
+    }
+
+    private static String getNotes(final int id)
+    {
+        return id % 6 == 0 ? null : TestCompactMemo.createMemoText(id, 10 + id * 3 % 1500);
+    }
+
+    @Test
+    public void convertToAllVersions()
+                              throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory + "/convert");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("NOTES", Type.MEMO));
+        fields.add(new Field("NAME", Type.CHARACTER, 12));
+        fields.add(new Field("BORN", Type.DATE));
+        fields.add(new Field("ACTIVE", Type.LOGICAL));
+
+        final Date firstDate = new Date(0);
+        final Table table = new Table(new File(outputDir, "SOURCE.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        try
+        {
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                table.addRecord(i,
+                                getNotes(i),
+                                "name " + i,
+                                new Date(firstDate.getTime() + i * DAY),
+                                i % 2 == 0);
+
+                if (i % 9 == 0)
+                {
+                    table.deleteRecordAt(i);
+                }
+            }
+
+            for (final Version targetVersion : Version.values())
+            {
+                table.convertTo(new File(outputDir, targetVersion + ".DBF"),
+                                targetVersion);
+            }
+
+            try
+            {
+                table.convertTo(new File(outputDir, "SOURCE.DBF"),
+                                version);
+                fail("Existing file overwritten");
+            }
+            catch (final FileAlreadyExistsException fileAlreadyExistsException)
+            {
+                // expected
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+
+        for (final Version targetVersion : Version.values())
+        {
+            final Table converted = new Table(new File(outputDir, targetVersion + ".DBF"));
+            converted.open();
+
+            try
+            {
+                /*
+                 * dBase IV and dBase V tables cannot be told apart by their header.
+                 */
+                if (targetVersion != Version.DBASE_4)
+                {
+                    assertEquals(targetVersion,
+                                 converted.getVersion());
+                }
+
+                assertEquals(fields,
+                             converted.getFields());
+                assertEquals(NR_OF_RECORDS,
+                             converted.getRecordCount());
+
+                for (int i = 0; i < NR_OF_RECORDS; ++i)
+                {
+                    final Record record = converted.getRecordAt(i);
+                    assertEquals(i % 9 == 0,
+                                 record.isMarkedDeleted());
+                    assertEquals(i,
+                                 record.getNumberValue("ID").intValue());
+                    assertEquals(getNotes(i),
+                                 record.getStringValue("NOTES"));
+                    assertEquals("name " + i,
+                                 record.getStringValue("NAME").trim());
+                    assertEquals(i % 2 == 0,
+                                 record.getBooleanValue("ACTIVE"));
+                }
+
+                converted.addRecord(NR_OF_RECORDS, "new memo", "new", new Date(), true);
+                assertEquals("new memo",
+                             converted.getRecordAt(NR_OF_RECORDS).getStringValue("NOTES"));
+            }
+            finally
+            {
+                converted.close();
+            }
+        }
+    }
+
+    @Test
+    public void convertBinaryFields()
+                             throws Exception
+    {
+        assumeTrue(version == Version.DBASE_5 || version == Version.FOXPRO_26);
+
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/convert-data");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("DATA", Type.GENERAL));
+
+        final Version targetVersion = version == Version.DBASE_5 ? Version.FOXPRO_26 : Version.DBASE_5;
+        final Table table = new Table(new File(outputDir, "SOURCE.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        try
+        {
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                table.addRecord(i,
+                                TestAppendFrom.getData(i));
+            }
+
+            table.convertTo(new File(outputDir, "TARGET.DBF"),
+                            targetVersion);
+        }
+        finally
+        {
+            table.close();
+        }
+
+        final Table converted = new Table(new File(outputDir, "TARGET.DBF"));
+        converted.open();
+
+        try
+        {
+            assertEquals(targetVersion,
+                         converted.getVersion());
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                assertArrayEquals(TestAppendFrom.getData(i),
+                                  (byte[]) converted.getRecordAt(i).getTypedValue("DATA"));
+            }
+        }
+        finally
+        {
+            converted.close();
+        }
+    }
+
+    @Test
+    public void failedConversionIsDeleted()
+                                   throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/convert-failed");
+        final File tableFile = new File(outputDir, "SOURCE.DBF");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final Table table = new Table(tableFile, version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        try
+        {
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                table.addRecord(i,
+                                getNotes(i));
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+
+        /*
+         * Without its memo file, the table cannot be converted once the first memo is reached.
+         */
+        for (final File file : outputDir.listFiles())
+        {
+            if (! file.equals(tableFile))
+            {
+                file.delete();
+            }
+        }
+
+        table.open();
+
+        try
+        {
+            table.convertTo(new File(outputDir, "TARGET.DBF"),
+                            Version.FOXPRO_26);
+            fail("Table without memo file converted");
+        }
+        catch (final CorruptedTableException corruptedTableException)
+        {
+            assertEquals(1,
+                         outputDir.list().length);
+        }
+        finally
+        {
+            table.close();
+        }
+
+        assertFalse(new File(outputDir, "TARGET.DBF").exists());
+    }
+}
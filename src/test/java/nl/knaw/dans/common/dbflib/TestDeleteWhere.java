@@ -0,0 +1,230 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import org.junit.runner.RunWith;
+
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Tests deleting and recalling records by filter.
+ */
+@RunWith(Parameterized.class)
+public class TestDeleteWhere
+    extends BaseTestcase
+{
+    private static final int NR_OF_RECORDS = 3000;
+
+    /**
+     * Creates a new TestDeleteWhere object.
+     *
+     * @param aVersion test parameter
+     * @param aVersionDirectory test parameter
+     */
+    public TestDeleteWhere(final Version aVersion, final String aVersionDirectory)
+    {
+        super(aVersion, aVersionDirectory);
+    }
+
+    private static RecordFilter multipleOf(final int divisor)
+    {
+        return new RecordFilter()
+            {
+                public boolean accept(final Record record)
+                {
+                    assertNull(record.getStringValue("NOTES"));
+
+                    return record.getNumberValue("ID").intValue() % divisor == 0;
+                }
+            };
+    }
+
+    @Test
+    public void deleteAndRecall()
+                         throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/deletewhere");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final Table table = new Table(new File(outputDir, "DELWHERE.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        try
+        {
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                table.addRecord(i, "memo " + i);
+            }
+
+            assertEquals(NR_OF_RECORDS / 2,
+                         table.deleteWhere(multipleOf(2)));
+
+            /* Only records not yet deleted are passed to the filter */
+            assertEquals(NR_OF_RECORDS / 6,
+                         table.deleteWhere(multipleOf(3)));
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                assertEquals(i % 2 == 0 || i % 3 == 0,
+                             table.getRecordAt(i).isMarkedDeleted());
+            }
+
+            assertEquals(NR_OF_RECORDS / 6,
+                         table.recallWhere(multipleOf(6)));
+
+            table.recallRecordAt(2);
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                final Record record = table.getRecordAt(i);
+                assertEquals((i % 2 == 0 || i % 3 == 0) && i % 6 != 0 && i != 2,
+                             record.isMarkedDeleted());
+                assertEquals("memo " + i,
+                             record.getStringValue("NOTES"));
+            }
+
+            final int nrDeleted = NR_OF_RECORDS * 2 / 3 - NR_OF_RECORDS / 6 - 1;
+            assertEquals(nrDeleted,
+                         table.recallWhere(null));
+            assertEquals(NR_OF_RECORDS,
+                         table.deleteWhere(null));
+            assertTrue(table.getRecordAt(NR_OF_RECORDS - 1).isMarkedDeleted());
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void filterOnAllFieldTypes()
+                               throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/deletewhere-types");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("CODE", Type.CHARACTER, 4));
+        fields.add(new Field("DAY", Type.DATE));
+        fields.add(new Field("FLAG", Type.LOGICAL));
+
+        final Table table = new Table(new File(outputDir, "DELWHERE.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        try
+        {
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                table.addRecord(i,
+                                "C" + i % 7,
+                                Util.createDate(2000, Calendar.JANUARY, 1 + i % 28),
+                                i % 2 == 0);
+            }
+
+            assertEquals(NR_OF_RECORDS / 2,
+                         table.deleteWhere(new RecordFilter()
+                {
+                    public boolean accept(final Record record)
+                    {
+                        assertFalse(record.isMarkedDeleted());
+
+                        final int id = record.getNumberValue("ID").intValue();
+                        assertEquals("C" + id % 7,
+                                     record.getStringValue("CODE").trim());
+                        assertEquals(Util.createDate(2000, Calendar.JANUARY, 1 + id % 28),
+                                     record.getDateValue("DAY"));
+
+                        return record.getBooleanValue("FLAG");
+                    }
+                }));
+
+            assertEquals(NR_OF_RECORDS / 4,
+                         table.recallWhere(new RecordFilter()
+                {
+                    public boolean accept(final Record record)
+                    {
+                        assertTrue(record.isMarkedDeleted());
+
+                        return record.getNumberValue("ID").intValue() % 4 == 0;
+                    }
+                }));
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                assertEquals(i % 4 == 2,
+                             table.getRecordAt(i).isMarkedDeleted());
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void deletedRecordsAreReused()
+                                 throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/deletewhere-reuse");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final Table table = new Table(new File(outputDir, "DELWHERE.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+        table.setReuseDeletedRecords(true);
+
+        try
+        {
+            for (int i = 0; i < 10; ++i)
+            {
+                table.addRecord(i, "memo " + i);
+            }
+
+            table.deleteWhere(multipleOf(5));
+            table.recallWhere(multipleOf(10));
+            table.addRecord(100, "reused");
+
+            assertEquals(10,
+                         table.getRecordCount());
+            assertEquals(100,
+                         table.getRecordAt(5).getNumberValue("ID").intValue());
+            assertEquals(0,
+                         table.getRecordAt(0).getNumberValue("ID").intValue());
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+}
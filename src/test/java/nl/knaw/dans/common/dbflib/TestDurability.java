@@ -0,0 +1,139 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the durability policies of a table. Whether writes really reach the storage device cannot
+ * be observed from a test, so these tests check when commits happen.
+ */
+public class TestDurability
+{
+    private static Table createTable(final String name)
+                              throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/durability/" + name);
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 5));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final Table table = new Table(new File(outputDir, "DURABLE.DBF"), Version.DBASE_3, fields);
+        table.open(IfNonExistent.CREATE);
+
+        return table;
+    }
+
+    @Test
+    public void groupCommitByRecordCount()
+                                  throws Exception
+    {
+        final Table table = createTable("records");
+
+        try
+        {
+            table.setDurability(Durability.GROUP_COMMIT);
+            table.setGroupCommitInterval(10, 3600000);
+
+            for (int i = 0; i < 25; ++i)
+            {
+                table.addRecord(i, "memo " + i);
+            }
+
+            assertEquals(5,
+                         table.getNrOfUncommittedRecords());
+
+            table.updateRecordAt(0,
+                                 table.getRecordAt(1));
+            table.deleteRecordAt(2);
+            assertEquals(7,
+                         table.getNrOfUncommittedRecords());
+
+            table.commit();
+            assertEquals(0,
+                         table.getNrOfUncommittedRecords());
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void groupCommitByTime()
+                           throws Exception
+    {
+        final Table table = createTable("time");
+
+        try
+        {
+            table.setDurability(Durability.GROUP_COMMIT);
+            table.setGroupCommitInterval(1000000, 0);
+
+            for (int i = 0; i < 5; ++i)
+            {
+                table.addRecord(i, "memo " + i);
+                assertEquals(0,
+                             table.getNrOfUncommittedRecords());
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void commitOnlyOnRequest()
+                             throws Exception
+    {
+        final Table table = createTable("commit");
+
+        try
+        {
+            table.setDurability(Durability.COMMIT);
+
+            for (int i = 0; i < 5; ++i)
+            {
+                table.addRecord(i, "memo " + i);
+            }
+
+            assertEquals(0,
+                         table.getNrOfUncommittedRecords());
+            table.commit();
+            assertEquals("memo 4",
+                         table.getRecordAt(4).getStringValue("NOTES"));
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidGroupCommitInterval()
+                                    throws Exception
+    {
+        new Table(new File("DUMMY.DBF")).setGroupCommitInterval(0, 1000);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import org.junit.runner.RunWith;
+
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Tests fetching a batch of scattered records at once.
+ */
+@RunWith(Parameterized.class)
+public class TestGetRecordsAt
+    extends BaseTestcase
+{
+    private static final int NR_OF_RECORDS = 3000;
+    private static final int NR_OF_INDEXES = 1500;
+
+    /**
+     * Creates a new TestGetRecordsAt object.
+     *
+     * @param aVersion test parameter
+     * @param aVersionDirectory test parameter
+     */
+    public TestGetRecordsAt(final Version aVersion, final String aVersionDirectory)
+    {
+        super(aVersion, aVersionDirectory);
+    }
+
+    private static String getNotes(final int id)
+    {
+        return id % 4 == 0 ? null : TestCompactMemo.createMemoText(id, 10 + id * 13 % 700);
+    }
+
+    private Table createTable(final String name)
+                       throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory + "/" + name);
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("NAME", Type.CHARACTER, 30));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final Table table = new Table(new File(outputDir, "BATCH.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        for (int i = 0; i < NR_OF_RECORDS; ++i)
+        {
+            table.addRecord(i,
+                            "name " + i,
+                            getNotes(i));
+
+            if (i % 9 == 0)
+            {
+                table.deleteRecordAt(i);
+            }
+        }
+
+        return table;
+    }
+
+    @Test
+    public void scatteredIndexes()
+                          throws Exception
+    {
+        final Table table = createTable("batch");
+
+        try
+        {
+            final Random random = new Random(42);
+            final int[] indexes = new int[NR_OF_INDEXES];
+
+            for (int i = 0; i < indexes.length; ++i)
+            {
+                /*
+                 * Some clustered, some far apart, and some repeated.
+                 */
+                indexes[i] = i % 3 == 0 ? random.nextInt(NR_OF_RECORDS) : (i * 7) % NR_OF_RECORDS;
+            }
+
+            indexes[1] = indexes[0];
+            indexes[indexes.length - 1] = NR_OF_RECORDS - 1;
+
+            final Record[] records = table.getRecordsAt(indexes);
+            assertEquals(indexes.length,
+                         records.length);
+
+            for (int i = 0; i < indexes.length; ++i)
+            {
+                final Record expected = table.getRecordAt(indexes[i]);
+                assertEquals(indexes[i],
+                             records[i].getNumberValue("ID").intValue());
+                assertEquals(expected.getStringValue("NAME"),
+                             records[i].getStringValue("NAME"));
+                assertEquals(getNotes(indexes[i]),
+                             records[i].getStringValue("NOTES"));
+                assertEquals(indexes[i] % 9 == 0,
+                             records[i].isMarkedDeleted());
+            }
+
+            assertEquals(0,
+                         table.getRecordsAt(new int[0]).length);
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void indexBeyondEnd()
+                        throws Exception
+    {
+        final Table table = createTable("batch-beyond");
+
+        try
+        {
+            table.getRecordsAt(new int[] { 5, NR_OF_RECORDS, 10 });
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import org.junit.runner.RunWith;
+
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests iterating over the records of a table in key order, both with the keys in memory and with
+ * sorted runs in temporary files.
+ */
+@RunWith(Parameterized.class)
+public class TestIterateSorted
+    extends BaseTestcase
+{
+    private static final int NR_OF_RECORDS = 3000;
+    private static final int NR_OF_LARGE_RECORDS = 20000;
+
+    /**
+     * Creates a new TestIterateSorted object.
+     *
+     * @param aVersion test parameter
+     * @param aVersionDirectory test parameter
+     */
+    public TestIterateSorted(final Version aVersion, final String aVersionDirectory)
+    {
+        super(aVersion, aVersionDirectory);
+    }
+
+    private static String getCity(final int id)
+    {
+        return id % 97 == 0 ? null : "city" + id * 7919 % 40;
+    }
+
+    private static int getAmount(final int id)
+    {
+        return id * 37 % 20 - 10;
+    }
+
+    private static String getNotes(final int id)
+    {
+        return id % 5 == 0 ? null : TestCompactMemo.createMemoText(id, 10 + id * 13 % 600);
+    }
+
+    private Table createTable(final File outputDir)
+                       throws Exception
+    {
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("CITY", Type.CHARACTER, 10));
+        fields.add(new Field("AMOUNT", Type.NUMBER, 8, 2));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final Table table = new Table(new File(outputDir, "ITERATE.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        for (int i = 0; i < NR_OF_RECORDS; ++i)
+        {
+            table.addRecord(i,
+                            getCity(i),
+                            getAmount(i),
+                            getNotes(i));
+
+            if (i % 11 == 0)
+            {
+                table.deleteRecordAt(i);
+            }
+        }
+
+        return table;
+    }
+
+    private static int compare(final Record record1, final Record record2)
+    {
+        final String city1 = record1.getStringValue("CITY").trim();
+        final String city2 = record2.getStringValue("CITY").trim();
+        final int result = city1.compareTo(city2);
+
+        if (result != 0)
+        {
+            return result;
+        }
+
+        return Double.compare(record1.getNumberValue("AMOUNT").doubleValue(),
+                              record2.getNumberValue("AMOUNT").doubleValue());
+    }
+
+    private static void checkSorted(final Iterator<Record> iterator, final SortOrder order)
+    {
+        Record previous = null;
+        int nrOfRecords = 0;
+
+        while (iterator.hasNext())
+        {
+            final Record record = iterator.next();
+            final int id = record.getNumberValue("ID").intValue();
+            assertTrue(id % 11 != 0);
+            assertEquals(getNotes(id),
+                         record.getStringValue("NOTES"));
+            assertEquals(getAmount(id),
+                         record.getNumberValue("AMOUNT").intValue());
+
+            if (previous != null)
+            {
+                final int result = compare(previous, record);
+                assertTrue(order == SortOrder.ASCENDING ? result <= 0 : result >= 0);
+
+                if (result == 0)
+                {
+                    assertTrue(previous.getNumberValue("ID").intValue() < id);
+                }
+            }
+
+            previous = record;
+            ++nrOfRecords;
+        }
+
+        assertEquals(NR_OF_RECORDS - (NR_OF_RECORDS + 10) / 11,
+                     nrOfRecords);
+    }
+
+    @Test
+    public void iterateWithSpillFiles()
+                               throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/iterate-sorted");
+        final Table table = createTable(outputDir);
+        final int nrOfFiles = outputDir.list().length;
+
+        try
+        {
+            final Iterator<Record> iterator = table.iterateSorted(Arrays.asList("CITY", "AMOUNT"),
+                                                                  SortOrder.ASCENDING,
+                                                                  20000);
+            assertTrue(outputDir.list().length > nrOfFiles);
+            checkSorted(iterator, SortOrder.ASCENDING);
+            assertFalse(iterator.hasNext());
+            assertEquals(nrOfFiles,
+                         outputDir.list().length);
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void iterateInMemory()
+                         throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/iterate-sorted-memory");
+        final Table table = createTable(outputDir);
+
+        try
+        {
+            checkSorted(table.iterateSorted(Arrays.asList("CITY", "AMOUNT"),
+                                            SortOrder.DESCENDING,
+                                            64L * 1024 * 1024),
+                        SortOrder.DESCENDING);
+            assertEquals(0,
+                         table.getRecordAt(0).getNumberValue("ID").intValue());
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void iterateLargeTable()
+                           throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/iterate-sorted-large");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("GROUP", Type.NUMBER, 3));
+
+        final Table table = new Table(new File(outputDir, "LARGE.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        try
+        {
+            for (int i = 0; i < NR_OF_LARGE_RECORDS; ++i)
+            {
+                table.addRecord(i, i * 7919 % 100);
+            }
+
+            final Iterator<Record> iterator = table.iterateSorted(Arrays.asList("GROUP"));
+
+            /*
+             * All keys fit in memory, so no run is written.
+             */
+            assertEquals(1,
+                         outputDir.list().length);
+            int previousGroup = -1;
+            int previousId = -1;
+            int nrOfRecords = 0;
+
+            while (iterator.hasNext())
+            {
+                final Record record = iterator.next();
+                final int group = record.getNumberValue("GROUP").intValue();
+                final int id = record.getNumberValue("ID").intValue();
+                assertTrue(group > previousGroup || (group == previousGroup && id > previousId));
+                previousGroup = group;
+                previousId = id;
+                ++nrOfRecords;
+            }
+
+            assertEquals(NR_OF_LARGE_RECORDS,
+                         nrOfRecords);
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void numberOrder()
+                     throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/iterate-sorted-numbers");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("AMOUNT", Type.NUMBER, 12, 3));
+
+        final String[] amounts =
+            {
+                "-1000.5", "9.999", "-2.25", "0", "100000", "0.001", "-2.2", "10", "-0.001", "1", "99999.999",
+                "-99999.999", "100.5", "0.01", "-1000.25", "1.1", null
+            };
+        final Table table = new Table(new File(outputDir, "NUMBERS.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        try
+        {
+            for (int i = 0; i < amounts.length; ++i)
+            {
+                table.addRecord(i,
+                                amounts[i] == null ? null : new BigDecimal(amounts[i]));
+            }
+
+            for (int i = 0; i < 2 * SortOrder.values().length; ++i)
+            {
+                /*
+                 * Both in memory and merged from runs of a few keys.
+                 */
+                final SortOrder order = SortOrder.values()[i / 2];
+                final Iterator<Record> iterator = table.iterateSorted(Arrays.asList("AMOUNT"),
+                                                                      order,
+                                                                      i % 2 == 0 ? 1024 : 150);
+                BigDecimal previous = null;
+                boolean first = true;
+                int nrOfRecords = 0;
+
+                while (iterator.hasNext())
+                {
+                    final String amount = amounts[iterator.next().getNumberValue("ID").intValue()];
+                    final BigDecimal current = amount == null ? null : new BigDecimal(amount);
+
+                    if (! first)
+                    {
+                        if (order == SortOrder.ASCENDING)
+                        {
+                            assertTrue(previous == null || previous.compareTo(current) < 0);
+                        }
+                        else
+                        {
+                            assertTrue(current == null || previous.compareTo(current) > 0);
+                        }
+                    }
+
+                    previous = current;
+                    first = false;
+                    ++nrOfRecords;
+                }
+
+                assertEquals(amounts.length,
+                             nrOfRecords);
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void memoKey()
+                 throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/iterate-sorted-memo");
+        final Table table = createTable(outputDir);
+
+        try
+        {
+            table.iterateSorted(Arrays.asList("NOTES"));
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+import org.junit.runner.RunWith;
+
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests writing batches of records through the redo journal, and replaying the journal when a
+ * table is opened.
+ */
+@RunWith(Parameterized.class)
+public class TestJournal
+    extends BaseTestcase
+{
+    private static final int NR_OF_BATCHES = 10;
+    private static final int NR_OF_RECORDS_PER_BATCH = 20;
+
+    /**
+     * Creates a new TestJournal object.
+     *
+     * @param aVersion test parameter
+     * @param aVersionDirectory test parameter
+     */
+    public TestJournal(final Version aVersion, final String aVersionDirectory)
+    {
+        super(aVersion, aVersionDirectory);
+    }
+
+    private static Record createRecord(final int id, final String notes)
+    {
+        final Map<String, Value> values = new HashMap<String, Value>();
+        values.put("ID",
+                   new NumberValue(id));
+        values.put("NOTES",
+                   notes == null ? null : new StringValue(notes));
+
+        return new Record(values);
+    }
+
+    private Table createTable(final String name)
+                       throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory + "/journal-"
+                                                              + name);
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final Table table = new Table(new File(outputDir, "JOURNAL.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+        table.addRecord(createRecord(0, "existing"));
+
+        return table;
+    }
+
+    @Test
+    public void writeBatches()
+                      throws Exception
+    {
+        final Table table = createTable("write");
+        final File journalFile = table.getJournalFile();
+
+        try
+        {
+            for (int b = 0; b < NR_OF_BATCHES; ++b)
+            {
+                final WriteBatch batch = new WriteBatch();
+
+                for (int i = 0; i < NR_OF_RECORDS_PER_BATCH; ++i)
+                {
+                    final int id = 1 + b * NR_OF_RECORDS_PER_BATCH + i;
+                    batch.addRecord(createRecord(id, TestCompactMemo.createMemoText(id, id * 7 % 900)));
+                }
+
+                batch.updateRecordAt(0,
+                                     createRecord(0, "updated " + b));
+                table.write(batch);
+            }
+
+            table.applyJournal();
+
+            assertEquals(1 + NR_OF_BATCHES * NR_OF_RECORDS_PER_BATCH,
+                         table.getRecordCount());
+            assertEquals("updated " + (NR_OF_BATCHES - 1),
+                         table.getRecordAt(0).getStringValue("NOTES"));
+
+            for (int id = 1; id < table.getRecordCount(); ++id)
+            {
+                final Record record = table.getRecordAt(id);
+                assertEquals(id,
+                             record.getNumberValue("ID").intValue());
+                assertEquals(TestCompactMemo.createMemoText(id, id * 7 % 900),
+                             record.getStringValue("NOTES"));
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+
+        assertFalse("Journal not deleted",
+                    journalFile.exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void updateBeyondEnd()
+                         throws Exception
+    {
+        final Table table = createTable("beyond");
+
+        try
+        {
+            final WriteBatch batch = new WriteBatch();
+            batch.addRecord(createRecord(1, null));
+            batch.updateRecordAt(2,
+                                 createRecord(2, null));
+            table.write(batch);
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    /**
+     * Writes a journal as if the table was closed by a crash before the batches were applied. The
+     * second batch is journaled twice, as if its application was interrupted, and the journal ends
+     * with a torn batch that was never acknowledged.
+     */
+    @Test
+    public void replayOnOpen()
+                      throws Exception
+    {
+        final Table table = createTable("replay");
+        final File tableFile = new File("target/test-output/" + versionDirectory + "/journal-replay/JOURNAL.DBF");
+        final Journal journal = new Journal(table.getJournalFile());
+        journal.open();
+
+        try
+        {
+            final List<EncodedRecord> first =
+                Arrays.asList(table.encodeRecord(createRecord(1, "one")),
+                              table.encodeRecord(createRecord(2, null)));
+            journal.append(TableJournal.encodeBatch(new int[] { 1, 2 },
+                                                    first));
+
+            for (int i = 0; i < 2; ++i)
+            {
+                final List<EncodedRecord> second =
+                    Arrays.asList(table.encodeRecord(createRecord(3, "three")),
+                                  table.encodeRecord(createRecord(0, "zero")));
+                journal.append(TableJournal.encodeBatch(new int[] { 3, 0 },
+                                                        second));
+            }
+
+            final List<EncodedRecord> torn = Arrays.asList(table.encodeRecord(createRecord(4, "four")));
+            final long tornEnd = journal.append(TableJournal.encodeBatch(new int[] { 4 },
+                                                                         torn));
+            journal.close();
+
+            final RandomAccessFile journalFile = new RandomAccessFile(table.getJournalFile(), "rw");
+            journalFile.setLength(tornEnd - 3);
+            journalFile.close();
+        }
+        finally
+        {
+            table.close();
+        }
+
+        final Table reopened = new Table(tableFile);
+        reopened.open();
+
+        try
+        {
+            assertFalse("Journal not deleted",
+                        reopened.getJournalFile().exists());
+            assertEquals(4,
+                         reopened.getRecordCount());
+
+            final String[] expectedNotes = { "zero", "one", null, "three" };
+
+            for (int i = 0; i < expectedNotes.length; ++i)
+            {
+                final Record record = reopened.getRecordAt(i);
+                assertEquals(i,
+                             record.getNumberValue("ID").intValue());
+                assertEquals(expectedNotes[i],
+                             record.getStringValue("NOTES"));
+            }
+        }
+        finally
+        {
+            reopened.close();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests reading and writing beyond the 2 GB boundary. The large files are created by extending
+ * small tables to the required size without writing the data in between, which on most file
+ * systems results in sparse files that take up hardly any disk space.
+ */
+public class TestLargeFiles
+{
+    private static final long TWO_GB = 2L * 1024 * 1024 * 1024;
+
+    @Test
+    public void recordsBeyondTwoGigabytes()
+                                   throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/large/dbf");
+        final File tableFile = new File(outputDir, "LARGE.DBF");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 10));
+        fields.add(new Field("NAME", Type.CHARACTER, 250));
+
+        Table table = new Table(tableFile, Version.DBASE_3, fields);
+        table.open(IfNonExistent.CREATE);
+        table.addRecord(0, "first");
+        table.close();
+
+        /*
+         * Pretend the table has ten million (empty) records: 2.6 GB.
+         */
+        final int recordCount = 10000000;
+        final RandomAccessFile raf = new RandomAccessFile(tableFile, "rw");
+
+        try
+        {
+            raf.seek(DbfHeader.OFFSET_RECORD_COUNT);
+            raf.writeInt(Util.changeEndianness(recordCount));
+
+            final long eofOffset = 32 + 2 * 32 + 1 + (long) recordCount * 261;
+            raf.setLength(eofOffset + 1);
+            raf.seek(eofOffset);
+            raf.writeByte(0x1a);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        assertTrue(tableFile.length() > TWO_GB);
+
+        table = new Table(tableFile);
+
+        try
+        {
+            table.open();
+            assertEquals(recordCount,
+                         table.getRecordCount());
+
+            table.addRecord(recordCount, "last");
+            table.addRecord(recordCount + 1, "after last");
+
+            final Map<String, Value> values = new HashMap<String, Value>();
+            values.put("ID",
+                       new NumberValue(recordCount - 1));
+            values.put("NAME",
+                       new StringValue("next to last"));
+            table.updateRecordAt(recordCount - 1,
+                                 new Record(values));
+        }
+        finally
+        {
+            table.close();
+        }
+
+        table = new Table(tableFile);
+
+        try
+        {
+            table.open();
+            assertEquals(recordCount + 2,
+                         table.getRecordCount());
+            assertEquals("first",
+                         table.getRecordAt(0).getStringValue("NAME"));
+            assertEquals("next to last",
+                         table.getRecordAt(recordCount - 1).getStringValue("NAME"));
+            assertEquals(recordCount,
+                         table.getRecordAt(recordCount).getNumberValue("ID").intValue());
+            assertEquals("after last",
+                         table.getRecordAt(recordCount + 1).getStringValue("NAME"));
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void memosBeyondTwoGigabytes()
+                                 throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/large/memo");
+        final File tableFile = new File(outputDir, "LARGE.DBF");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 10));
+        fields.add(new Field("MEMO", Type.MEMO));
+
+        Table table = new Table(tableFile, Version.FOXPRO_26, fields);
+        table.open(IfNonExistent.CREATE);
+        table.addRecord(0, "first memo");
+        table.close();
+
+        /*
+         * Move the next available block past the 2 GB boundary: 5,000,000 blocks of 512 bytes.
+         */
+        final int nextAvailableBlock = 5000000;
+        final File memoFile = Util.getMemoFile(tableFile, Version.FOXPRO_26);
+        final RandomAccessFile raf = new RandomAccessFile(memoFile, "rw");
+
+        try
+        {
+            raf.writeInt(nextAvailableBlock);
+            raf.setLength((long) nextAvailableBlock * 512);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        table = new Table(tableFile);
+
+        try
+        {
+            table.open();
+            table.addRecord(1, "memo beyond 2 GB");
+        }
+        finally
+        {
+            table.close();
+        }
+
+        assertTrue(memoFile.length() > TWO_GB);
+
+        table = new Table(tableFile);
+
+        try
+        {
+            table.open();
+            assertEquals("first memo",
+                         table.getRecordAt(0).getStringValue("MEMO"));
+            assertEquals("memo beyond 2 GB",
+                         table.getRecordAt(1).getStringValue("MEMO"));
+
+            table.compactMemo();
+            assertTrue(memoFile.length() < 4096);
+            assertEquals("memo beyond 2 GB",
+                         table.getRecordAt(1).getStringValue("MEMO"));
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests record and table locking. Locks are held per virtual machine, so the tests check which
+ * byte ranges are locked by trying to lock them through another channel on the same file.
+ */
+public class TestLocking
+{
+    private static Table createTable(final String name, final Version version)
+                              throws Exception
+    {
+        UnitTestUtil.recreateDirectory("target/test-output/locking/" + name);
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 5));
+
+        final Table table = new Table(getTableFile(name), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        for (int i = 0; i < 10; ++i)
+        {
+            table.addRecord(i);
+        }
+
+        return table;
+    }
+
+    private static File getTableFile(final String name)
+    {
+        return new File("target/test-output/locking/" + name, "LOCKING.DBF");
+    }
+
+    private static void assertLocked(final FileChannel channel, final long offset, final long length)
+                              throws IOException
+    {
+        try
+        {
+            channel.tryLock(offset, length, false);
+            fail("Range at " + offset + " is not locked");
+        }
+        catch (final OverlappingFileLockException overlappingFileLockException)
+        {
+            // expected
+        }
+    }
+
+    private static void assertNotLocked(final FileChannel channel, final long offset, final long length)
+                                 throws IOException
+    {
+        channel.tryLock(offset, length, false).release();
+    }
+
+    @Test
+    public void clipperRecordLock()
+                           throws Exception
+    {
+        final Table table = createTable("clipper", Version.DBASE_3);
+        final File tableFile = getTableFile("clipper");
+        final RandomAccessFile other = new RandomAccessFile(tableFile, "rw");
+
+        try
+        {
+            assertEquals(LockScheme.CLIPPER,
+                         table.getLockScheme());
+
+            table.lockRecord(4);
+            assertLocked(other.getChannel(),
+                         1000000005L,
+                         1);
+            assertNotLocked(other.getChannel(),
+                            1000000004L,
+                            1);
+
+            table.unlockRecord(4);
+            assertNotLocked(other.getChannel(),
+                            1000000005L,
+                            1);
+        }
+        finally
+        {
+            other.close();
+            table.close();
+        }
+    }
+
+    @Test
+    public void foxProRecordLock()
+                          throws Exception
+    {
+        final Table table = createTable("foxpro", Version.FOXPRO_26);
+        final File tableFile = getTableFile("foxpro");
+        final RandomAccessFile other = new RandomAccessFile(tableFile, "rw");
+
+        try
+        {
+            assertEquals(LockScheme.FOXPRO,
+                         table.getLockScheme());
+
+            assertTrue(table.tryLockRecord(4));
+            assertLocked(other.getChannel(),
+                         0x7FFFFFFEL - 5,
+                         1);
+            assertNotLocked(other.getChannel(),
+                            0x7FFFFFFEL - 4,
+                            1);
+        }
+        finally
+        {
+            other.close();
+            table.close();
+        }
+    }
+
+    @Test
+    public void tableLockCoversRecordLocks()
+                                    throws Exception
+    {
+        final Table table = createTable("table", Version.DBASE_3);
+        final File tableFile = getTableFile("table");
+        table.setLockScheme(LockScheme.FOXPRO);
+
+        final RandomAccessFile other = new RandomAccessFile(tableFile, "rw");
+
+        try
+        {
+            table.lockTable();
+            assertLocked(other.getChannel(),
+                         LockScheme.FOXPRO.getRecordLockOffset(0),
+                         1);
+            assertLocked(other.getChannel(),
+                         LockScheme.FOXPRO.getRecordLockOffset(1000000),
+                         1);
+
+            table.unlockTable();
+            assertNotLocked(other.getChannel(),
+                            LockScheme.FOXPRO.getRecordLockOffset(0),
+                            1);
+        }
+        finally
+        {
+            other.close();
+            table.close();
+        }
+    }
+
+    @Test
+    public void lockTableRereadsRecordCount()
+                                     throws Exception
+    {
+        final Table table = createTable("count", Version.DBASE_3);
+        final File tableFile = getTableFile("count");
+        final Table otherTable = new Table(tableFile);
+        otherTable.open();
+
+        try
+        {
+            otherTable.addRecord(10);
+            assertEquals(10,
+                         table.getRecordCount());
+
+            table.lockTable();
+            assertEquals(11,
+                         table.getRecordCount());
+
+            table.addRecord(11);
+            table.unlockTable();
+        }
+        finally
+        {
+            otherTable.close();
+            table.close();
+        }
+
+        final Table reopened = new Table(tableFile);
+        reopened.open();
+
+        try
+        {
+            assertEquals(12,
+                         reopened.getRecordCount());
+            assertEquals(11,
+                         reopened.getRecordAt(11).getNumberValue("ID").intValue());
+        }
+        finally
+        {
+            reopened.close();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import org.junit.runner.RunWith;
+
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests reusing the memo blocks released by updates.
+ */
+@RunWith(Parameterized.class)
+public class TestMemoReuse
+    extends BaseTestcase
+{
+    private static final int NR_OF_RECORDS = 10;
+
+    /**
+     * Creates a new TestMemoReuse object.
+     *
+     * @param aVersion test parameter
+     * @param aVersionDirectory test parameter
+     */
+    public TestMemoReuse(final Version aVersion, final String aVersionDirectory)
+    {
+        super(aVersion, aVersionDirectory);
+    }
+
+    private static Record createRecord(final int id, final String memoText)
+    {
+        final Map<String, Value> values = new HashMap<String, Value>();
+        values.put("ID",
+                   new NumberValue(id));
+        values.put("MEMO",
+                   memoText == null ? null : new StringValue(memoText));
+
+        return new Record(values);
+    }
+
+    @Test
+    public void updatesKeepMemoFileSizeStable()
+                                       throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory + "/reuse");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 5));
+        fields.add(new Field("MEMO", Type.MEMO));
+
+        final File tableFile = new File(outputDir, "REUSE.DBF");
+        final Table table = new Table(tableFile, version, fields);
+
+        try
+        {
+            table.open(IfNonExistent.CREATE);
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                table.addRecord(createRecord(i,
+                                             TestCompactMemo.createMemoText(i, 1000)));
+            }
+
+            /*
+             * A record's old memo is released after its new one is written, so the first update
+             * appends one memo, and each update after it reuses the blocks released by the one
+             * before.
+             */
+            table.updateRecordAt(0,
+                                 createRecord(0,
+                                              TestCompactMemo.createMemoText(0, 1000)));
+
+            final File memoFile = Util.getMemoFile(tableFile, version);
+            final long length = memoFile.length();
+
+            for (int round = 0; round < 5; ++round)
+            {
+                for (int i = 0; i < NR_OF_RECORDS; ++i)
+                {
+                    table.updateRecordAt(i,
+                                         createRecord(i,
+                                                      TestCompactMemo.createMemoText(i + round, 1000)));
+                }
+
+                assertEquals("Memo file grew in round " + round,
+                             length,
+                             memoFile.length());
+            }
+
+            /*
+             * Two short memos fit in the blocks released by one long memo.
+             */
+            table.updateRecordAt(0,
+                                 createRecord(0, null));
+            table.updateRecordAt(1,
+                                 createRecord(1,
+                                              TestCompactMemo.createMemoText(1, 300)));
+            table.updateRecordAt(2,
+                                 createRecord(2,
+                                              TestCompactMemo.createMemoText(2, 300)));
+            assertEquals(length,
+                         memoFile.length());
+
+            assertEquals(null,
+                         table.getRecordAt(0).getStringValue("MEMO"));
+            assertEquals(TestCompactMemo.createMemoText(1, 300),
+                         table.getRecordAt(1).getStringValue("MEMO"));
+            assertEquals(TestCompactMemo.createMemoText(2, 300),
+                         table.getRecordAt(2).getStringValue("MEMO"));
+
+            for (int i = 3; i < NR_OF_RECORDS; ++i)
+            {
+                assertEquals(TestCompactMemo.createMemoText(i + 4, 1000),
+                             table.getRecordAt(i).getStringValue("MEMO"));
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void failedUpdateKeepsOldMemo()
+                                  throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/reuse-failed");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 5));
+        fields.add(new Field("MEMO", Type.MEMO));
+
+        /*
+         * Fails the first write of record 0 after its new memo has been written.
+         */
+        final Table table =
+            new Table(new File(outputDir, "REUSE.DBF"), version, fields)
+            {
+                private boolean failed = false;
+
+                @Override
+                void writeRecordBytesAt(final int index, final byte[] recordBytes)
+                                 throws IOException
+                {
+                    if (index == 0 && getRecordCount() > 0 && ! failed)
+                    {
+                        failed = true;
+
+                        throw new IOException("Simulated write failure");
+                    }
+
+                    super.writeRecordBytesAt(index, recordBytes);
+                }
+            };
+
+        try
+        {
+            table.open(IfNonExistent.CREATE);
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                table.addRecord(createRecord(i,
+                                             TestCompactMemo.createMemoText(i, 1000)));
+            }
+
+            try
+            {
+                table.updateRecordAt(0,
+                                     createRecord(0,
+                                                  TestCompactMemo.createMemoText(100, 1000)));
+                fail("Update did not fail");
+            }
+            catch (final IOException ioException)
+            {
+                // expected
+            }
+
+            for (int i = 1; i < NR_OF_RECORDS; ++i)
+            {
+                table.updateRecordAt(i,
+                                     createRecord(i,
+                                                  TestCompactMemo.createMemoText(i + 200, 1000)));
+            }
+
+            assertEquals(TestCompactMemo.createMemoText(0, 1000),
+                         table.getRecordAt(0).getStringValue("MEMO"));
+
+            for (int i = 1; i < NR_OF_RECORDS; ++i)
+            {
+                assertEquals(TestCompactMemo.createMemoText(i + 200, 1000),
+                             table.getRecordAt(i).getStringValue("MEMO"));
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests iterating over a window of the records of a table, forwards and in reverse.
+ */
+public class TestRecordWindow
+{
+    private static final int NR_OF_RECORDS = 2500;
+
+    private static Table createTable(final String name)
+                              throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/window/" + name);
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("NAME", Type.CHARACTER, 200));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final Table table = new Table(new File(outputDir, "WINDOW.DBF"), Version.DBASE_3, fields);
+        table.open(IfNonExistent.CREATE);
+
+        for (int i = 0; i < NR_OF_RECORDS; ++i)
+        {
+            table.addRecord(i, "name " + i, "memo " + i);
+
+            if (i % 10 == 0)
+            {
+                table.deleteRecordAt(i);
+            }
+        }
+
+        return table;
+    }
+
+    private static void checkWindow(final Iterator<Record> iterator, final int first, final int end,
+                                    final int step, final boolean includeDeleted)
+    {
+        for (int i = first; i != end; i += step)
+        {
+            if (! includeDeleted && i % 10 == 0)
+            {
+                continue;
+            }
+
+            final Record record = iterator.next();
+            assertEquals(i,
+                         record.getNumberValue("ID").intValue());
+            assertEquals("memo " + i,
+                         record.getStringValue("NOTES"));
+            assertEquals(i % 10 == 0,
+                         record.isMarkedDeleted());
+        }
+
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void forward()
+                 throws Exception
+    {
+        final Table table = createTable("forward");
+
+        try
+        {
+            checkWindow(table.recordIterator(1000, 1100, false),
+                        1000,
+                        1100,
+                        1,
+                        false);
+            checkWindow(table.recordIterator(5, 2000, true),
+                        5,
+                        2000,
+                        1,
+                        true);
+            checkWindow(table.recordIterator(0, NR_OF_RECORDS, false),
+                        0,
+                        NR_OF_RECORDS,
+                        1,
+                        false);
+            assertFalse(table.recordIterator(700, 700, true).hasNext());
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void reverse()
+                 throws Exception
+    {
+        final Table table = createTable("reverse");
+
+        try
+        {
+            checkWindow(table.reverseRecordIterator(1000, 1100, false),
+                        1099,
+                        999,
+                        -1,
+                        false);
+            checkWindow(table.reverseRecordIterator(3, 2001, true),
+                        2000,
+                        2,
+                        -1,
+                        true);
+            checkWindow(table.reverseRecordIterator(0, NR_OF_RECORDS, false),
+                        NR_OF_RECORDS - 1,
+                        -1,
+                        -1,
+                        false);
+            assertFalse(table.reverseRecordIterator(700, 700, true).hasNext());
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void beyondEnd()
+                   throws Exception
+    {
+        final Table table = createTable("beyond");
+
+        try
+        {
+            table.recordIterator(10, NR_OF_RECORDS + 1, true);
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestReuseDeletedRecords
+{
+    private static Table createTable(final File tableFile)
+                              throws Exception
+    {
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 5));
+        fields.add(new Field("NAME", Type.CHARACTER, 20));
+
+        final Table table = new Table(tableFile, Version.DBASE_3, fields);
+        table.open(IfNonExistent.CREATE);
+
+        for (int i = 0; i < 10; ++i)
+        {
+            table.addRecord(i, "name " + i);
+        }
+
+        return table;
+    }
+
+    @Test
+    public void addRecordFillsDeletedSlots()
+                                    throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/reuse_deleted");
+        final Table table = createTable(new File(outputDir, "reuse.dbf"));
+
+        try
+        {
+            table.setReuseDeletedRecords(true);
+            table.deleteRecordAt(7);
+            table.deleteRecordAt(2);
+
+            table.addRecord(10, "name 10");
+            table.addRecord(11, "name 11");
+            assertEquals(10,
+                         table.getRecordCount());
+            assertEquals(10,
+                         table.getRecordAt(2).getNumberValue("ID").intValue());
+            assertFalse(table.getRecordAt(2).isMarkedDeleted());
+            assertEquals(11,
+                         table.getRecordAt(7).getNumberValue("ID").intValue());
+
+            table.addRecord(12, "name 12");
+            assertEquals(11,
+                         table.getRecordCount());
+            assertEquals("name 12",
+                         table.getRecordAt(10).getStringValue("NAME"));
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void deletedSlotsAreFoundOnOpen()
+                                    throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/reuse_deleted_open");
+        final File tableFile = new File(outputDir, "reuse.dbf");
+        Table table = createTable(tableFile);
+        table.deleteRecordAt(4);
+        table.deleteRecordAt(9);
+        table.close();
+
+        table = new Table(tableFile);
+
+        try
+        {
+            table.setReuseDeletedRecords(true);
+            table.open();
+            table.addRecord(20, "name 20");
+            table.addRecord(21, "name 21");
+            table.addRecord(22, "name 22");
+
+            assertEquals(11,
+                         table.getRecordCount());
+            assertEquals(20,
+                         table.getRecordAt(4).getNumberValue("ID").intValue());
+            assertEquals(21,
+                         table.getRecordAt(9).getNumberValue("ID").intValue());
+            assertEquals(22,
+                         table.getRecordAt(10).getNumberValue("ID").intValue());
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void offByDefault()
+                      throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/reuse_deleted_off");
+        final Table table = createTable(new File(outputDir, "reuse.dbf"));
+
+        try
+        {
+            assertFalse(table.isReuseDeletedRecords());
+            table.deleteRecordAt(0);
+            table.addRecord(10, "name 10");
+            assertEquals(11,
+                         table.getRecordCount());
+            assertTrue(table.getRecordAt(0).isMarkedDeleted());
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+}
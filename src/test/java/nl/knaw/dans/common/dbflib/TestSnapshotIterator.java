@@ -0,0 +1,163 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests iterating over a snapshot of a table while records are appended to it.
+ */
+public class TestSnapshotIterator
+{
+    private static final int NR_OF_RECORDS = 2500;
+
+    private static void appendLocked(final Table table)
+                              throws Exception
+    {
+        table.lockTable();
+
+        try
+        {
+            table.addRecord(-1, "appended");
+        }
+        finally
+        {
+            table.unlockTable();
+        }
+    }
+
+    @Test
+    public void appendedRecordsAreNotReturned()
+                                       throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/snapshot");
+        final File tableFile = new File(outputDir, "SNAPSHOT.DBF");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final Table table = new Table(tableFile, Version.DBASE_3, fields);
+        table.open(IfNonExistent.CREATE);
+
+        final Table appender = new Table(tableFile);
+
+        try
+        {
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                table.addRecord(i, "memo " + i);
+
+                if (i % 10 == 0)
+                {
+                    table.deleteRecordAt(i);
+                }
+            }
+
+            /*
+             * Appended through another Table object, as another process would, so table itself does
+             * not know about it.
+             */
+            appender.open();
+            appender.lockTable();
+            appender.addRecord(NR_OF_RECORDS, "memo " + NR_OF_RECORDS);
+            appender.unlockTable();
+            assertEquals(NR_OF_RECORDS,
+                         table.getRecordCount());
+
+            final Iterator<Record> iterator = table.snapshotIterator(false);
+            int expectedId = 1;
+
+            while (iterator.hasNext())
+            {
+                final Record record = iterator.next();
+                assertEquals(expectedId,
+                             record.getNumberValue("ID").intValue());
+                assertEquals("memo " + expectedId,
+                             record.getStringValue("NOTES"));
+
+                if (expectedId % 100 == 0)
+                {
+                    appendLocked(table);
+                    appendLocked(appender);
+                }
+
+                ++expectedId;
+
+                if (expectedId % 10 == 0 && expectedId < NR_OF_RECORDS)
+                {
+                    ++expectedId;
+                }
+            }
+
+            assertEquals(NR_OF_RECORDS + 1,
+                         expectedId);
+            assertFalse(iterator.hasNext());
+        }
+        finally
+        {
+            appender.close();
+            table.close();
+        }
+    }
+
+    @Test
+    public void includeDeleted()
+                        throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/snapshot-deleted");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+
+        final Table table = new Table(new File(outputDir, "SNAPSHOT.DBF"), Version.DBASE_3, fields);
+        table.open(IfNonExistent.CREATE);
+
+        try
+        {
+            for (int i = 0; i < 10; ++i)
+            {
+                table.addRecord(i);
+            }
+
+            table.deleteRecordAt(9);
+
+            final Iterator<Record> iterator = table.snapshotIterator(true);
+
+            for (int i = 0; i < 10; ++i)
+            {
+                final Record record = iterator.next();
+                assertEquals(i,
+                             record.getNumberValue("ID").intValue());
+                assertEquals(i == 9,
+                             record.isMarkedDeleted());
+            }
+
+            assertFalse(iterator.hasNext());
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import org.junit.runner.RunWith;
+
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests sorting the records of a table, both in memory and with spill files.
+ */
+@RunWith(Parameterized.class)
+public class TestSortTable
+    extends BaseTestcase
+{
+    private static final int NR_OF_RECORDS = 3000;
+
+    /**
+     * Creates a new TestSortTable object.
+     *
+     * @param aVersion test parameter
+     * @param aVersionDirectory test parameter
+     */
+    public TestSortTable(final Version aVersion, final String aVersionDirectory)
+    {
+        super(aVersion, aVersionDirectory);
+    }
+
+    private static String getCity(final int id)
+    {
+        return id % 97 == 0 ? null : "city" + id * 7919 % 40;
+    }
+
+    private static int getAmount(final int id)
+    {
+        return id * 37 % 20 - 10;
+    }
+
+    private static String getNotes(final int id)
+    {
+        return id % 5 == 0 ? null : TestCompactMemo.createMemoText(id, 10 + id * 13 % 600);
+    }
+
+    private Table createTable(final File outputDir)
+                       throws Exception
+    {
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("CITY", Type.CHARACTER, 10));
+        fields.add(new Field("AMOUNT", Type.NUMBER, 8, 2));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final Table table = new Table(new File(outputDir, "SORT.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        for (int i = 0; i < NR_OF_RECORDS; ++i)
+        {
+            table.addRecord(i,
+                            getCity(i),
+                            getAmount(i),
+                            getNotes(i));
+
+            if (i % 11 == 0)
+            {
+                table.deleteRecordAt(i);
+            }
+        }
+
+        return table;
+    }
+
+    private static int compare(final Record record1, final Record record2)
+    {
+        final String city1 = record1.getStringValue("CITY").trim();
+        final String city2 = record2.getStringValue("CITY").trim();
+        final int result = city1.compareTo(city2);
+
+        if (result != 0)
+        {
+            return result;
+        }
+
+        return Double.compare(record1.getNumberValue("AMOUNT").doubleValue(),
+                              record2.getNumberValue("AMOUNT").doubleValue());
+    }
+
+    private void checkSorted(final Table table, final SortOrder order)
+                      throws Exception
+    {
+        assertEquals(NR_OF_RECORDS,
+                     table.getRecordCount());
+
+        final boolean[] seen = new boolean[NR_OF_RECORDS];
+        Record previous = null;
+
+        for (int i = 0; i < NR_OF_RECORDS; ++i)
+        {
+            final Record record = table.getRecordAt(i);
+            final int id = record.getNumberValue("ID").intValue();
+            seen[id] = true;
+            assertEquals(id % 11 == 0,
+                         record.isMarkedDeleted());
+            assertEquals(getNotes(id),
+                         record.getStringValue("NOTES"));
+            assertEquals(getAmount(id),
+                         record.getNumberValue("AMOUNT").intValue());
+
+            if (previous != null)
+            {
+                final int result = compare(previous, record);
+                assertTrue(order == SortOrder.ASCENDING ? result <= 0 : result >= 0);
+
+                if (result == 0)
+                {
+                    assertTrue(previous.getNumberValue("ID").intValue() < id);
+                }
+            }
+
+            previous = record;
+        }
+
+        for (final boolean s : seen)
+        {
+            assertTrue(s);
+        }
+    }
+
+    @Test
+    public void sortWithSpillFiles()
+                            throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory + "/sort");
+        final Table table = createTable(outputDir);
+
+        try
+        {
+            table.sortTable(Arrays.asList("CITY", "AMOUNT"),
+                            SortOrder.ASCENDING,
+                            20000);
+            checkSorted(table, SortOrder.ASCENDING);
+            assertEquals(null,
+                         getCity(table.getRecordAt(0).getNumberValue("ID").intValue()));
+        }
+        finally
+        {
+            table.close();
+        }
+
+        assertEquals(2,
+                     outputDir.list().length);
+    }
+
+    @Test
+    public void sortInMemory()
+                      throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/sort-memory");
+        final Table table = createTable(outputDir);
+
+        try
+        {
+            table.sortTable(Arrays.asList("CITY", "AMOUNT"),
+                            SortOrder.DESCENDING);
+            checkSorted(table, SortOrder.DESCENDING);
+        }
+        finally
+        {
+            table.close();
+        }
+
+        final Table reopened = new Table(new File(outputDir, "SORT.DBF"));
+        reopened.open();
+
+        try
+        {
+            checkSorted(reopened, SortOrder.DESCENDING);
+        }
+        finally
+        {
+            reopened.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void memoKey()
+                 throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/sort-memo");
+        final Table table = createTable(outputDir);
+
+        try
+        {
+            table.sortTable(Arrays.asList("NOTES"),
+                            SortOrder.ASCENDING);
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+}
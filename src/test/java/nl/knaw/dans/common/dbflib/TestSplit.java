@@ -0,0 +1,342 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import org.junit.runner.RunWith;
+
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests splitting a table into several tables.
+ */
+@RunWith(Parameterized.class)
+public class TestSplit
+    extends BaseTestcase
+{
+    private static final int NR_OF_RECORDS = 2000;
+
+    /**
+     * Creates a new TestSplit object.
+     *
+     * @param aVersion test parameter
+     * @param aVersionDirectory test parameter
+     */
+    public TestSplit(final Version aVersion, final String aVersionDirectory)
+    {
+        super(aVersion, aVersionDirectory);
+    }
+
+    private static String getNotes(final int id)
+    {
+        return id % 4 == 0 ? null : TestCompactMemo.createMemoText(id, 10 + id * 7 % 1100);
+    }
+
+    private Table createTable(final File outputDir)
+                       throws Exception
+    {
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("CODE", Type.CHARACTER, 8));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final Table table = new Table(new File(outputDir, "SOURCE.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        for (int i = 0; i < NR_OF_RECORDS; ++i)
+        {
+            table.addRecord(i,
+                            "code" + i % 13,
+                            getNotes(i));
+
+            if (i % 10 == 0)
+            {
+                table.deleteRecordAt(i);
+            }
+        }
+
+        return table;
+    }
+
+    private static List<File> getTargetFiles(final File outputDir, final int nrOfFiles)
+    {
+        final List<File> targetFiles = new ArrayList<File>();
+
+        for (int i = 0; i < nrOfFiles; ++i)
+        {
+            targetFiles.add(new File(outputDir, "PART" + i + ".DBF"));
+        }
+
+        return targetFiles;
+    }
+
+    private static List<Record> readRecords(final File tableFile)
+                                     throws Exception
+    {
+        final Table table = new Table(tableFile);
+        table.open();
+
+        try
+        {
+            final List<Record> records = new ArrayList<Record>();
+            final Iterator<Record> iterator = table.recordIterator(true);
+
+            while (iterator.hasNext())
+            {
+                final Record record = iterator.next();
+                assertFalse(record.isMarkedDeleted());
+                assertEquals(getNotes(record.getNumberValue("ID").intValue()),
+                             record.getStringValue("NOTES"));
+                records.add(record);
+            }
+
+            return records;
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void splitByRange()
+                      throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/split-range");
+        final Table table = createTable(outputDir);
+        final List<File> targetFiles = getTargetFiles(outputDir, 3);
+        final int[] recordCounts;
+
+        try
+        {
+            recordCounts = table.splitByRange(targetFiles, 2);
+        }
+        finally
+        {
+            table.close();
+        }
+
+        int expectedId = 1;
+
+        for (int i = 0; i < targetFiles.size(); ++i)
+        {
+            final List<Record> records = readRecords(targetFiles.get(i));
+            assertEquals(records.size(),
+                         recordCounts[i]);
+
+            for (final Record record : records)
+            {
+                final int id = record.getNumberValue("ID").intValue();
+                assertEquals(expectedId,
+                             id);
+                assertEquals(i,
+                             id * targetFiles.size() / NR_OF_RECORDS);
+
+                ++expectedId;
+
+                if (expectedId % 10 == 0)
+                {
+                    ++expectedId;
+                }
+            }
+        }
+
+        assertEquals(NR_OF_RECORDS + 1,
+                     expectedId);
+    }
+
+    @Test
+    public void splitByKey()
+                    throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/split-key");
+        final Table table = createTable(outputDir);
+        final List<File> targetFiles = getTargetFiles(outputDir, 4);
+        final int[] recordCounts;
+
+        try
+        {
+            recordCounts = table.splitByKey("CODE", targetFiles, 4);
+        }
+        finally
+        {
+            table.close();
+        }
+
+        final Map<String, Integer> partitionsByCode = new HashMap<String, Integer>();
+        int nrOfRecords = 0;
+
+        for (int i = 0; i < targetFiles.size(); ++i)
+        {
+            final List<Record> records = readRecords(targetFiles.get(i));
+            assertEquals(records.size(),
+                         recordCounts[i]);
+
+            int previousId = -1;
+
+            for (final Record record : records)
+            {
+                final int id = record.getNumberValue("ID").intValue();
+                final String code = record.getStringValue("CODE").trim();
+                assertTrue(id > previousId);
+                assertEquals("code" + id % 13,
+                             code);
+
+                final Integer partition = partitionsByCode.put(code, i);
+                assertTrue(partition == null || partition == i);
+                previousId = id;
+            }
+
+            nrOfRecords += records.size();
+        }
+
+        assertEquals(NR_OF_RECORDS - NR_OF_RECORDS / 10,
+                     nrOfRecords);
+        assertEquals(13,
+                     partitionsByCode.size());
+    }
+
+    @Test
+    public void failedSplitIsDeleted()
+                              throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/split-failed");
+        final File tableFile = new File(outputDir, "SOURCE.DBF");
+        createTable(outputDir).close();
+
+        /*
+         * Cuts off the memos of the later records, so that the split fails after the first
+         * records have been written.
+         */
+        final RandomAccessFile memoFile = new RandomAccessFile(Util.getMemoFile(tableFile, version), "rw");
+
+        try
+        {
+            memoFile.setLength(memoFile.length() / 2);
+        }
+        finally
+        {
+            memoFile.close();
+        }
+
+        final Table table = new Table(tableFile);
+        table.open();
+
+        try
+        {
+            table.splitByRange(getTargetFiles(outputDir, 3),
+                               2);
+            fail("Split did not fail");
+        }
+        catch (final Exception exception)
+        {
+            // expected
+        }
+        finally
+        {
+            table.close();
+        }
+
+        for (final String name : outputDir.list())
+        {
+            assertTrue(name,
+                       name.startsWith("SOURCE."));
+        }
+    }
+
+    @Test
+    public void splitWithBinaryFields()
+                               throws Exception
+    {
+        assumeTrue(version == Version.DBASE_5 || version == Version.FOXPRO_26);
+
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/split-data");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("DATA", TestAppendFrom.getMemoBackedType(version)));
+
+        final Table table = new Table(new File(outputDir, "SOURCE.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        final List<File> targetFiles = getTargetFiles(outputDir, 3);
+
+        try
+        {
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                table.addRecord(i,
+                                TestAppendFrom.getData(i));
+            }
+
+            table.splitByRange(targetFiles, 2);
+        }
+        finally
+        {
+            table.close();
+        }
+
+        int expectedId = 0;
+
+        for (final File targetFile : targetFiles)
+        {
+            final Table target = new Table(targetFile);
+            target.open();
+
+            try
+            {
+                final Iterator<Record> iterator = target.recordIterator();
+
+                while (iterator.hasNext())
+                {
+                    final Record record = iterator.next();
+                    assertEquals(expectedId,
+                                 record.getNumberValue("ID").intValue());
+                    assertArrayEquals(TestAppendFrom.getData(expectedId),
+                                      (byte[]) record.getTypedValue("DATA"));
+                    ++expectedId;
+                }
+            }
+            finally
+            {
+                target.close();
+            }
+        }
+
+        assertEquals(NR_OF_RECORDS,
+                     expectedId);
+    }
+}
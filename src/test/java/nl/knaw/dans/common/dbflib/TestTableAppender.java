@@ -0,0 +1,166 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+import org.junit.runner.RunWith;
+
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests appending records from several threads at once through a {@link TableAppender}.
+ */
+@RunWith(Parameterized.class)
+public class TestTableAppender
+    extends BaseTestcase
+{
+    private static final int NR_OF_THREADS = 8;
+    private static final int NR_OF_RECORDS_PER_THREAD = 200;
+    private static final int NR_OF_EXISTING_RECORDS = 5;
+
+    /**
+     * Creates a new TestTableAppender object.
+     *
+     * @param aVersion test parameter
+     * @param aVersionDirectory test parameter
+     */
+    public TestTableAppender(final Version aVersion, final String aVersionDirectory)
+    {
+        super(aVersion, aVersionDirectory);
+    }
+
+    private static String createMemoText(final int id)
+    {
+        return id % 4 == 0 ? null : TestCompactMemo.createMemoText(id, id % 900);
+    }
+
+    @Test
+    public void appendFromSeveralThreads()
+                                  throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory + "/appender");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 8));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final File tableFile = new File(outputDir, "APPEND.DBF");
+        final Table table = new Table(tableFile, version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        final int nrOfRecords = NR_OF_EXISTING_RECORDS + NR_OF_THREADS * NR_OF_RECORDS_PER_THREAD;
+
+        try
+        {
+            for (int i = 0; i < NR_OF_EXISTING_RECORDS; ++i)
+            {
+                table.addRecord(i,
+                                createMemoText(i));
+            }
+
+            final TableAppender appender = table.createAppender();
+            final ExecutorService executor = Executors.newFixedThreadPool(NR_OF_THREADS);
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+            for (int t = 0; t < NR_OF_THREADS; ++t)
+            {
+                final int firstId = NR_OF_EXISTING_RECORDS + t * NR_OF_RECORDS_PER_THREAD;
+
+                futures.add(executor.submit(new Callable<Void>()
+                        {
+                            public Void call()
+                                      throws Exception
+                            {
+                                for (int id = firstId; id < firstId + NR_OF_RECORDS_PER_THREAD; ++id)
+                                {
+                                    appender.append(id,
+                                                    createMemoText(id));
+                                }
+
+                                return null;
+                            }
+                        }));
+            }
+
+            for (final Future<Void> future : futures)
+            {
+                future.get();
+            }
+
+            executor.shutdown();
+
+            assertEquals("Records must not be visible before publishing",
+                         NR_OF_EXISTING_RECORDS,
+                         table.getRecordCount());
+            appender.close();
+            assertEquals(nrOfRecords,
+                         table.getRecordCount());
+        }
+        finally
+        {
+            table.close();
+        }
+
+        final Table reopened = new Table(tableFile);
+        reopened.open(IfNonExistent.ERROR);
+
+        try
+        {
+            assertEquals(nrOfRecords,
+                         reopened.getRecordCount());
+
+            final BitSet seen = new BitSet();
+
+            for (int i = 0; i < nrOfRecords; ++i)
+            {
+                final Record record = reopened.getRecordAt(i);
+                final int id = record.getNumberValue("ID").intValue();
+
+                assertFalse("Duplicate record " + id,
+                            seen.get(id));
+                seen.set(id);
+                assertEquals(createMemoText(id),
+                             record.getStringValue("NOTES"));
+
+                if (i < NR_OF_EXISTING_RECORDS)
+                {
+                    assertEquals(i, id);
+                }
+            }
+
+            assertEquals("Records missing",
+                         nrOfRecords,
+                         seen.nextClearBit(0));
+        }
+        finally
+        {
+            reopened.close();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests following a table that is appended to through another <code>Table</code> object, as
+ * another process would.
+ */
+public class TestTableFollower
+{
+    private static final int NR_OF_EXISTING_RECORDS = 50;
+
+    private static Table createTable(final String name)
+                              throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/follower/" + name);
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final Table table = new Table(new File(outputDir, "FOLLOW.DBF"), Version.DBASE_3, fields);
+        table.open(IfNonExistent.CREATE);
+
+        for (int i = 0; i < NR_OF_EXISTING_RECORDS; ++i)
+        {
+            table.addRecord(i, "memo " + i);
+        }
+
+        return table;
+    }
+
+    private static Table openFollowedTable(final String name)
+                                    throws Exception
+    {
+        final Table table = new Table(new File("target/test-output/follower/" + name, "FOLLOW.DBF"));
+        table.open();
+
+        return table;
+    }
+
+    @Test
+    public void pollReturnsAppendedRecords()
+                                    throws Exception
+    {
+        final Table writer = createTable("poll");
+        final Table reader = openFollowedTable("poll");
+
+        try
+        {
+            final TableFollower follower = reader.createFollower();
+            assertEquals(0,
+                         follower.poll().size());
+
+            for (int i = NR_OF_EXISTING_RECORDS; i < NR_OF_EXISTING_RECORDS + 3; ++i)
+            {
+                writer.addRecord(i, "memo " + i);
+            }
+
+            writer.deleteRecordAt(NR_OF_EXISTING_RECORDS + 1);
+
+            List<Record> records = follower.poll();
+            assertEquals(3,
+                         records.size());
+
+            for (int i = 0; i < records.size(); ++i)
+            {
+                assertEquals(NR_OF_EXISTING_RECORDS + i,
+                             records.get(i).getNumberValue("ID").intValue());
+                assertEquals("memo " + (NR_OF_EXISTING_RECORDS + i),
+                             records.get(i).getStringValue("NOTES"));
+                assertEquals(i == 1,
+                             records.get(i).isMarkedDeleted());
+            }
+
+            assertEquals(0,
+                         follower.poll().size());
+            assertEquals(NR_OF_EXISTING_RECORDS + 3,
+                         reader.getRecordCount());
+
+            writer.addRecord(1000, "last memo");
+            records = follower.poll();
+            assertEquals(1,
+                         records.size());
+            assertEquals("last memo",
+                         records.get(0).getStringValue("NOTES"));
+            assertEquals(NR_OF_EXISTING_RECORDS + 4,
+                         follower.getNextIndex());
+        }
+        finally
+        {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    @Test
+    public void followFromIndex()
+                         throws Exception
+    {
+        final Table table = createTable("from");
+
+        try
+        {
+            final List<Record> records = table.createFollower(NR_OF_EXISTING_RECORDS - 5).poll();
+            assertEquals(5,
+                         records.size());
+            assertEquals(NR_OF_EXISTING_RECORDS - 5,
+                         records.get(0).getNumberValue("ID").intValue());
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void listenerIsCalledInBackground()
+                                      throws Exception
+    {
+        final Table writer = createTable("listener");
+        final Table reader = openFollowedTable("listener");
+        final int nrOfAppendedRecords = 20;
+        final CountDownLatch latch = new CountDownLatch(nrOfAppendedRecords);
+        final List<Integer> indexes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        try
+        {
+            final TableFollower follower = reader.createFollower();
+            follower.start(new RecordListener()
+                {
+                    public void recordAdded(final int index, final Record record)
+                    {
+                        assertEquals(index,
+                                     record.getNumberValue("ID").intValue());
+                        indexes.add(index);
+                        latch.countDown();
+                    }
+                },
+                           5);
+
+            for (int i = NR_OF_EXISTING_RECORDS; i < NR_OF_EXISTING_RECORDS + nrOfAppendedRecords; ++i)
+            {
+                writer.addRecord(i, "memo " + i);
+            }
+
+            assertTrue("Not all records reported",
+                       latch.await(10, TimeUnit.SECONDS));
+            follower.stop();
+
+            for (int i = 0; i < nrOfAppendedRecords; ++i)
+            {
+                assertEquals(NR_OF_EXISTING_RECORDS + i,
+                             indexes.get(i).intValue());
+            }
+        }
+        finally
+        {
+            reader.close();
+            writer.close();
+        }
+    }
+}
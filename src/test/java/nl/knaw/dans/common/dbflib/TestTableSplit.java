@@ -0,0 +1,281 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import org.junit.runner.RunWith;
+
+import org.junit.runners.Parameterized;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests planning splits of a table and reading them separately.
+ */
+@RunWith(Parameterized.class)
+public class TestTableSplit
+    extends BaseTestcase
+{
+    private static final int NR_OF_RECORDS = 1500;
+
+    /**
+     * Creates a new TestTableSplit object.
+     *
+     * @param aVersion test parameter
+     * @param aVersionDirectory test parameter
+     */
+    public TestTableSplit(final Version aVersion, final String aVersionDirectory)
+    {
+        super(aVersion, aVersionDirectory);
+    }
+
+    private static String getNotes(final int id)
+    {
+        return id % 3 == 0 ? null : TestCompactMemo.createMemoText(id, 10 + id * 11 % 1300);
+    }
+
+    private static TableSplit sendAway(final TableSplit split)
+                                throws Exception
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(split);
+        out.close();
+
+        return (TableSplit) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    }
+
+    @Test
+    public void readSplitsSeparately()
+                              throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/tablesplit");
+        final File tableFile = new File(outputDir, "SPLIT.DBF");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final Table table = new Table(tableFile, version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        try
+        {
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                table.addRecord(i, getNotes(i));
+
+                if (i % 8 == 0)
+                {
+                    table.deleteRecordAt(i);
+                }
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+
+        final List<TableSplit> splits = TableSplit.plan(tableFile, 4);
+        assertEquals(4,
+                     splits.size());
+
+        long offset = splits.get(0).getOffset();
+        int expectedId = 1;
+
+        for (final TableSplit plannedSplit : splits)
+        {
+            final TableSplit split = sendAway(plannedSplit);
+            assertEquals(offset,
+                         split.getOffset());
+            offset += split.getLength();
+
+            final Table reader = new Table(split.getTableFile());
+            reader.open();
+
+            try
+            {
+                final Iterator<Record> iterator = reader.splitIterator(split,
+                                                                       false,
+                                                                       split.getFirstIndex() % 2 == 0);
+
+                while (iterator.hasNext())
+                {
+                    final Record record = iterator.next();
+                    assertFalse(record.isMarkedDeleted());
+                    assertEquals(expectedId,
+                                 record.getNumberValue("ID").intValue());
+                    assertEquals(getNotes(expectedId),
+                                 record.getStringValue("NOTES"));
+                    assertTrue(expectedId < split.getFirstIndex() + split.getRecordCount());
+
+                    ++expectedId;
+
+                    if (expectedId % 8 == 0)
+                    {
+                        ++expectedId;
+                    }
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+
+        assertEquals(NR_OF_RECORDS,
+                     expectedId);
+        assertEquals(tableFile.length() - 1,
+                     offset);
+    }
+
+    @Test
+    public void readSplitAtOtherPath()
+                              throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/tablesplit-path");
+        final File tableFile = new File(outputDir, "SPLIT.DBF");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+
+        Table table = new Table(tableFile, version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        try
+        {
+            for (int i = 0; i < 10; ++i)
+            {
+                table.addRecord(i);
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+
+        /*
+         * The same table, as another machine would see it on a shared file system.
+         */
+        final File mountDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                             + "/tablesplit-mount");
+        final File mountedFile = new File(mountDir, "SPLIT.DBF");
+        Files.copy(tableFile.toPath(),
+                   mountedFile.toPath());
+
+        final TableSplit split = sendAway(TableSplit.plan(tableFile, 2).get(1));
+        table = new Table(mountedFile);
+        table.open();
+
+        try
+        {
+            final Iterator<Record> iterator = table.splitIterator(split, false, false);
+
+            for (int id = 5; id < 10; ++id)
+            {
+                assertEquals(id,
+                             iterator.next().getNumberValue("ID").intValue());
+            }
+
+            assertFalse(iterator.hasNext());
+        }
+        finally
+        {
+            table.close();
+        }
+
+        /*
+         * Another table with the same name, but other records.
+         */
+        final File otherDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                             + "/tablesplit-other");
+        fields.add(new Field("CODE", Type.CHARACTER, 4));
+        table = new Table(new File(otherDir, "SPLIT.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        try
+        {
+            for (int i = 0; i < 10; ++i)
+            {
+                table.addRecord(i, "X");
+            }
+
+            table.splitIterator(split, false, false);
+            fail("Split of another table accepted");
+        }
+        catch (final IllegalArgumentException illegalArgumentException)
+        {
+            // expected
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void fewerRecordsThanSplits()
+                                throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/tablesplit-small");
+        final File tableFile = new File(outputDir, "SPLIT.DBF");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+
+        final Table table = new Table(tableFile, version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        try
+        {
+            for (int i = 0; i < 3; ++i)
+            {
+                table.addRecord(i);
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+
+        final List<TableSplit> splits = TableSplit.plan(tableFile, 10);
+        assertEquals(3,
+                     splits.size());
+
+        for (int i = 0; i < splits.size(); ++i)
+        {
+            assertEquals(i,
+                         splits.get(i).getFirstIndex());
+            assertEquals(1,
+                         splits.get(i).getRecordCount());
+        }
+    }
+}
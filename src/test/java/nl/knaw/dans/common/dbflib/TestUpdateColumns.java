@@ -0,0 +1,317 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import org.junit.runner.RunWith;
+
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests updating columns of a whole table with {@link Table#updateColumns(Map, RecordFilter)}.
+ */
+@RunWith(Parameterized.class)
+public class TestUpdateColumns
+    extends BaseTestcase
+{
+    private static final int NR_OF_RECORDS = 1500;
+
+    /**
+     * Creates a new TestUpdateColumns object.
+     *
+     * @param aVersion test parameter
+     * @param aVersionDirectory test parameter
+     */
+    public TestUpdateColumns(final Version aVersion, final String aVersionDirectory)
+    {
+        super(aVersion, aVersionDirectory);
+    }
+
+    @Test
+    public void updateColumns()
+                       throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/updatecolumns");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("AMOUNT", Type.NUMBER, 8));
+        fields.add(new Field("DOUBLED", Type.NUMBER, 9));
+        fields.add(new Field("CODE", Type.CHARACTER, 5));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final Table table = new Table(new File(outputDir, "COLUMNS.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        try
+        {
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                table.addRecord(i, i * 10, null, "A", "memo " + i);
+            }
+
+            table.deleteRecordAt(7);
+
+            final int nrDoubled =
+                table.updateColumns(createFunctions("DOUBLED",
+                                                    new FieldFunction()
+                    {
+                        public Object apply(final Record record)
+                        {
+                            return record.getNumberValue("AMOUNT").intValue() * 2;
+                        }
+                    }),
+                                    null);
+            assertEquals(NR_OF_RECORDS - 1,
+                         nrDoubled);
+
+            final Map<String, FieldFunction> functions =
+                createFunctions("CODE",
+                                new FieldFunction()
+                    {
+                        public Object apply(final Record record)
+                        {
+                            return "X" + record.getNumberValue("ID");
+                        }
+                    });
+            functions.put("NOTES",
+                          new FieldFunction()
+                {
+                    public Object apply(final Record record)
+                    {
+                        return record.getStringValue("NOTES") + " updated";
+                    }
+                });
+
+            final int nrSelected =
+                table.updateColumns(functions,
+                                    new RecordFilter()
+                    {
+                        public boolean accept(final Record record)
+                        {
+                            assertNull(record.getStringValue("NOTES"));
+
+                            return record.getNumberValue("ID").intValue() % 3 == 0;
+                        }
+                    });
+            assertEquals(NR_OF_RECORDS / 3,
+                         nrSelected);
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                final Record record = table.getRecordAt(i);
+                assertEquals(i,
+                             record.getNumberValue("ID").intValue());
+                assertEquals(i * 10,
+                             record.getNumberValue("AMOUNT").intValue());
+
+                if (i == 7)
+                {
+                    assertNull(record.getNumberValue("DOUBLED"));
+                }
+                else
+                {
+                    assertEquals(i * 20,
+                                 record.getNumberValue("DOUBLED").intValue());
+                }
+
+                if (i % 3 == 0)
+                {
+                    assertEquals("X" + i,
+                                 record.getStringValue("CODE").trim());
+                    assertEquals("memo " + i + " updated",
+                                 record.getStringValue("NOTES"));
+                }
+                else
+                {
+                    assertEquals("A",
+                                 record.getStringValue("CODE").trim());
+                    assertEquals("memo " + i,
+                                 record.getStringValue("NOTES"));
+                }
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void updateColumnsWithBinaryFields()
+                                       throws Exception
+    {
+        assumeTrue(version == Version.DBASE_5 || version == Version.FOXPRO_26);
+
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/updatecolumns-data");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("DATA", TestAppendFrom.getMemoBackedType(version)));
+        fields.add(new Field("SIZE", Type.NUMBER, 6));
+
+        final Table table = new Table(new File(outputDir, "COLUMNS.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        try
+        {
+            for (int id = 0; id < NR_OF_RECORDS; ++id)
+            {
+                table.addRecord(id,
+                                TestAppendFrom.getData(id),
+                                null);
+            }
+
+            final int nrSelected =
+                table.updateColumns(createFunctions("SIZE",
+                                                    new FieldFunction()
+                    {
+                        public Object apply(final Record record)
+                        {
+                            final byte[] data = (byte[]) record.getTypedValue("DATA");
+
+                            return data == null ? 0 : data.length;
+                        }
+                    }),
+                                    new RecordFilter()
+                    {
+                        public boolean accept(final Record record)
+                        {
+                            assertNull(record.getTypedValue("DATA"));
+
+                            return record.getNumberValue("ID").intValue() % 2 == 0;
+                        }
+                    });
+            assertEquals(NR_OF_RECORDS / 2,
+                         nrSelected);
+
+            for (int id = 0; id < NR_OF_RECORDS; ++id)
+            {
+                final Record record = table.getRecordAt(id);
+                final byte[] data = TestAppendFrom.getData(id);
+
+                if (id % 2 == 0)
+                {
+                    assertEquals(data == null ? 0 : data.length,
+                                 record.getNumberValue("SIZE").intValue());
+                }
+                else
+                {
+                    assertNull(record.getNumberValue("SIZE"));
+                }
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void failedWriteKeepsOldMemos()
+                                  throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/updatecolumns-failed");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 6));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        /*
+         * Fails the write of the first block, after the new memos of its records have been written.
+         */
+        final Table table =
+            new Table(new File(outputDir, "COLUMNS.DBF"), version, fields)
+            {
+                private boolean failed = false;
+
+                @Override
+                void writeTableBytesAt(final long position, final byte[] bytes, final int offset,
+                                       final int length)
+                                throws IOException
+                {
+                    if (! failed)
+                    {
+                        failed = true;
+
+                        throw new IOException("Simulated write failure");
+                    }
+
+                    super.writeTableBytesAt(position, bytes, offset, length);
+                }
+            };
+
+        try
+        {
+            table.open(IfNonExistent.CREATE);
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                table.addRecord(i, "memo " + i);
+            }
+
+            try
+            {
+                table.updateColumns(createFunctions("NOTES",
+                                                    new FieldFunction()
+                    {
+                        public Object apply(final Record record)
+                        {
+                            return "new " + record.getNumberValue("ID");
+                        }
+                    }),
+                                    null);
+                fail("Update did not fail");
+            }
+            catch (final IOException ioException)
+            {
+                // expected
+            }
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                assertEquals("memo " + i,
+                             table.getRecordAt(i).getStringValue("NOTES"));
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    private static Map<String, FieldFunction> createFunctions(final String fieldName, final FieldFunction function)
+    {
+        final Map<String, FieldFunction> functions = new LinkedHashMap<String, FieldFunction>();
+        functions.put(fieldName, function);
+
+        return functions;
+    }
+}
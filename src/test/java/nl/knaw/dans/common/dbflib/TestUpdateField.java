@@ -0,0 +1,250 @@
+/*
+ * Copyright 2009-2010 Data Archiving and Networked Services (DANS), Netherlands.
+ *
+ * This file is part of DANS DBF Library.
+ *
+ * DANS DBF Library is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * DANS DBF Library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with DANS DBF Library. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.knaw.dans.common.dbflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import org.junit.runner.RunWith;
+
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests updating a single field of a record with {@link Table#updateFieldAt(int, String, Object)}.
+ */
+@RunWith(Parameterized.class)
+public class TestUpdateField
+    extends BaseTestcase
+{
+    private static final int NR_OF_RECORDS = 10;
+
+    /**
+     * Creates a new TestUpdateField object.
+     *
+     * @param aVersion test parameter
+     * @param aVersionDirectory test parameter
+     */
+    public TestUpdateField(final Version aVersion, final String aVersionDirectory)
+    {
+        super(aVersion, aVersionDirectory);
+    }
+
+    private Table createTable(final String name)
+                       throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory + "/updatefield-"
+                                                              + name);
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 5));
+        fields.add(new Field("STATUS", Type.CHARACTER, 3));
+        fields.add(new Field("FLAG", Type.LOGICAL));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        final Table table = new Table(new File(outputDir, "UPDFIELD.DBF"), version, fields);
+        table.open(IfNonExistent.CREATE);
+
+        for (int i = 0; i < NR_OF_RECORDS; ++i)
+        {
+            table.addRecord(i, "NEW", true, "memo " + i);
+        }
+
+        return table;
+    }
+
+    @Test
+    public void updateNonMemoFields()
+                             throws Exception
+    {
+        final Table table = createTable("plain");
+
+        try
+        {
+            final File memoFile = Util.getMemoFile(new File("target/test-output/" + versionDirectory
+                                                            + "/updatefield-plain/UPDFIELD.DBF"),
+                                                   version);
+            final long memoLength = memoFile.length();
+            table.deleteRecordAt(3);
+
+            table.updateFieldAt(3, "STATUS", "OK");
+            table.updateFieldAt(3, "FLAG", false);
+            table.updateFieldAt(5, "STATUS", null);
+
+            final Record record = table.getRecordAt(3);
+            assertEquals(3,
+                         record.getNumberValue("ID").intValue());
+            assertEquals("OK",
+                         record.getStringValue("STATUS"));
+            assertEquals(false,
+                         record.getBooleanValue("FLAG"));
+            assertEquals("memo 3",
+                         record.getStringValue("NOTES"));
+            assertTrue(record.isMarkedDeleted());
+            assertEquals("",
+                         table.getRecordAt(5).getStringValue("STATUS").trim());
+            assertEquals("NEW",
+                         table.getRecordAt(4).getStringValue("STATUS"));
+            assertEquals("Memo file must not change",
+                         memoLength,
+                         memoFile.length());
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void updateMemoField()
+                         throws Exception
+    {
+        final Table table = createTable("memo");
+
+        try
+        {
+            final String longMemo = TestCompactMemo.createMemoText(4, 1200);
+            table.updateFieldAt(4, "NOTES", longMemo);
+            table.updateFieldAt(6, "NOTES", null);
+
+            assertEquals(longMemo,
+                         table.getRecordAt(4).getStringValue("NOTES"));
+            assertEquals("NEW",
+                         table.getRecordAt(4).getStringValue("STATUS"));
+            assertNull(table.getRecordAt(6).getStringValue("NOTES"));
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                if (i != 4 && i != 6)
+                {
+                    assertEquals("memo " + i,
+                                 table.getRecordAt(i).getStringValue("NOTES"));
+                }
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test
+    public void failedUpdateKeepsOldMemo()
+                                  throws Exception
+    {
+        final File outputDir = UnitTestUtil.recreateDirectory("target/test-output/" + versionDirectory
+                                                              + "/updatefield-failed");
+        final List<Field> fields = new ArrayList<Field>();
+        fields.add(new Field("ID", Type.NUMBER, 5));
+        fields.add(new Field("NOTES", Type.MEMO));
+
+        /*
+         * Fails the first field write after the new memo has been written.
+         */
+        final Table table =
+            new Table(new File(outputDir, "UPDFIELD.DBF"), version, fields)
+            {
+                private boolean failed = false;
+
+                @Override
+                void writeTableBytesAt(final long position, final byte[] bytes, final int offset,
+                                       final int length)
+                                throws IOException
+                {
+                    if (! failed)
+                    {
+                        failed = true;
+
+                        throw new IOException("Simulated write failure");
+                    }
+
+                    super.writeTableBytesAt(position, bytes, offset, length);
+                }
+            };
+
+        try
+        {
+            table.open(IfNonExistent.CREATE);
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                table.addRecord(i, "memo " + i);
+            }
+
+            try
+            {
+                table.updateFieldAt(4, "NOTES", "memo X");
+                fail("Update did not fail");
+            }
+            catch (final IOException ioException)
+            {
+                // expected
+            }
+
+            table.updateFieldAt(5, "NOTES", "memo Y");
+
+            for (int i = 0; i < NR_OF_RECORDS; ++i)
+            {
+                assertEquals(i == 5 ? "memo Y" : "memo " + i,
+                             table.getRecordAt(i).getStringValue("NOTES"));
+            }
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test(expected = ValueTooLargeException.class)
+    public void valueTooLarge()
+                       throws Exception
+    {
+        final Table table = createTable("large");
+
+        try
+        {
+            table.updateFieldAt(0, "STATUS", "TOO LONG");
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownField()
+                      throws Exception
+    {
+        final Table table = createTable("unknown");
+
+        try
+        {
+            table.updateFieldAt(0, "NO_FIELD", "X");
+        }
+        finally
+        {
+            table.close();
+        }
+    }
+}